@@ -0,0 +1,128 @@
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Decides which connection requests a server serving one connection at a time takes on, so that under overload
+ * the clients it admits are answered within a target latency and the others are refused at once, instead of
+ * sending SYNs that nobody answers while the wait grows without bound.
+ * The SYNs that arrive while a connection is served wait in a bounded queue, in the order they came in.
+ * The limit on the connections in flight, the one served and the queued ones, follows the observed service time
+ * by Little's law: the target latency divided by a moving average of the time a connection takes, so it falls as
+ * requests get slower and rises again as they speed up.
+ */
+class AdmissionControl {
+    // a client sends its SYN again every 2 seconds, one that stopped for longer has given up
+    private static final long GIVEN_UP_MILLIS = 2500;
+    // weight of a new sample in the moving average of the service time
+    private static final double SMOOTHING = 0.2;
+
+    private final int backlog;
+    private final long targetLatencyMillis;
+    // by client address, in arrival order
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    // 0 until a connection has been measured
+    private double serviceMillis;
+    private long servedSince = -1;
+    private long admitted;
+    private long refused;
+    private long abandoned;
+
+    /**
+     * @param backlog             The most connection requests kept waiting.
+     * @param targetLatencyMillis The time a client should wait at most, from its SYN to the end of the response.
+     */
+    AdmissionControl(int backlog, long targetLatencyMillis) {
+        this.backlog = backlog;
+        this.targetLatencyMillis = targetLatencyMillis;
+    }
+
+    /**
+     * Returns the number of connections taken on at once, the one served included.
+     */
+    int limit() {
+        if (serviceMillis == 0)
+            return backlog + 1;
+        return (int) Math.max(1, Math.min(backlog + 1, targetLatencyMillis / serviceMillis));
+    }
+
+    /**
+     * Queues a connection request, or notes that a queued client sent it again.
+     *
+     * @return false when the server is at its limit, and the request is to be refused.
+     */
+    boolean offer(Packet syn, SocketAddress router) {
+        String client = syn.getPeerAddress() + ":" + syn.getPeerPort();
+        Pending queued = pending.get(client);
+        long now = System.currentTimeMillis();
+        if (queued != null) {
+            queued.lastSeen = now;
+            return true;
+        }
+        if (pending.size() + (servedSince >= 0 ? 1 : 0) >= limit()) {
+            ++refused;
+            return false;
+        }
+        pending.put(client, new Pending(syn, router, now));
+        return true;
+    }
+
+    /**
+     * Takes the oldest queued request whose client still waits for an answer, and starts timing its connection.
+     *
+     * @return The request, or null when none is waiting.
+     */
+    Pending poll() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Pending> requests = pending.values().iterator(); requests.hasNext(); ) {
+            Pending request = requests.next();
+            requests.remove();
+            if (now - request.lastSeen > GIVEN_UP_MILLIS) {
+                ++abandoned;
+                continue;
+            }
+            ++admitted;
+            servedSince = System.nanoTime();
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Records the end of the connection served, whose duration is a sample of the service time.
+     */
+    void done() {
+        if (servedSince < 0)
+            return;
+        double sample = (System.nanoTime() - servedSince) / 1e6;
+        servedSince = -1;
+        serviceMillis = serviceMillis == 0 ? sample : serviceMillis + SMOOTHING * (sample - serviceMillis);
+    }
+
+    /**
+     * Returns how long a refused client should wait before it tries again: the time the queue takes to drain.
+     */
+    long retryAfterMillis() {
+        return Math.max(1, (long) Math.ceil((pending.size() + 1) * serviceMillis));
+    }
+
+    String getStats() {
+        return String.format("admitted=%d, refused=%d, abandoned=%d, queued=%d, limit=%d, service=%.1fms",
+                admitted, refused, abandoned, pending.size(), limit(), serviceMillis);
+    }
+
+    /**
+     * A connection request waiting for the server.
+     */
+    static final class Pending {
+        final Packet syn;
+        final SocketAddress router;
+        long lastSeen;
+
+        Pending(Packet syn, SocketAddress router, long lastSeen) {
+            this.syn = syn;
+            this.router = router;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
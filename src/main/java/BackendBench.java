@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Runs the same workload against every storage engine, so their costs can be compared on one machine:
+ * puts of new objects, reads of each object in turn, reads from several threads at once and appends.
+ * Each engine gets a fresh temporary directory, which is deleted afterwards.
+ * <p>
+ * Usage: java BackendBench [objects] [object size in bytes] [reader threads]
+ */
+public class BackendBench {
+    private static final int DEFAULT_OBJECTS = 2000;
+    private static final int DEFAULT_SIZE = 4096;
+    private static final int DEFAULT_THREADS = 8;
+    // rounds of the workload run first and thrown away, so the JIT has compiled the paths measured
+    private static final int WARM_UP_ROUNDS = 2;
+    private static final int READ_ROUNDS = 3;
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int objects = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OBJECTS;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SIZE;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREADS;
+        byte[] body = new byte[size];
+        new Random(1).nextBytes(body);
+
+        System.out.printf("%d objects of %d bytes, %d reader threads%n", objects, size, threads);
+        for (String engine : new String[]{"file", "memory", "log", "cas"}) {
+            Path base = Files.createTempDirectory("backend-bench");
+            try {
+                for (int round = 0; round < WARM_UP_ROUNDS; ++round) {
+                    try (StorageBackend backend = open(engine, base.resolve("warm-up" + round))) {
+                        run(backend, objects, body, threads);
+                    }
+                }
+                try (StorageBackend backend = open(engine, base.resolve("measured"))) {
+                    double[] result = run(backend, objects, body, threads);
+                    System.out.printf("%-7s put %8.1f us/op, get %8.1f us/op, %d-thread get %9.0f ops/s, append %8.1f us/op%n",
+                            engine, result[0], result[1], threads, result[2], result[3]);
+                }
+            } finally {
+                delete(base);
+            }
+        }
+    }
+
+    /**
+     * Opens an engine the way the server does, with its data under the directory.
+     */
+    private static StorageBackend open(String engine, Path base) throws IOException {
+        switch (engine) {
+            case "log":
+                return new LogStore(base.resolve(".log"), SEGMENT_BYTES, LogStore.Durability.NONE);
+            case "cas":
+                return new BlobStore(base.resolve(".cas"));
+            case "memory":
+                return new MemoryBackend();
+            default:
+                return new FileSystemBackend(Files.createDirectories(base), false);
+        }
+    }
+
+    /**
+     * Runs the workload once.
+     *
+     * @return The microseconds per put, per read and per append, and the reads per second of the threads together.
+     */
+    private static double[] run(StorageBackend backend, int objects, byte[] body, int threads) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < objects; ++i)
+            write(backend, "object" + i, body, false);
+        long written = System.nanoTime();
+        for (int round = 0; round < READ_ROUNDS; ++round) {
+            for (int i = 0; i < objects; ++i)
+                read(backend, "object" + i);
+        }
+        long read = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> readers = new ArrayList<>();
+        long concurrentStart = System.nanoTime();
+        try {
+            for (int t = 0; t < threads; ++t) {
+                int first = t;
+                readers.add(pool.submit(() -> {
+                    for (int i = first; i < READ_ROUNDS * objects; i += threads)
+                        read(backend, "object" + (i % objects));
+                    return null;
+                }));
+            }
+            for (Future<?> reader : readers)
+                reader.get();
+        } finally {
+            pool.shutdown();
+        }
+        long concurrentEnd = System.nanoTime();
+
+        for (int i = 0; i < objects; ++i)
+            write(backend, "object" + i, body, true);
+        long appended = System.nanoTime();
+
+        return new double[]{
+                (written - start) / 1e3 / objects,
+                (read - written) / 1e3 / (READ_ROUNDS * objects),
+                READ_ROUNDS * objects / ((concurrentEnd - concurrentStart) / 1e9),
+                (appended - concurrentEnd) / 1e3 / objects};
+    }
+
+    private static void write(StorageBackend backend, String key, byte[] body, boolean append) throws IOException {
+        try (StorageBackend.Write write = backend.startWrite(key, null)) {
+            write.onBody(body, 0, body.length);
+            write.commit(append);
+        }
+    }
+
+    private static void read(StorageBackend backend, String key) throws IOException {
+        StorageBackend.Stat stat = backend.stat(key);
+        try (InputStream in = backend.open(key, 0, stat.size).toInputStream()) {
+            in.readAllBytes();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Framing of the batch endpoints. Every object is a header line, its bytes and a line feed;
+ * a response to /batch/get or /batch/put has "status length name" headers, a request to /batch/put "length name" headers,
+ * and a request to /batch/get is only the names, one per line. Names are URL paths such as "/a" and end at the line feed,
+ * the length says where the bytes end, so they can hold anything.
+ */
+class BatchFrames {
+    static final String CONTENT_TYPE = "application/x-batch-frames";
+
+    /**
+     * Encodes the frames of a request to /batch/put.
+     */
+    static byte[] encode(List<Frame> frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Frame frame : frames) {
+            byte[] header = (frame.body.length + " " + frame.name + "\n").getBytes(StandardCharsets.UTF_8);
+            out.write(header, 0, header.length);
+            out.write(frame.body, 0, frame.body.length);
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes frames.
+     *
+     * @param withStatus Whether the headers start with a status, as in responses.
+     * @throws IOException If the frames are malformed or the last one is cut off.
+     */
+    static List<Frame> decode(byte[] data, int offset, int count, boolean withStatus) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        int end = offset + count;
+        int position = offset;
+        while (position < end) {
+            int lineEnd = position;
+            while (lineEnd < end && data[lineEnd] != '\n')
+                ++lineEnd;
+            if (lineEnd == end)
+                throw new IOException("Batch frame header cut off");
+            String[] header = new String(data, position, lineEnd - position, StandardCharsets.UTF_8).split(" ", withStatus ? 3 : 2);
+            if (header.length < (withStatus ? 3 : 2))
+                throw new IOException("Malformed batch frame header");
+            int status;
+            long length;
+            try {
+                status = withStatus ? Integer.parseInt(header[0]) : 0;
+                length = Long.parseLong(header[withStatus ? 1 : 0]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed batch frame header");
+            }
+            int bodyStart = lineEnd + 1;
+            if (length < 0 || length > end - bodyStart - 1 || data[bodyStart + (int) length] != '\n')
+                throw new IOException("Batch frame cut off");
+            frames.add(new Frame(status, header[withStatus ? 2 : 1], Arrays.copyOfRange(data, bodyStart, bodyStart + (int) length)));
+            position = bodyStart + (int) length + 1;
+        }
+        return frames;
+    }
+
+    /**
+     * Decodes the names of a request to /batch/get, skipping empty lines.
+     */
+    static List<String> decodeNames(byte[] data, int offset, int count) {
+        List<String> names = new ArrayList<>();
+        for (String line : new String(data, offset, count, StandardCharsets.UTF_8).split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty())
+                names.add(line);
+        }
+        return names;
+    }
+
+    /**
+     * An object in a batch, or the outcome for one.
+     */
+    static final class Frame {
+        final int status;
+        final String name;
+        final byte[] body;
+
+        Frame(int status, String name, byte[] body) {
+            this.status = status;
+            this.name = name;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Sends the frames of a response in order, each as soon as its future completes,
+     * so the reads of a batch run in parallel while the first objects are already being sent.
+     */
+    static final class Source implements PayloadSource {
+        private final List<? extends Future<Frame>> frames;
+        private int next;
+        private byte[] current = new byte[0];
+        private int position;
+
+        Source(List<? extends Future<Frame>> frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public int read(byte[] dst, int offset, int length) throws IOException {
+            while (position == current.length) {
+                if (next == frames.size())
+                    return -1;
+                current = encode(await(frames.get(next)));
+                // the frame is only needed until it is sent
+                frames.set(next++, null);
+                position = 0;
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, dst, offset, count);
+            position += count;
+            return count;
+        }
+
+        private static Frame await(Future<Frame> frame) throws IOException {
+            try {
+                return frame.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a batch read");
+            } catch (ExecutionException e) {
+                throw new IOException("Batch read failed", e.getCause());
+            }
+        }
+
+        private static byte[] encode(Frame frame) {
+            byte[] header = (frame.status + " " + frame.body.length + " " + frame.name + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] encoded = Arrays.copyOf(header, header.length + frame.body.length + 1);
+            System.arraycopy(frame.body, 0, encoded, header.length, frame.body.length);
+            encoded[encoded.length - 1] = '\n';
+            return encoded;
+        }
+
+        /**
+         * Cancels the reads that have not been sent, when the response is not sent to the end.
+         */
+        @Override
+        public void close() {
+            for (int i = next; i < frames.size(); ++i)
+                frames.get(i).cancel(false);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store: every distinct content is kept once, in a blob file named by its SHA-256,
+ * and object names only point at digests. The digest is computed while the body streams in,
+ * and a body whose digest is already stored is not kept a second time.
+ * The name index is an append-only file of "digest name" lines, rewritten when most lines are stale.
+ * Blobs are reference counted, deleted when the last name leaves them and swept on open after a crash.
+ */
+class BlobStore implements StorageBackend {
+    private static final int DIGEST_HEX = 64;
+
+    private final Path blobs;
+    private final Path temp;
+    private final Path indexFile;
+    private final ConcurrentSkipListMap<String, String> names = new ConcurrentSkipListMap<>();
+    // everything below is guarded by the store's lock
+    private final Map<String, Integer> references = new HashMap<>();
+    private FileChannel index;
+    private long indexLines;
+
+    private long dedupedUploads;
+    private long dedupedBytes;
+    private long skippedWrites;
+    private long deletedBlobs;
+
+    /**
+     * Opens the store, loading the name index and deleting blobs that no name refers to.
+     *
+     * @param directory The directory of the store, created if needed.
+     * @throws IOException If the store cannot be read.
+     */
+    BlobStore(Path directory) throws IOException {
+        blobs = directory.resolve("blobs");
+        temp = directory.resolve("tmp");
+        indexFile = directory.resolve("names.log");
+        Files.createDirectories(blobs);
+        Files.createDirectories(temp);
+        loadIndex();
+        sweep();
+        index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns the blob holding the content of a name, or null.
+     */
+    Path get(String name) {
+        String digest = names.get(name);
+        return digest == null ? null : blobPath(digest);
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return names.containsKey(name);
+    }
+
+    /**
+     * Returns the size of the blob a name points at, tagged with its digest. A blob keeps the time it was first stored,
+     * which says nothing about when the name last changed, so there is no modification time.
+     */
+    @Override
+    public Stat stat(String name) throws IOException {
+        String digest = names.get(name);
+        if (digest == null)
+            return null;
+        try {
+            return new Stat(Files.size(blobPath(digest)), -1, "\"" + digest + "\"");
+        } catch (NoSuchFileException e) {
+            // the name was pointed elsewhere and its blob deleted meanwhile
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isContentAddressed() {
+        return true;
+    }
+
+    /**
+     * Opens the blob a name points at. A blob is only deleted, never changed, and an open one is read to the end.
+     */
+    @Override
+    public PayloadSource open(String name, long offset, long count) throws IOException {
+        Path blob = get(name);
+        if (blob == null)
+            return null;
+        try {
+            return new FileSource(blob, offset, count);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the names in sorted order, a live view of the index.
+     */
+    @Override
+    public NavigableSet<String> keys() {
+        return names.keySet();
+    }
+
+    /**
+     * Starts receiving a body for a name.
+     *
+     * @param expectedDigest The SHA-256 the client announced for the body, or null. The body is checked against it,
+     *                       and only hashed, not written, when that content is already stored.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    @Override
+    public Upload startWrite(String name, byte[] expectedDigest) throws IOException {
+        boolean stored = expectedDigest != null && Files.exists(blobPath(hex(expectedDigest)));
+        return new Upload(name, expectedDigest, !stored);
+    }
+
+    /**
+     * Points a name at the content of a completed upload, storing the content unless it is already there.
+     *
+     * @param name   The object name.
+     * @param upload The completed upload, closed by the caller afterwards.
+     * @param append Whether the content is added to the end of the name's current content.
+     * @return Whether the upload was stored, false when it does not match the digest the client announced,
+     *         or when that content was deleted while the body was being received without being written.
+     * @throws IOException If the content cannot be stored.
+     */
+    synchronized boolean commit(String name, Upload upload, boolean append) throws IOException {
+        byte[] digest = upload.digest.digest();
+        boolean written = upload.channel != null;
+        if (upload.expected != null && !Arrays.equals(digest, upload.expected))
+            return false;
+        if (!written && !Files.exists(blobPath(hex(digest))))
+            return false;
+        if (written)
+            upload.channel.close();
+        Path content = written ? upload.path : blobPath(hex(digest));
+        String previous = names.get(name);
+        if (append && previous != null) {
+            // the digest of the joined content covers the old content too, so it is hashed again
+            MessageDigest joined = sha256();
+            Path joinedPath = newTempFile();
+            try (FileChannel out = FileChannel.open(joinedPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                copy(blobPath(previous), out, joined);
+                copy(content, out, joined);
+            }
+            Files.deleteIfExists(upload.path);
+            upload.path = joinedPath;
+            digest = joined.digest();
+            content = joinedPath;
+            written = true;
+        }
+        String hex = hex(digest);
+        Path blob = blobPath(hex);
+        if (!written) {
+            ++skippedWrites;
+            ++dedupedUploads;
+            dedupedBytes += upload.received;
+        } else if (Files.exists(blob)) {
+            ++dedupedUploads;
+            dedupedBytes += Files.size(content);
+        } else {
+            Files.createDirectories(blob.getParent());
+            Files.move(content, blob, StandardCopyOption.ATOMIC_MOVE);
+        }
+        link(name, hex, previous);
+        return true;
+    }
+
+    private void link(String name, String digest, String previous) throws IOException {
+        if (digest.equals(previous))
+            return;
+        // the blob is in place before its line and deleted after the line that drops it,
+        // so a crash in between only leaves an unreferenced blob, swept on the next open
+        ByteBuffer line = ByteBuffer.wrap((digest + " " + name + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining())
+            index.write(line);
+        ++indexLines;
+        names.put(name, digest);
+        references.merge(digest, 1, Integer::sum);
+        if (previous != null && references.merge(previous, -1, Integer::sum) == 0) {
+            references.remove(previous);
+            Files.deleteIfExists(blobPath(previous));
+            ++deletedBlobs;
+        }
+        if (indexLines > 2 * names.size() + 1024)
+            rewriteIndex();
+    }
+
+    /**
+     * Replaces the index with one line per name, dropping the lines of names that were pointed elsewhere.
+     */
+    private void rewriteIndex() throws IOException {
+        Path rewritten = newTempFile();
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> entry : names.entrySet())
+            lines.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        Files.write(rewritten, lines.toString().getBytes(StandardCharsets.UTF_8));
+        index.close();
+        Files.move(rewritten, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        index = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexLines = names.size();
+    }
+
+    private void loadIndex() throws IOException {
+        if (!Files.exists(indexFile))
+            return;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // a line cut by a crash is ignored
+                if (line.length() > DIGEST_HEX + 1 && line.charAt(DIGEST_HEX) == ' ')
+                    names.put(line.substring(DIGEST_HEX + 1), line.substring(0, DIGEST_HEX));
+                ++indexLines;
+            }
+        }
+        for (String digest : names.values())
+            references.merge(digest, 1, Integer::sum);
+    }
+
+    /**
+     * Deletes leftover temporary files and every blob that no name refers to.
+     */
+    private void sweep() throws IOException {
+        try (Stream<Path> files = Files.list(temp)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                Files.deleteIfExists(file);
+        }
+        try (Stream<Path> tree = Files.walk(blobs)) {
+            for (Path file : (Iterable<Path>) tree::iterator) {
+                if (Files.isRegularFile(file) && !references.containsKey(file.getFileName().toString())) {
+                    Files.delete(file);
+                    ++deletedBlobs;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized String getStats() {
+        return String.format("names=%d, blobs=%d, deduplicated uploads=%d (%d bytes), skipped writes=%d, deleted blobs=%d",
+                names.size(), references.size(), dedupedUploads, dedupedBytes, skippedWrites, deletedBlobs);
+    }
+
+    private Path blobPath(String digest) {
+        return blobs.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest);
+    }
+
+    private Path newTempFile() {
+        return temp.resolve(UUID.randomUUID() + ".tmp");
+    }
+
+    private static void copy(Path from, FileChannel out, MessageDigest digest) throws IOException {
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.close();
+    }
+
+    /**
+     * A body being received: hashed as it arrives and written to a temporary file,
+     * unless the client announced content that is already stored.
+     */
+    class Upload implements Write {
+        private final String name;
+        private final MessageDigest digest = sha256();
+        private final byte[] expected;
+        private Path path;
+        private final FileChannel channel;
+        private long received;
+
+        private Upload(String name, byte[] expected, boolean write) throws IOException {
+            this.name = name;
+            this.expected = expected;
+            path = newTempFile();
+            channel = write ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) : null;
+        }
+
+        @Override
+        public void onBody(byte[] data, int offset, int count) throws IOException {
+            digest.update(data, offset, count);
+            if (channel != null) {
+                ByteBuffer bytes = ByteBuffer.wrap(data, offset, count);
+                while (bytes.hasRemaining())
+                    channel.write(bytes);
+            }
+            received += count;
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return received;
+        }
+
+        @Override
+        public boolean commit(boolean append) throws IOException {
+            return BlobStore.this.commit(name, this, append);
+        }
+
+        /**
+         * Deletes the temporary file if the content has not been moved into the store.
+         */
+        @Override
+        public void close() throws IOException {
+            if (channel != null)
+                channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
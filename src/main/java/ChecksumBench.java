@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures what the CRC32C field of a packet costs: the time to encode full packets and decode them again,
+ * as the sender and the receiver do, with and without the checksum, per gigabyte of payload.
+ * The two are run in turns for several rounds, so both see the same JIT state and machine load.
+ * <p>
+ * Usage: java ChecksumBench [gigabytes per round] [rounds]
+ */
+public class ChecksumBench {
+    private static final int DEFAULT_ROUNDS = 5;
+    private static final int PAYLOAD = Packet.MAX_LEN - Packet.MIN_LEN;
+    private static final long GIGABYTE = 1L << 30;
+    // keeps the results alive, so the work measured is not optimized away
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        double gigabytes = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        long packets = (long) (gigabytes * GIGABYTE / PAYLOAD);
+
+        byte[] payload = new byte[PAYLOAD];
+        new Random(1).nextBytes(payload);
+        Packet.Builder builder = new Packet.Builder().setType(Packet.DATA).setSequenceNumber(1)
+                .setPeerAddress(InetAddress.getLoopbackAddress()).setPortNumber(8080).setPayload(payload);
+        Packet plain = builder.setChecksum(false).create();
+        Packet checked = builder.setChecksum(true).create();
+
+        // the first round is not reported, so the JIT has compiled both paths
+        run(plain, packets);
+        run(checked, packets);
+        System.out.printf("%d packets of %d bytes per round%n", packets, PAYLOAD);
+        System.out.printf("%-6s %14s %14s %14s%n", "round", "plain ms/GB", "crc32c ms/GB", "overhead");
+        for (int round = 1; round <= rounds; ++round) {
+            double plainMillis = run(plain, packets) / gigabytes;
+            double checkedMillis = run(checked, packets) / gigabytes;
+            System.out.printf("%-6d %14.0f %14.0f %+8.0f ms %+5.1f%%%n", round, plainMillis, checkedMillis,
+                    checkedMillis - plainMillis, 100 * (checkedMillis - plainMillis) / plainMillis);
+        }
+    }
+
+    /**
+     * Encodes and decodes the packet over and over, and returns the time taken in milliseconds.
+     */
+    private static double run(Packet packet, long packets) throws IOException {
+        long start = System.nanoTime();
+        for (long i = 0; i < packets; ++i) {
+            ByteBuffer encoded = packet.toBuffer();
+            sink += Packet.fromBuffer(encoded).getPayload().length;
+        }
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Copies the objects of a cluster to the nodes that own them after nodes were added or removed.
+ * The ring only moves the arcs next to the changed nodes, so about 1/N of the objects are copied.
+ * Every node is listed, and each object its owner does not have is read from a node that does and written to
+ * the owner with batch requests, or with a raw GET and a POST when it is too large for a batch.
+ * An object the owner already has is skipped, as a client may have written it there since the ring changed.
+ * The old copies stay where they are but are no longer served, a request for them goes to the owner.
+ * In a replicated cluster every replica missing an object gets a copy, sent one by one as a replica would
+ * with its version stamp, so it never replaces a newer copy.
+ * The nodes must already run with the new ring, they are all reached through the router.
+ *
+ * <p>Usage: java ClusterRebalance [--replicas n] ports [removed ports], such as "8080,8081,8082,8083" "8084"
+ */
+public class ClusterRebalance {
+    private static final int BATCH = 100;
+    private static final int PAGE = 1000;
+    // marks the requests as passed on, so no node forwards them to another
+    private static final String VIA = "Via: 1.0 rebalance\r\n";
+    // marks the copies in a replicated cluster as sent by a replica, which keeps the stamp given
+    private static final String REPLICA = "X-Replica: rebalance\r\n";
+
+    public static void main(String[] args) throws IOException, URISyntaxException {
+        int replicas = 1;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("--replicas")) {
+            replicas = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (args.length - first < 1 || args.length - first > 2) {
+            System.out.println("Usage: java ClusterRebalance [--replicas n] ports [removed ports]");
+            return;
+        }
+        HashRing ring = HashRing.parse(args[first]);
+        List<Integer> nodes = new ArrayList<>(ring.nodes());
+        if (args.length - first == 2)
+            nodes.addAll(HashRing.parse(args[first + 1]).nodes());
+        long start = System.nanoTime();
+        // the nodes holding each object
+        Map<String, Set<Integer>> holders = new TreeMap<>();
+        for (int node : nodes) {
+            List<String> names = list(node);
+            for (String name : names)
+                holders.computeIfAbsent(name, held -> new HashSet<>()).add(node);
+            System.out.println("Node " + node + ": " + names.size() + " objects");
+        }
+        // the objects each replica is missing, grouped by a node to copy them from and the replica
+        Map<List<Integer>, List<String>> moves = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<Integer>> object : holders.entrySet()) {
+            List<Integer> owners = ring.replicas(object.getKey(), replicas);
+            int from = object.getValue().iterator().next();
+            for (int owner : owners) {
+                if (object.getValue().contains(owner))
+                    from = owner;
+            }
+            for (int owner : owners) {
+                if (!object.getValue().contains(owner))
+                    moves.computeIfAbsent(Arrays.asList(from, owner), move -> new ArrayList<>()).add(object.getKey());
+            }
+        }
+        int copied = 0;
+        for (Map.Entry<List<Integer>, List<String>> move : moves.entrySet()) {
+            int from = move.getKey().get(0);
+            int to = move.getKey().get(1);
+            List<String> names = move.getValue();
+            if (replicas > 1) {
+                for (String name : names) {
+                    if (copyReplica(from, to, name))
+                        ++copied;
+                }
+            } else {
+                for (int i = 0; i < names.size(); i += BATCH)
+                    copied += copy(from, to, names.subList(i, Math.min(i + BATCH, names.size())));
+            }
+        }
+        System.out.printf("Copied %d of %d objects (%.1f%%) in %.1f s%n",
+                copied, holders.size(), holders.isEmpty() ? 0 : 100.0 * copied / holders.size(), (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Returns the URL paths of the objects a node stores, from the pages of its listing.
+     */
+    static List<String> list(int node) throws IOException {
+        List<String> names = new ArrayList<>();
+        String cursor = "";
+        do {
+            HttpClient.Response listing = exchange("GET /?limit=" + PAGE + "&cursor=" + cursor + " HTTP/1.0\r\n" + VIA + "\r\n", null, node);
+            String json = new String(listing.body.toByteArray(), StandardCharsets.UTF_8);
+            int files = json.indexOf("\"files\":");
+            if (listing.statusCode != 200 || files < 0)
+                throw new IOException("Node " + node + " did not list its objects: " + listing.head.split("\r\n")[0]);
+            int[] position = {skip(json, files + 8, "[")};
+            while (json.charAt(position[0]) == '"') {
+                String key = readString(json, position);
+                // the keys of objects are their paths with ".txt" added, other files are not served
+                if (key.endsWith(".txt"))
+                    names.add("/" + key.substring(0, key.length() - 4));
+                position[0] = skip(json, position[0], ",");
+            }
+            int next = json.indexOf("\"next_cursor\":", position[0]);
+            cursor = null;
+            if (next >= 0) {
+                position[0] = skip(json, next + 14, "");
+                if (json.charAt(position[0]) == '"')
+                    cursor = readString(json, position);
+            }
+        } while (cursor != null);
+        return names;
+    }
+
+    /**
+     * Copies objects from a node to their owner, unless the owner has them already.
+     *
+     * @return The number of objects copied.
+     */
+    private static int copy(int from, int to, List<String> names) throws IOException, URISyntaxException {
+        byte[] asked = String.join("\n", names).getBytes(StandardCharsets.UTF_8);
+        List<String> missing = new ArrayList<>();
+        for (BatchFrames.Frame frame : HttpClient.batch("http://localhost", "/batch/get", asked, names.size(), to, VIA, false)) {
+            if (frame.status == 404)
+                missing.add(frame.name);
+        }
+        if (missing.isEmpty())
+            return 0;
+        asked = String.join("\n", missing).getBytes(StandardCharsets.UTF_8);
+        List<BatchFrames.Frame> objects = new ArrayList<>();
+        int copied = 0;
+        for (BatchFrames.Frame frame : HttpClient.batch("http://localhost", "/batch/get", asked, missing.size(), from, VIA, false)) {
+            if (frame.status == 200)
+                objects.add(new BatchFrames.Frame(0, frame.name, frame.body));
+            else if (frame.status == 413 && copyLarge(from, to, frame.name))
+                ++copied;
+            else
+                System.out.println("Not copied: " + frame.name + " (" + frame.status + ")");
+        }
+        if (objects.isEmpty())
+            return copied;
+        for (BatchFrames.Frame frame : HttpClient.batch("http://localhost", "/batch/put", BatchFrames.encode(objects), objects.size(), to, VIA, false)) {
+            if (frame.status == 200 || frame.status == 201)
+                ++copied;
+            else
+                System.out.println("Not copied: " + frame.name + " (" + frame.status + ")");
+        }
+        return copied;
+    }
+
+    /**
+     * Copies an object too large for a batch with a raw GET from one node and a POST to the other.
+     */
+    private static boolean copyLarge(int from, int to, String name) throws IOException {
+        HttpClient.Response object = exchange("GET " + name + "?raw HTTP/1.0\r\n" + VIA + "\r\n", null, from);
+        if (object.statusCode != 200 || object.isTruncated()) {
+            System.out.println("Not copied: " + name + " (" + object.statusCode + ")");
+            return false;
+        }
+        byte[] body = object.body.toByteArray();
+        HttpClient.Response stored = exchange("POST " + name + " HTTP/1.0\r\n" + VIA + "Content-Length: " + body.length + "\r\n\r\n", body, to);
+        if (stored.statusCode != 200 && stored.statusCode != 201) {
+            System.out.println("Not copied: " + name + " (" + stored.statusCode + ")");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies an object to a replica with the version stamp it has on the node it is read from.
+     */
+    private static boolean copyReplica(int from, int to, String name) throws IOException {
+        HttpClient.Response object = exchange("GET " + name + "?raw HTTP/1.0\r\n" + REPLICA + "\r\n", null, from);
+        String version = null;
+        for (String line : object.head.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Object-Version:", 0, 15))
+                version = line.substring(15).trim();
+        }
+        if (object.statusCode != 200 || object.isTruncated()) {
+            System.out.println("Not copied: " + name + " (" + object.statusCode + ")");
+            return false;
+        }
+        byte[] body = object.body.toByteArray();
+        // an object stored before the cluster was replicated has no stamp, the replica gives it one
+        HttpClient.Response stored = exchange("POST " + name + " HTTP/1.0\r\n" + REPLICA
+                + (version != null ? "Object-Version: " + version + "\r\n" : "")
+                + "Content-Length: " + body.length + "\r\n\r\n", body, to);
+        if (stored.statusCode != 200 && stored.statusCode != 201) {
+            System.out.println("Not copied: " + name + " (" + stored.statusCode + ")");
+            return false;
+        }
+        return true;
+    }
+
+    private static HttpClient.Response exchange(String head, byte[] body, int node) throws IOException {
+        byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+        byte[] request = body == null ? headBytes : Arrays.copyOf(headBytes, headBytes.length + body.length);
+        if (body != null)
+            System.arraycopy(body, 0, request, headBytes.length, body.length);
+        return HttpClient.exchange(request, node, false);
+    }
+
+    /**
+     * Returns the position after the whitespace and the given separators at a position.
+     */
+    private static int skip(String json, int position, String separators) {
+        while (position < json.length() && (Character.isWhitespace(json.charAt(position)) || separators.indexOf(json.charAt(position)) >= 0))
+            ++position;
+        return position;
+    }
+
+    /**
+     * Reads the JSON string at the position, which is moved past it.
+     */
+    private static String readString(String json, int[] position) {
+        StringBuilder value = new StringBuilder();
+        int i = position[0] + 1;
+        for (char c = json.charAt(i); c != '"'; c = json.charAt(++i)) {
+            if (c == '\\') {
+                c = json.charAt(++i);
+                if (c == 'u') {
+                    c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+                    i += 4;
+                } else if (c == 'n') {
+                    c = '\n';
+                } else if (c == 't') {
+                    c = '\t';
+                } else if (c == 'r') {
+                    c = '\r';
+                } else if (c == 'b') {
+                    c = '\b';
+                } else if (c == 'f') {
+                    c = '\f';
+                }
+            }
+            value.append(c);
+        }
+        position[0] = i + 1;
+        return value.toString();
+    }
+}
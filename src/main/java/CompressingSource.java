@@ -0,0 +1,143 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses another source with a Deflater while it is being sent, in the gzip or deflate content coding,
+ * so a response body is never held whole in memory to be compressed.
+ * Also negotiates the coding of a response from the request's Accept-Encoding.
+ */
+class CompressingSource implements PayloadSource {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    // a body that fits in one packet takes one packet either way
+    static final int MIN_LENGTH = 1013;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final PayloadSource source;
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[16 * 1024];
+    private byte[] header;
+    private byte[] trailer;
+    private int position;
+
+    /**
+     * Constructs a compressing source.
+     *
+     * @param source   The uncompressed bytes, closed with this source.
+     * @param encoding GZIP or DEFLATE.
+     */
+    CompressingSource(PayloadSource source, String encoding) {
+        this.source = source;
+        gzip = GZIP.equals(encoding);
+        // gzip wraps raw deflate data in its own header and trailer, deflate is the zlib format
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        header = gzip ? GZIP_HEADER : null;
+    }
+
+    /**
+     * Returns the coding to use for a response, GZIP or DEFLATE, or null to send it uncompressed.
+     * gzip is preferred, as cached fragments are kept in it.
+     *
+     * @param acceptEncoding The Accept-Encoding header of the request, or null.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?"))
+                continue;
+            if (name.equals(GZIP) || name.equals("*"))
+                return GZIP;
+            if (name.equals(DEFLATE))
+                deflate = true;
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Compresses bytes held in memory, for a body whose compressed length must be known before it is sent.
+     */
+    static byte[] compress(byte[] data, String encoding) throws IOException {
+        return drain(new CompressingSource(PayloadSource.of(data), encoding));
+    }
+
+    /**
+     * Reads a source to its end, compressed.
+     */
+    static byte[] compress(PayloadSource data, String encoding) throws IOException {
+        return drain(new CompressingSource(data, encoding));
+    }
+
+    private static byte[] drain(CompressingSource source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[16 * 1024];
+        try (CompressingSource in = source) {
+            int count;
+            while ((count = in.read(chunk, 0, chunk.length)) >= 0)
+                out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        if (header != null) {
+            int count = Math.min(length, header.length - position);
+            System.arraycopy(header, position, dst, offset, count);
+            position += count;
+            if (position == header.length) {
+                header = null;
+                position = 0;
+            }
+            return count;
+        }
+        while (!deflater.finished()) {
+            if (deflater.needsInput()) {
+                int count = source.read(input, 0, input.length);
+                if (count < 0) {
+                    deflater.finish();
+                } else {
+                    deflater.setInput(input, 0, count);
+                    if (gzip)
+                        crc.update(input, 0, count);
+                }
+            }
+            int count = deflater.deflate(dst, offset, length);
+            if (count > 0)
+                return count;
+        }
+        if (gzip && trailer == null)
+            trailer = gzipTrailer();
+        if (trailer == null || position == trailer.length)
+            return -1;
+        int count = Math.min(length, trailer.length - position);
+        System.arraycopy(trailer, position, dst, offset, count);
+        position += count;
+        return count;
+    }
+
+    private byte[] gzipTrailer() {
+        long value = crc.getValue();
+        long size = deflater.getBytesRead();
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 4; ++i) {
+            bytes[i] = (byte) (value >>> (8 * i));
+            bytes[4 + i] = (byte) (size >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        source.close();
+    }
+}
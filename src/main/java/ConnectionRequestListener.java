@@ -0,0 +1,17 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Receives the connection requests of other clients that reach a server while it serves a connection.
+ */
+interface ConnectionRequestListener {
+
+    /**
+     * Called for every SYN read during a connection.
+     *
+     * @param syn    The SYN packet.
+     * @param router The address it came from, where an answer is sent.
+     * @throws IOException If the request cannot be answered.
+     */
+    void onConnectionRequest(Packet syn, SocketAddress router) throws IOException;
+}
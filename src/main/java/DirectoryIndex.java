@@ -0,0 +1,258 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Sorted in-memory index of the names in the storage directory.
+ * It is filled once by a scan, then kept current by a WatchService thread and by the server's own writes,
+ * so a listing never has to read the directory again. Hidden names, used for temporary uploads
+ * and the data of other storage engines, are left out.
+ * In the sharded layout the index holds the keys of all objects instead, found by walking the tree once;
+ * only the server's own writes are tracked afterwards, as watching every shard is not worth the handles.
+ * Closing it stops the watcher and waits for its thread.
+ */
+class DirectoryIndex implements Closeable {
+    private final Path directory;
+    private final boolean sharded;
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+    // bumped on every change, the rendered listing is only reused while it matches
+    private final AtomicLong version = new AtomicLong();
+    private volatile Listing listing = new Listing(-1, null);
+    private WatchService watcher;
+    private Thread thread;
+
+    DirectoryIndex(Path directory, boolean sharded) {
+        this.directory = directory;
+        this.sharded = sharded;
+    }
+
+    /**
+     * Scans the directory and starts watching it for changes made outside the server.
+     *
+     * @throws IOException If the directory cannot be read or watched.
+     */
+    void start() throws IOException {
+        if (sharded) {
+            scanShards();
+            return;
+        }
+        WatchService watcher = directory.getFileSystem().newWatchService();
+        try {
+            // registered before the scan so nothing created in between is missed
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            rescan();
+        } catch (IOException e) {
+            watcher.close();
+            throw e;
+        }
+        Thread thread = new Thread(() -> watch(watcher), "directory-index");
+        thread.setDaemon(true);
+        thread.start();
+        this.watcher = watcher;
+        this.thread = thread;
+    }
+
+    /**
+     * Closes the WatchService, which ends the watcher thread, and waits for the thread to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watcher == null)
+            return;
+        watcher.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        String name = ((Path) event.context()).toString();
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                            add(name);
+                        else
+                            remove(name);
+                    }
+                }
+                if (!key.reset()) {
+                    System.out.println("Directory index: " + directory + " is no longer watched");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // server shutting down
+        } catch (IOException e) {
+            System.out.println("Directory index: rescan failed, " + e.getMessage());
+        }
+    }
+
+    private void rescan() throws IOException {
+        ConcurrentSkipListSet<String> current = new ConcurrentSkipListSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.startsWith("."))
+                    current.add(name);
+            }
+        }
+        names.retainAll(current);
+        names.addAll(current);
+        version.incrementAndGet();
+    }
+
+    private void scanShards() throws IOException {
+        try (Stream<Path> tree = Files.walk(directory)) {
+            tree.filter(Files::isRegularFile).forEach(file -> {
+                String key = ShardedLayout.keyOf(directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"));
+                if (key != null && !key.startsWith("."))
+                    names.add(key);
+            });
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Records an object written by the server: its key in the sharded layout, otherwise the name of the
+     * entry in the base directory that holds it.
+     */
+    void addKey(String key) {
+        add(sharded ? key : key.split("/")[0]);
+    }
+
+    /**
+     * Records a name written by the server, without waiting for the watcher to report it.
+     */
+    void add(String name) {
+        if (!name.startsWith(".") && names.add(name))
+            version.incrementAndGet();
+    }
+
+    void remove(String name) {
+        if (names.remove(name))
+            version.incrementAndGet();
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * Returns the names in sorted order, a live view of the index.
+     */
+    NavigableSet<String> names() {
+        return names;
+    }
+
+    /**
+     * Returns one page of a sorted listing: at most limit names that start with a prefix and come after a name.
+     * Only the names on the page and one more are visited, so a page costs the same however many names there are.
+     *
+     * @param names  The names in sorted order.
+     * @param prefix The prefix of the names listed, "" for all.
+     * @param after  The last name of the previous page, or null for the first page.
+     * @param limit  The most names on the page, at least 1.
+     */
+    static Page page(NavigableSet<String> names, String prefix, String after, int limit) {
+        NavigableSet<String> tail = after != null && after.compareTo(prefix) >= 0 ? names.tailSet(after, false) : names.tailSet(prefix, true);
+        List<String> page = new ArrayList<>(Math.min(limit, 64));
+        String next = null;
+        for (String name : tail) {
+            if (!name.startsWith(prefix))
+                break;
+            if (page.size() == limit) {
+                next = encodeCursor(page.get(limit - 1));
+                break;
+            }
+            page.add(name);
+        }
+        return new Page(page, next);
+    }
+
+    /**
+     * Returns the cursor a client sends back for the page after the given name. It is opaque to clients,
+     * so what it holds can change without them noticing.
+     */
+    static String encodeCursor(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the name a cursor continues after, or null when it is not a cursor.
+     */
+    static String decodeCursor(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the encoded "files" value of the listing response, rendered again only after a change.
+     */
+    byte[] getListing() {
+        Listing cached = listing;
+        long current = version.get();
+        if (cached.version != current) {
+            cached = new Listing(current, renderListing(names));
+            listing = cached;
+        }
+        return cached.content;
+    }
+
+    /**
+     * Renders the "files" value of a listing response, an array of the names, for a member of the response object.
+     */
+    static byte[] renderListing(Iterable<String> names) {
+        JsonWriter json = new JsonWriter(new ResponseBody(), 1).beginArray();
+        for (String name : names)
+            json.value(name);
+        return json.endArray().finish().toByteArray();
+    }
+
+    /**
+     * A page of a listing and the cursor of the next page, null after the last.
+     */
+    static final class Page {
+        final List<String> names;
+        final String next;
+
+        Page(List<String> names, String next) {
+            this.names = names;
+            this.next = next;
+        }
+    }
+
+    private static final class Listing {
+        final long version;
+        final byte[] content;
+
+        Listing(long version, byte[] content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of rendered GET response fragments, keyed by storage key, or by entity tag when the backend
+ * is content-addressed so that objects with the same content share one entry.
+ * An entry remembers the entity tag of the object it was rendered from, so an object
+ * changed behind the server's back is detected on the next hit; the server's own writes invalidate directly.
+ */
+class FileCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Constructs a cache.
+     *
+     * @param maxBytes The byte budget for all cached fragments, 0 disables caching.
+     */
+    FileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        // a single huge file must not flush the whole hot set
+        maxEntryBytes = maxBytes / 8;
+    }
+
+    /**
+     * Returns the cached fragment for the object, or null when it is missing or stale.
+     *
+     * @param key  The cache key of the object.
+     * @param etag The current entity tag of the object, checked for changes since the fragment was rendered.
+     */
+    synchronized byte[] get(String key, String etag) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        if (!entry.etag.equals(etag)) {
+            remove(key);
+            ++invalidations;
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return entry.content;
+    }
+
+    /**
+     * Caches a fragment rendered from the object, evicting the least recently used entries to stay in budget.
+     *
+     * @param key     The cache key of the object.
+     * @param etag    The object's entity tag when it was read.
+     * @param content The rendered and encoded fragment.
+     */
+    synchronized void put(String key, String etag, byte[] content) {
+        if (content.length > maxEntryBytes)
+            return;
+        remove(key);
+        entries.put(key, new Entry(etag, content));
+        currentBytes += content.length;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            currentBytes -= eldest.next().getValue().content.length;
+            eldest.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Drops the entry of an object that has just been written.
+     */
+    synchronized void invalidate(String key) {
+        if (remove(key))
+            ++invalidations;
+    }
+
+    private boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null)
+            return false;
+        currentBytes -= entry.content.length;
+        return true;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    synchronized String getStats() {
+        return String.format("entries=%d, bytes=%d/%d, hit rate=%.2f (hits=%d, misses=%d), evictions=%d, invalidations=%d",
+                entries.size(), currentBytes, maxBytes, getHitRate(), hits, misses, evictions, invalidations);
+    }
+
+    private static final class Entry {
+        final String etag;
+        final byte[] content;
+
+        Entry(String etag, byte[] content) {
+            this.etag = etag;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a file into packet payloads without holding it in the heap.
+ * Small files are read region by region with positional FileChannel reads; large files are memory-mapped,
+ * so each payload is a single copy out of the page cache.
+ */
+class FileSource implements PayloadSource {
+    // below this size a mapping costs more than the reads it saves
+    static final long MAP_THRESHOLD = 256 * 1024;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    private final MappedByteBuffer mapped;
+    private long position;
+
+    /**
+     * Opens a file, fixing the number of bytes that will be sent to its current size.
+     *
+     * @param file The file to be sent.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    FileSource(Path file) throws IOException {
+        this(file, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens a range of a file, for a 206 Partial Content response.
+     *
+     * @param file   The file to be sent.
+     * @param offset The position of the first byte to send.
+     * @param count  The number of bytes to send, cut at the current end of the file.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    FileSource(Path file, long offset, long count) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            start = Math.min(offset, size);
+            length = Math.min(count, size - start);
+            // a mapping is limited to 2 GB, larger ranges are read instead
+            mapped = length >= MAP_THRESHOLD && length <= Integer.MAX_VALUE
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, start, length) : null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int count) throws IOException {
+        if (position == length)
+            return -1;
+        int wanted = (int) Math.min(count, length - position);
+        if (mapped != null) {
+            mapped.get(dst, offset, wanted);
+            position += wanted;
+            return wanted;
+        }
+        int read = channel.read(ByteBuffer.wrap(dst, offset, wanted), start + position);
+        if (read < 0)
+            throw new IOException("File truncated while it was being sent");
+        position += read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
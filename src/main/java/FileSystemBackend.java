@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.NavigableSet;
+
+/**
+ * Keeps every object in a file of its own under the base directory, in the flat or the sharded layout.
+ * Bodies are written to a temporary file and renamed into place with FileUpload, and sent from the file with FileSource.
+ * Files added or removed outside the server show up in listings through the DirectoryIndex.
+ */
+class FileSystemBackend implements StorageBackend {
+    private final Path base;
+    private final boolean sharded;
+    private final DirectoryIndex directoryIndex;
+
+    /**
+     * Opens the base directory and indexes the names in it.
+     *
+     * @param base    The base directory.
+     * @param sharded Whether files are laid out in hashed subdirectories, see ShardedLayout.
+     * @throws IOException If the directory cannot be read or watched.
+     */
+    FileSystemBackend(Path base, boolean sharded) throws IOException {
+        this.base = base.toAbsolutePath().normalize();
+        this.sharded = sharded;
+        directoryIndex = new DirectoryIndex(base, sharded);
+        directoryIndex.start();
+    }
+
+    private Path path(String key) {
+        return sharded ? ShardedLayout.resolve(base, key) : base.resolve(key);
+    }
+
+    /**
+     * Returns the size and modification time of the file, with an entity tag made of both.
+     */
+    @Override
+    public Stat stat(String key) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path(key), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile())
+            return null;
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        return new Stat(size, lastModified, "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"");
+    }
+
+    /**
+     * Opens the file. Uploads are renamed into place, so once open it is read to the end even if a POST replaces it.
+     */
+    @Override
+    public PayloadSource open(String key, long offset, long count) throws IOException {
+        Path file = path(key);
+        if (!Files.isRegularFile(file))
+            return null;
+        return new FileSource(file, offset, count);
+    }
+
+    @Override
+    public Write startWrite(String key, byte[] digest) throws IOException {
+        Path file = path(key);
+        if (sharded)
+            Files.createDirectories(file.getParent());
+        return new Upload(key, new FileUpload(file));
+    }
+
+    @Override
+    public Write resumeWrite(String key, String uploadId) throws IOException {
+        Path file = path(key);
+        if (sharded)
+            Files.createDirectories(file.getParent());
+        return new Upload(key, FileUpload.resume(file, uploadId));
+    }
+
+    @Override
+    public long uploadOffset(String key, String uploadId) throws IOException {
+        return FileUpload.getOffset(path(key), uploadId);
+    }
+
+    /**
+     * Deletes the part files of resumable uploads, next to their targets anywhere under the base directory.
+     */
+    @Override
+    public int removeAbandonedUploads(long maxAgeMillis) throws IOException {
+        return FileUpload.removeAbandoned(base, maxAgeMillis);
+    }
+
+    /**
+     * Returns the names in the index: the entries of the base directory, or the keys in the sharded layout.
+     */
+    @Override
+    public NavigableSet<String> keys() {
+        return directoryIndex.names();
+    }
+
+    @Override
+    public byte[] listing() {
+        return directoryIndex.getListing();
+    }
+
+    /**
+     * Stops watching the base directory.
+     */
+    @Override
+    public void close() throws IOException {
+        directoryIndex.close();
+    }
+
+    /**
+     * A body written to a temporary file, recorded in the index once it is in place.
+     */
+    private final class Upload implements Write {
+        private final String key;
+        private final FileUpload upload;
+
+        Upload(String key, FileUpload upload) {
+            this.key = key;
+            this.upload = upload;
+        }
+
+        @Override
+        public void onBody(byte[] data, int offset, int count) throws IOException {
+            upload.onBody(data, offset, count);
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return upload.getBytesWritten();
+        }
+
+        @Override
+        public boolean commit(boolean append) throws IOException {
+            upload.commit(append);
+            directoryIndex.addKey(key);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            upload.close();
+        }
+    }
+}
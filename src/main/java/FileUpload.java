@@ -0,0 +1,168 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Writes a POST body to a temporary file next to its target while the packets arrive,
+ * then moves it into place in one step, so readers see either the old or the new content.
+ * A resumable upload keeps its file, named by the client's upload id, when the connection fails,
+ * so the next request can continue where the last one stopped.
+ */
+class FileUpload implements HttpRequestParser.BodySink, Closeable {
+    // hidden, so temporary files are left out of listings
+    static final String TEMP_PREFIX = ".upload-";
+    private static final String PART_SUFFIX = ".part";
+    private static final int MAX_ID_LENGTH = 64;
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final boolean resumable;
+    private long written;
+    private boolean committed;
+
+    /**
+     * Creates the temporary file for an upload.
+     *
+     * @param target The file the body is meant for.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    FileUpload(Path target) throws IOException {
+        this.target = target;
+        // created with the default permissions, so the file keeps them once it is moved into place
+        temp = target.toAbsolutePath().resolveSibling(TEMP_PREFIX + UUID.randomUUID() + ".tmp");
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        resumable = false;
+    }
+
+    private FileUpload(Path target, String uploadId) throws IOException {
+        this.target = target;
+        temp = partPath(target, uploadId);
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        written = channel.size();
+        channel.position(written);
+        resumable = true;
+    }
+
+    /**
+     * Continues a resumable upload, appending to the bytes received so far, or starts it.
+     *
+     * @param target   The file the body is meant for.
+     * @param uploadId The id the client chose for the upload, checked with isValidId.
+     * @throws IOException If the file of the upload cannot be opened.
+     */
+    static FileUpload resume(Path target, String uploadId) throws IOException {
+        return new FileUpload(target, uploadId);
+    }
+
+    /**
+     * Returns the number of bytes a resumable upload has received, 0 when it has not started.
+     */
+    static long getOffset(Path target, String uploadId) throws IOException {
+        Path part = partPath(target, uploadId);
+        return Files.exists(part) ? Files.size(part) : 0;
+    }
+
+    /**
+     * Returns whether an upload id is safe to use in a file name: letters, digits, '-' and '_'.
+     */
+    static boolean isValidId(String uploadId) {
+        if (uploadId == null || uploadId.isEmpty() || uploadId.length() > MAX_ID_LENGTH)
+            return false;
+        for (int i = 0; i < uploadId.length(); ++i) {
+            char c = uploadId.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the files of resumable uploads under a directory that have not grown for the given time,
+     * left by clients that never came back to finish them.
+     *
+     * @return The number of files deleted.
+     */
+    static int removeAbandoned(Path directory, long maxAgeMillis) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int removed = 0;
+        try (Stream<Path> tree = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) tree::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(TEMP_PREFIX) || !name.endsWith(PART_SUFFIX))
+                    continue;
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < cutoff && Files.deleteIfExists(file))
+                        ++removed;
+                } catch (NoSuchFileException e) {
+                    // deleted meanwhile
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static Path partPath(Path target, String uploadId) {
+        // the target's name is part of it, so one id cannot continue an upload meant for another file
+        return target.toAbsolutePath().resolveSibling(TEMP_PREFIX + target.getFileName() + "-" + uploadId + PART_SUFFIX);
+    }
+
+    @Override
+    public void onBody(byte[] data, int offset, int count) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(data, offset, count);
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        written += count;
+    }
+
+    long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Opens the bytes received so far to be sent on, such as the body of a request passed to another node.
+     */
+    PayloadSource openReceived() throws IOException {
+        return new FileSource(temp, 0, written);
+    }
+
+    /**
+     * Puts the received body in place.
+     *
+     * @param append Whether to add the body to the end of an existing target instead of replacing it.
+     * @throws IOException If the target cannot be written.
+     */
+    void commit(boolean append) throws IOException {
+        if (append && Files.exists(target)) {
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                for (long position = 0; position < written; )
+                    position += channel.transferTo(position, written - position, out);
+            }
+            channel.close();
+            Files.delete(temp);
+        } else {
+            channel.close();
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+
+    /**
+     * Deletes the temporary file if the upload has not been moved into place,
+     * unless the upload is resumable.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (!committed && !resumable)
+            Files.deleteIfExists(temp);
+    }
+}
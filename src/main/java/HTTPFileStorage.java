@@ -6,370 +6,1653 @@
 import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
 
 public class HTTPFileStorage {
-    private static String host;
-    private String requestLine;
     private final String baseDirectory;
     private final int port;
     private final boolean verbose;
-    private static int statusCode = 200;
-    private boolean overWrite=true;
+    private static long cacheBytes = 64L * 1024 * 1024;
+    private final FileCache fileCache;
+    private static String layout = "flat";
+    private static String storageEngine = "file";
+    private static LogStore.Durability durability = LogStore.Durability.INTERVAL;
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    // a raw body up to this size is compressed before it is sent, so it has a Content-Length; a larger one is sent as it
+    // is, since a body compressed while it is sent has no length, and a client could neither tell it was cut off nor resume it
+    private static final long MAX_BUFFERED_COMPRESSION = 8L * 1024 * 1024;
+    // the gzip copies of a file are cached next to its rendered fragment
+    private static final String GZIP_FRAGMENT = "#gzip";
+    private static final String GZIP_RAW = "#raw.gzip";
+    private StorageBackend backend;
+    private final StripedLocks locks = new StripedLocks(64);
+    private static volatile String localAddress;
+    // the most names on a page of a listing
+    private static final int MAX_PAGE = 1000;
+    // a batch is for many small objects, larger ones are fetched with their own GET
+    private static final int MAX_BATCH_NAMES = 1000;
+    private static final int MAX_BATCH_OBJECT = 256 * 1024;
+    private static final int MAX_BATCH_BYTES = 8 * 1024 * 1024;
+    // the largest body passed on to another node, kept in a temporary file until it has all arrived
+    private static final int MAX_FORWARDED_BYTES = 64 * 1024 * 1024;
+    // sent and received header lines that describe one connection, not the response relayed over it
+    private static final Set<String> HOP_HEADERS = new HashSet<>(Arrays.asList(
+            "date", "content-length", "connection", "server", "access-control-allow-origin", "access-control-allow-credentials"));
+    private static volatile HashRing cluster;
+    private static int replicas = 1;
+    // 0 for a majority of the replicas
+    private static int writeQuorum;
+    private static int readQuorum = 1;
+    // marks a request one replica sends another, answered from the receiving node's own copy
+    private static final String REPLICA = "X-Replica";
+    private static final String OBJECT_VERSION = "Object-Version";
+    // how long a replica that did not answer is left alone before its hints are tried again
+    private static final long HINT_RETRY_MILLIS = 30000;
+    // how long the server waits for a connection before it looks at the hints
+    private static final long IDLE_MILLIS = 1000;
+    // a resumable upload not continued for this long is deleted, looked for at startup and then at most this often
+    private static final long ABANDONED_UPLOAD_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long UPLOAD_SWEEP_MILLIS = 10L * 60 * 1000;
+    private long nextUploadSweep;
+    private VersionIndex versions;
+    // the paths of the objects each replica has missed, sent to it between requests
+    private final Map<Integer, Set<String>> hints = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> downUntil = new ConcurrentHashMap<>();
+    private static final ExecutorService batchReads = Executors.newFixedThreadPool(8, task -> {
+        Thread thread = new Thread(task, "batch-read");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    Map<Integer,String> map = new HashMap<>();
+    Map<Integer,String> map = new ConcurrentHashMap<>();
 
     public HTTPFileStorage(int port, String baseDirectory, boolean verbose) {
         this.port = port;
         this. baseDirectory = baseDirectory;
         this.verbose = verbose;
+        this.fileCache = new FileCache(cacheBytes);
+    }
 
+    /**
+     * Sets the byte budget of the GET cache for servers created afterwards, 0 disables it.
+     */
+    static void setCacheBytes(long cacheBytes) {
+        HTTPFileStorage.cacheBytes = cacheBytes;
     }
 
-    public String getBaseDirectory() {
-        return baseDirectory;
+    /**
+     * Selects where objects are stored: "file" for one file per object, "log" for the log-structured store,
+     * "cas" for the content-addressed store that keeps identical contents once, "memory" for the heap.
+     */
+    static void setStorageEngine(String storageEngine) {
+        if (!storageEngine.equals("file") && !storageEngine.equals("log") && !storageEngine.equals("cas")
+                && !storageEngine.equals("memory"))
+            throw new IllegalArgumentException("Unknown storage engine: " + storageEngine);
+        HTTPFileStorage.storageEngine = storageEngine;
     }
 
-    static void setHost(String host){
-        HTTPFileStorage.host = host;
+    /**
+     * Selects how files are laid out in the base directory: "flat", or "sharded" into hashed subdirectories.
+     * A directory converted by ShardMigration is always sharded.
+     */
+    static void setLayout(String layout) {
+        if (!layout.equals("flat") && !layout.equals("sharded"))
+            throw new IllegalArgumentException("Unknown layout: " + layout);
+        HTTPFileStorage.layout = layout;
     }
 
-    static String getHost(){
-        return host;
+    /**
+     * Makes servers created afterwards nodes of a cluster, each storing the objects the ring assigns to it.
+     * A request for an object another node owns is passed on to that node and its response relayed,
+     * so a client may send any request to any node. Every node and client must be given the same ring.
+     */
+    static void setCluster(HashRing cluster) {
+        HTTPFileStorage.cluster = cluster;
     }
 
-    public int getStatusCode() {
-        return statusCode;
+    /**
+     * Sets how many nodes of the cluster keep a copy of each object: its owner and the next nodes around the ring.
+     * Any replica answers for the object, and a write made through one is sent on to the others with a version stamp.
+     */
+    static void setReplicas(int replicas) {
+        HTTPFileStorage.replicas = replicas;
     }
 
-    public void setStatusCode(int statusCode) {
-        HTTPFileStorage.statusCode = statusCode;
+    /**
+     * Sets how many replicas must hold a write before it succeeds, a majority by default.
+     * A write held by fewer is answered with 503 and reaches the others once they answer again.
+     */
+    static void setWriteQuorum(int writeQuorum) {
+        HTTPFileStorage.writeQuorum = writeQuorum;
     }
 
-    public void startServer() throws IOException {
+    /**
+     * Sets how many replicas a GET compares versions with, this one included, 1 by default.
+     * With more, a newer copy found on another replica is fetched before the GET is answered, and
+     * replicas with an older copy are sent the newest, so that reads repair the replicas.
+     * A write quorum and a read quorum that together exceed the replicas make every read see the last write.
+     */
+    static void setReadQuorum(int readQuorum) {
+        HTTPFileStorage.readQuorum = readQuorum;
+    }
+
+    private static int writeQuorum() {
+        return writeQuorum > 0 ? writeQuorum : replicas / 2 + 1;
+    }
+
+    /**
+     * Sets when writes to the log-structured store are forced to disk.
+     */
+    static void setDurability(LogStore.Durability durability) {
+        HTTPFileStorage.durability = durability;
+    }
+
+    public String getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    /**
+     * Opens the backend of the selected storage engine, keeping its data in the base directory.
+     */
+    private static StorageBackend openBackend(Path base) throws IOException {
+        switch (storageEngine) {
+            case "log":
+                return new LogStore(base.resolve(".log"), SEGMENT_BYTES, durability);
+            case "cas":
+                return new BlobStore(base.resolve(".cas"));
+            case "memory":
+                return new MemoryBackend();
+            default:
+                if (layout.equals("sharded"))
+                    ShardedLayout.enable(base);
+                return new FileSystemBackend(base, ShardedLayout.isSharded(base));
+        }
+    }
+
+    /**
+     * Checks the configuration and opens the storage, everything the server needs before it takes requests.
+     */
+    void open() throws IOException {
         map.put(200,"OK");
         map.put(201,"Created");
+        map.put(202,"Accepted");
+        map.put(206,"Partial Content");
+        map.put(304,"Not Modified");
+        map.put(400,"Bad Request");
         map.put(404,"File Not Found");
         map.put(403,"Permission Denied");
+        map.put(409,"Conflict");
+        map.put(413,"Payload Too Large");
+        map.put(416,"Range Not Satisfiable");
         map.put(500, "Internal Server Error");
+        map.put(502, "Bad Gateway");
+        map.put(503, "Service Unavailable");
+        if (cluster != null) {
+            if (!cluster.contains(port))
+                throw new IllegalArgumentException("Port " + port + " is not a node of the cluster " + cluster.nodes());
+            if (replicas < 1 || replicas > cluster.nodes().size() || writeQuorum() > replicas || readQuorum < 1 || readQuorum > replicas)
+                throw new IllegalArgumentException("The cluster has " + cluster.nodes().size() + " nodes, the replicas and quorums must fit in them");
+            // a node that is down fails the requests passed on to it instead of stalling this one
+            UDPClient.setHandshakeAttempts(3);
+            // where the bodies passed on are kept, which the memory engine does not create
+            Files.createDirectories(Paths.get(baseDirectory));
+        }
+        backend = openBackend(Paths.get(baseDirectory));
+        if (cluster != null && replicas > 1)
+            versions = new VersionIndex(storageEngine.equals("memory") ? null : Paths.get(baseDirectory).resolve(".versions"), port);
+        removeAbandonedUploads();
+    }
+
+    /**
+     * Deletes the part files of resumable uploads whose clients never came back to finish them.
+     * A failure is only reported, the next sweep tries again.
+     */
+    private void removeAbandonedUploads() {
+        nextUploadSweep = System.currentTimeMillis() + UPLOAD_SWEEP_MILLIS;
+        try {
+            int removed = backend.removeAbandonedUploads(ABANDONED_UPLOAD_MILLIS);
+            if (verbose && removed > 0)
+                System.out.println("Removed " + removed + " abandoned uploads");
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Could not remove abandoned uploads: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the storage opened by open().
+     */
+    void close() throws IOException {
+        if (versions != null)
+            versions.close();
+        backend.close();
+    }
 
+    /**
+     * Returns the parser a request is received into: a POST body is streamed to storage as it arrives.
+     */
+    HttpRequestParser newRequest(RequestContext context) {
+        return new HttpRequestParser(new HttpRequestParser.Handler() {
+            @Override
+            public void onHeaders(HttpRequestParser r) throws IOException {
+                context.setForwardTo(forwardTarget(r));
+                context.setUpload(startUpload(r, context));
+            }
+
+            @Override
+            public void onRequest(HttpRequestParser r) {
+            }
+        });
+    }
+
+    /**
+     * Processes a request once all of it has been received, leaving the response in the context.
+     * Called after the client's connection is over: passing the request on to other nodes
+     * or replicating a write inside the receiver would hold back the ACK of the client's last packet.
+     */
+    void complete(HttpRequestParser request, RequestContext context) throws IOException {
+        request.finish();
+        if (request.isComplete())
+            context.setResponse(processRequest(request, context));
+    }
+
+    /**
+     * Removes the temporary files of a request, such as those of an upload that was not completed.
+     */
+    void release(RequestContext context) throws IOException {
+        if (context.getUpload() != null)
+            context.getUpload().close();
+        if (context.getForwardedBody() != null)
+            context.getForwardedBody().close();
+    }
+
+    public void startServer() throws IOException {
+        open();
         //set up the server and accept the request
         UDPServer myServerSocket = new UDPServer(port,verbose);
         System.out.println("Server is listening to port" + port);
         System.out.println("Data Directory:" + baseDirectory);
 
         while (true) {
-            if(UDPServer.acceptConnectionRequest()!=0){
-            //Receive the request from the client and process it
-            BufferedReader reader = new BufferedReader(new StringReader(UDPServer.receive()));
-            String response = processRequest(reader);
+            if(UDPServer.acceptConnectionRequest(IDLE_MILLIS)!=0){
+            RequestContext context = new RequestContext();
+            HttpRequestParser request = newRequest(context);
+            try {
+                UDPServer.receive(request);
+                complete(request, context);
+            } finally {
+                release(context);
+            }
 
             if (verbose) {
-                String host = getHost();
+                String host = context.getHost();
                 if (host == null)
                     host = "localhost";
                 System.out.println("\nRequest received:");
-                System.out.println(requestLine);
+                System.out.println(context.getRequestLine());
                 System.out.println("Host: " + host);
                 System.out.println("\n...");
             }
 
-            UDPServer.send(response);
+            ResponseWriter response = context.getResponse();
+            try {
+                UDPServer.send(response != null ? response : PayloadSource.of(new byte[0]));
+            } finally {
+                // a raw GET holds the file open until it has been sent
+                if (response != null)
+                    response.close();
+            }
 
             if (verbose) {
                 System.out.println("\nResponse sent:");
-                System.out.println("HTTP/1.0 " + getStatusCode() + " " + map.get(getStatusCode()));
+                System.out.println("HTTP/1.0 " + context.getStatusCode() + " " + map.get(context.getStatusCode()));
                 System.out.println("Content-type: application/json");
-                System.out.println("Content-length: " + response.length());
+                System.out.println("Content-length: " + (response != null ? response.getContentLength() : 0));
+                System.out.println("Cache: " + fileCache.getStats());
+                if (backend.getStats() != null)
+                    System.out.println("Storage: " + backend.getStats());
+                System.out.println("Admission: " + UDPServer.getAdmissionStats());
                 System.out.println("\n\n...");
             }
+        } else {
+            if (!hints.isEmpty())
+                deliverHint();
+            if (System.currentTimeMillis() >= nextUploadSweep)
+                removeAbandonedUploads();
         }}
     }
 
-    public String processRequest(BufferedReader reader) throws IOException {
+    public ResponseWriter processRequest(HttpRequestParser request, RequestContext context) throws IOException {
+        if (request.getHeader("Content-Length") != null && request.getContentLength() < 0) {
+            // a length that is not a number, or too large for one, leaves the end of the body unknown
+            context.setRequestLine(request.getRequestLine());
+            context.setStatusCode(400);
+            return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())).noBody();
+        }
+        if (context.getForwardTo() >= 0) {
+            context.setRequestLine(request.getRequestLine());
+            return forward(request, context);
+        }
+        if (request.isMethod("HEAD")) {
+            context.setRequestLine(request.getRequestLine());
+            return processHEADRequest(request, context);
+        }
         // return headers + body
-        String response;
-        String responseHeader="";
-        String responseBody = "";
-        String line;
-        while((line = reader.readLine()) != null){
-            if(line.contains("GET") || line.contains("POST")){
-                requestLine = line;
-                String[] extractData = line.split(" ");
-                String requestMethod= extractData[0];
-                String url = extractData[1];
-                responseBody = generateResponseBody(requestMethod,url,reader);
-                responseHeader = getResponseHeaders(responseBody);
-                break;
+        if(request.isMethod("GET") || request.isMethod("POST")){
+            context.setRequestLine(request.getRequestLine());
+            context.setEncoding(CompressingSource.negotiate(request.getHeader("Accept-Encoding")));
+            if (request.isMethod("GET") && versions != null && readQuorum > 1 && request.getHeader(REPLICA) == null
+                    && isObjectPath(request.getPath()))
+                readRepair(request.getPath());
+            if (isBatch(request))
+                return processBatchRequest(request, context);
+            if (request.isMethod("GET") && request.hasQuery("raw")) {
+                ResponseWriter raw = processRawGETRequest(request, context);
+                if (raw != null)
+                    return raw;
             }
-            if(line.isEmpty()) {
-                break;
+            ResponseBody responseBody = generateResponseBody(request.getMethod(),request.getTarget(),request,context);
+            // the JSON around the object echoes the request, so it is only weakly the same each time
+            ResponseWriter response = validators(new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())), context, "W/");
+            if (context.getStatusCode() == 304)
+                return response.noBody();
+            if (context.getUploadOffset() >= 0)
+                response.header("Upload-Offset", Long.toString(context.getUploadOffset()));
+            response.header(ResponseWriter.CONTENT_TYPE_JSON).header(ResponseWriter.VARY_ACCEPT_ENCODING);
+            if (context.getEncoding() != null && responseBody.length() >= CompressingSource.MIN_LENGTH) {
+                responseBody = responseBody.compress(context.getEncoding());
+                response.header("Content-Encoding", context.getEncoding());
             }
+            return response.body(responseBody, responseBody.length());
         }
-        response = responseHeader +responseBody;
-        return response;
+        return null;
     }
 
-    public String generateResponseBody(String requestMethod, String url, BufferedReader reader) throws IOException {
-        setStatusCode(200);
-        StringBuilder body = new StringBuilder();
-        if(url.startsWith("/")) {
-            body.append("{\n");
-            String data = "", json = "";
-            String args = generateArgs(url);
-            String files ="";
-            String forms="";
-            String status="";
-            String content ="";
-            String headers = generateHeaders(reader);
-            String line=null;
-            if(requestMethod.equals("POST")){
-                while ((line = reader.readLine()) != null) {
-                    if (line.isEmpty()) {
-                        break;
-                    } else if (line.startsWith("{")) {
-                        content=line;
-                        data = generateData(line);
-                        json = generateJSON(line);
-                        forms = "  \"form\": {}\n";
-                        break;
-                    }
-                }}
-            if(!(url.startsWith("/post") || url.startsWith("/get"))){
-                if(requestMethod.equals("GET")){
-                    files = processGETRequest_FileStorage(url);
-                }
-                else if(requestMethod.equals("POST")){
-                    status = processPOSTRequest_FileStorage(url,content);
-                }
-            }
-            body.append(args);
-            body.append(data);
-            body.append(files);
-            body.append(forms);
-            body.append(status);
-            body.append(headers);
-            body.append(json);
-
-            String localIP = "";
-            String host = getHost().replace(" ","");
-            if(host.equals("null"))
-                host="localhost";
+    public ResponseBody generateResponseBody(String requestMethod, String url, HttpRequestParser request, RequestContext context) throws IOException {
+        context.setStatusCode(200);
+        ResponseBody encoded = new ResponseBody();
+        if(!url.startsWith("/"))
+            return encoded;
+        readHeaders(request, context);
+        // written straight into the body, with cached fragments spliced in between
+        JsonWriter json = new JsonWriter(encoded).beginObject();
+        writeArgs(json, request);
+        String line = requestMethod.equals("POST") ? firstJsonLine(request) : null;
+        if (line != null)
+            json.name("data").value(line);
+        boolean storage = !(url.startsWith("/post") || url.startsWith("/get"));
+        if (storage && requestMethod.equals("GET"))
+            processGETRequest_FileStorage(url, request, context, json);
+        if (line != null)
+            json.name("form").beginObject().endObject();
+        if (storage && requestMethod.equals("POST"))
+            writeMessages(json, "status", processPOSTRequest_FileStorage(url, request, context));
+        writeHeaders(json, request);
+        if (line != null) {
+            // the line is sent back as it is when it is JSON, otherwise the client only gets it as "data"
+            json.name("json");
+            if (JsonWriter.isValid(line))
+                json.fragment(line.getBytes(StandardCharsets.UTF_8), null);
+            else
+                json.nullValue();
+        }
+        String host = String.valueOf(context.getHost()).replace(" ","");
+        if(host.equals("null"))
+            host="localhost";
+        json.name("origin").value(localAddress());
+        json.name("url").value("http://" + host + url);
+        return json.endObject().finish();
+    }
+
+    /**
+     * Returns the address of this host, looked up once.
+     */
+    private static String localAddress() {
+        String address = localAddress;
+        if (address == null) {
             try {
-                InetAddress localhost = InetAddress.getLocalHost();
-                localIP = localhost.getHostAddress();
+                address = InetAddress.getLocalHost().getHostAddress();
             } catch (UnknownHostException e) {
                 e.printStackTrace();
+                address = "";
             }
-            body.append("\n  \"origin\": \"").append(localIP).append("\",\n");
-            body.append("  \"url\":\"http://").append(host).append(url).append("\"");
-            body.append("\n}");
-            return body.toString();
+            localAddress = address;
         }
-        return body.toString();
+        return address;
+    }
 
+    /**
+     * Writes a member whose value is an array of message lines, such as the outcome of a POST or an error.
+     */
+    private static void writeMessages(JsonWriter json, String name, List<String> lines) {
+        json.name(name).beginArray();
+        for (String line : lines)
+            json.value(line);
+        json.endArray();
     }
 
-    private String processPOSTRequest_FileStorage(String url,String content) throws IOException {
+    /**
+     * Starts writing the body of a POST to the backend as it arrives, or returns null when
+     * the request does not store an object.
+     */
+    private StorageBackend.Write startUpload(HttpRequestParser request, RequestContext context) throws IOException {
+        String path = request.getPath();
+        if (context.getForwardTo() >= 0) {
+            // a body is passed on from a temporary file, past MAX_FORWARDED_BYTES it is only counted
+            if (request.getContentLength() > MAX_FORWARDED_BYTES) {
+                request.streamBody((data, offset, count) -> { });
+            } else if (request.isMethod("POST")) {
+                FileUpload body = new FileUpload(Paths.get(baseDirectory).resolve("forwarded"));
+                context.setForwardedBody(body);
+                request.streamBody((data, offset, count) -> {
+                    if (body.getBytesWritten() + count <= MAX_FORWARDED_BYTES)
+                        body.onBody(data, offset, count);
+                });
+            }
+            return null;
+        }
+        if (isBatch(request)) {
+            // a batch is taken from the parser's buffer, one too large for it is only counted
+            if (request.getContentLength() > MAX_BATCH_BYTES)
+                request.streamBody((data, offset, count) -> { });
+            return null;
+        }
+        if (!request.isMethod("POST") || !path.startsWith("/") || path.startsWith("/post") || path.startsWith("/get"))
+            return null;
+        String key = storageKey(path);
+        if (key == null)
+            return null;
+        String uploadId = uploadId(request);
+        if (uploadId != null) {
+            context.setUploadOffset(backend.uploadOffset(key, uploadId));
+            if (requestedUploadOffset(request) != context.getUploadOffset()) {
+                // answered with 409 and the offset to continue from, the body is only counted
+                request.streamBody((data, offset, count) -> { });
+                return null;
+            }
+        }
+        if (request.getContentLength() > backend.maxObjectSize()) {
+            // answered with 413, the body is only counted
+            request.streamBody((data, offset, count) -> { });
+            return null;
+        }
+        StorageBackend.Write upload = uploadId != null ? backend.resumeWrite(key, uploadId) : null;
+        if (upload == null)
+            upload = backend.startWrite(key, announcedDigest(request));
+        request.streamBody(upload);
+        return upload;
+    }
 
-        StringBuilder responseBody = new StringBuilder();
-        responseBody.append("  \"status\":{\n");
-        String[] path = url.split("\\?");
+    /**
+     * Returns the port of the node a request is passed on to, or -1 when this node answers it: outside a cluster,
+     * for the echo endpoints, the listing and batches, which are not about a single object, for objects this node
+     * keeps a copy of, and for a request another node has passed on, recognised by its Via or X-Replica header,
+     * so none is passed on twice. A write goes to the object's owner, a read to any of its replicas.
+     */
+    private int forwardTarget(HttpRequestParser request) {
+        HashRing ring = cluster;
+        if (ring == null || request.getHeader("Via") != null || request.getHeader(REPLICA) != null || isBatch(request))
+            return -1;
+        if (!request.isMethod("GET") && !request.isMethod("POST") && !request.isMethod("HEAD"))
+            return -1;
+        String path = request.getPath();
+        if (!isObjectPath(path))
+            return -1;
+        List<Integer> nodes = ring.replicas(path, replicas);
+        if (nodes.contains(port))
+            return -1;
+        return nodes.get(request.isMethod("POST") ? 0 : ThreadLocalRandom.current().nextInt(nodes.size()));
+    }
 
-        if(path[0].startsWith("/")) {
-            String requestedPath = getBaseDirectory() + "/" + path[0];
-            Path absolutePath = Paths.get(getBaseDirectory()).resolve(requestedPath).toAbsolutePath().normalize();
+    private static boolean isObjectPath(String path) {
+        return path.startsWith("/") && !path.equals("/") && !path.startsWith("/post") && !path.startsWith("/get");
+    }
 
-            if (absolutePath.startsWith(Paths.get(getBaseDirectory()).toAbsolutePath())) {
-                File file = new File(requestedPath+ ".txt");
-                if(!file.exists()){
-                    setStatusCode(201);
-                    responseBody.append("\t").append(file.getName()).append("Doesn't exist, creating a new file,");
-                }
+    /**
+     * Passes a request on to the node that owns its object, with a Via header naming this node,
+     * and relays that node's response: its status, its headers and its body as it was sent, compressed or not.
+     * A node that cannot be reached, or whose response is cut off, is answered for with 502 Bad Gateway,
+     * and one that refused the connection as overloaded with 503 Service Unavailable and the Retry-After it asked for.
+     */
+    private ResponseWriter forward(HttpRequestParser request, RequestContext context) throws IOException {
+        readHeaders(request, context);
+        long contentLength = request.getContentLength();
+        long received = request.getBodyReceived();
+        if (received > MAX_FORWARDED_BYTES || contentLength >= 0 && received < contentLength) {
+            context.setStatusCode(received > MAX_FORWARDED_BYTES ? 413 : 400);
+            return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())).noBody();
+        }
+        StringBuilder head = new StringBuilder(request.getRequestLine()).append("\r\n");
+        for (int i = 0; i < request.getHeaderCount(); ++i)
+            head.append(request.getHeaderLine(i)).append("\r\n");
+        head.append("Via: 1.0 localhost:").append(port).append("\r\n\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        // the other replicas in turn when the node chosen does not answer
+        List<Integer> nodes = new ArrayList<>(cluster.replicas(request.getPath(), replicas));
+        nodes.remove((Integer) context.getForwardTo());
+        nodes.add(0, context.getForwardTo());
+        HttpClient.Response relayed = null;
+        ServerBusyException busy = null;
+        for (int i = 0; i < nodes.size() && relayed == null; ++i) {
+            // opened again for every node, an attempt that failed may have sent part of the body
+            FileUpload body = context.getForwardedBody();
+            try (PayloadSource forwarded = PayloadSource.concat(PayloadSource.of(headBytes), body != null ? body.openReceived()
+                    : PayloadSource.of(request.getBuffer(), request.getBodyOffset(), request.getBodyLength()))) {
+                relayed = HttpClient.exchange(forwarded, nodes.get(i), verbose);
+            } catch (ServerBusyException e) {
+                busy = e;
+            } catch (IOException e) {
+                relayed = null;
+            }
+        }
+        if (relayed == null && busy != null) {
+            context.setStatusCode(503);
+            return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode()))
+                    .header("Retry-After", Long.toString(retryAfterSeconds(busy))).noBody();
+        }
+        if (relayed == null || relayed.isTruncated()) {
+            context.setStatusCode(502);
+            return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())).noBody();
+        }
+        String[] lines = relayed.head.split("\r\n");
+        // "HTTP/1.1 404 File Not Found"
+        int reasonStart = lines[0].indexOf(' ', lines[0].indexOf(' ') + 1);
+        context.setStatusCode(relayed.statusCode);
+        ResponseWriter response = new ResponseWriter(relayed.statusCode, reasonStart < 0 ? "" : lines[0].substring(reasonStart + 1));
+        for (int i = 1; i < lines.length; ++i) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && !HOP_HEADERS.contains(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT)))
+                response.header(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        byte[] body = relayed.body.toByteArray();
+        if (relayed.contentLength >= 0)
+            return response.body(body);
+        return body.length == 0 ? response.noBody() : response.body(PayloadSource.of(body));
+    }
 
-                BufferedWriter bw = new BufferedWriter(new FileWriter(file, !overWrite));
-                bw.flush();
-                bw.write(content);
-                bw.close();
-                responseBody.append("\n\tContent has been saved to a file");
+    private static boolean isBatch(HttpRequestParser request) {
+        return request.isMethod("POST") && (request.getPath().equals("/batch/get") || request.getPath().equals("/batch/put"));
+    }
 
-            } else{
-                setStatusCode(403);
-                responseBody.append("\t403 Forbidden: Access to this directory is not allowed.");
+    /**
+     * Answers "POST /batch/get", whose body names objects one per line, with a frame for each object in the order asked,
+     * and "POST /batch/put", whose body holds framed objects, with a frame with the outcome for each. See BatchFrames.
+     * The objects of a batch/get are read in parallel, and each frame is sent as soon as those before it are.
+     */
+    private ResponseWriter processBatchRequest(HttpRequestParser request, RequestContext context) throws IOException {
+        readHeaders(request, context);
+        long contentLength = request.getContentLength();
+        if (contentLength > MAX_BATCH_BYTES) {
+            context.setStatusCode(413);
+            return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())).noBody();
+        }
+        byte[] buf = request.getBuffer();
+        int offset = request.getBodyOffset();
+        int length = request.getBodyLength();
+        List<CompletableFuture<BatchFrames.Frame>> frames = new ArrayList<>();
+        if (contentLength >= 0 && length < contentLength) {
+            context.setStatusCode(400);
+        } else if (request.getPath().equals("/batch/get")) {
+            List<String> names = BatchFrames.decodeNames(buf, offset, length);
+            context.setStatusCode(names.size() > MAX_BATCH_NAMES ? 413 : 200);
+            if (context.getStatusCode() == 200) {
+                int[] owners = batchOwners(request, names);
+                List<BatchFrames.Frame> asked = new ArrayList<>();
+                for (int i = 0; i < names.size(); ++i) {
+                    String name = names.get(i);
+                    // read while the names other nodes own are passed on
+                    frames.add(owners[i] < 0 ? CompletableFuture.supplyAsync(() -> batchRead(name), batchReads) : null);
+                    asked.add(new BatchFrames.Frame(0, name, new byte[0]));
+                }
+                forwardBatch("/batch/get", asked, owners, context, frames);
+            }
+        } else {
+            List<BatchFrames.Frame> objects;
+            long[] stamps = null;
+            try {
+                objects = BatchFrames.decode(buf, offset, length, false);
+                stamps = replicaStamps(request, objects.size());
+                context.setStatusCode(stamps == null ? 400 : objects.size() > MAX_BATCH_NAMES ? 413 : 200);
+            } catch (IOException e) {
+                objects = Collections.emptyList();
+                context.setStatusCode(400);
+            }
+            if (context.getStatusCode() == 200) {
+                List<String> names = new ArrayList<>();
+                for (BatchFrames.Frame object : objects)
+                    names.add(object.name);
+                int[] owners = batchOwners(request, names);
+                // in order, so a name given twice ends with its last body, on whichever node owns it
+                for (int i = 0; i < objects.size(); ++i)
+                    frames.add(owners[i] < 0 ? CompletableFuture.completedFuture(batchWrite(objects.get(i), !context.isOverWrite(), stamps[i])) : null);
+                forwardBatch("/batch/put", objects, owners, context, frames);
+                if (versions != null && request.getHeader(REPLICA) == null)
+                    replicateBatch(objects, owners, frames);
             }
         }
-        responseBody.append("\n  }\n");
-        return responseBody.toString();
+        if (context.getStatusCode() != 200)
+            return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())).noBody();
+        return new ResponseWriter(200, map.get(200))
+                .header("Content-Type", BatchFrames.CONTENT_TYPE)
+                .body(new BatchFrames.Source(frames));
     }
 
+    /**
+     * Returns for each name of a batch the port of the node it is passed on to, or -1 when this node
+     * answers for it. In a cluster that is the node that owns it, unless another node has passed the batch on.
+     */
+    private int[] batchOwners(HttpRequestParser request, List<String> names) {
+        int[] owners = new int[names.size()];
+        Arrays.fill(owners, -1);
+        HashRing ring = cluster;
+        if (ring == null || request.getHeader("Via") != null || request.getHeader(REPLICA) != null)
+            return owners;
+        for (int i = 0; i < names.size(); ++i) {
+            if (names.get(i).startsWith("/") && !ring.replicas(names.get(i), replicas).contains(port))
+                owners[i] = ring.owner(names.get(i));
+        }
+        return owners;
+    }
 
+    /**
+     * Returns the version stamps of the objects of a batch/put another replica sends, listed in its Object-Version header
+     * in the order of the frames, all 0 for a batch written through this node, or null when the list does not fit the batch.
+     */
+    private long[] replicaStamps(HttpRequestParser request, int count) {
+        long[] stamps = new long[count];
+        if (versions == null || request.getHeader(REPLICA) == null)
+            return stamps;
+        String[] listed = String.valueOf(request.getHeader(OBJECT_VERSION)).split(",");
+        if (listed.length != count)
+            return count == 0 ? stamps : null;
+        for (int i = 0; i < count; ++i) {
+            stamps[i] = parseLength(listed[i], -1);
+            if (stamps[i] <= 0)
+                return null;
+        }
+        return stamps;
+    }
 
-    private String processGETRequest_FileStorage(String url) {
-        StringBuilder responseBody = new StringBuilder();
-        String[] path = url.split("\\?");
-        String requestedPath = getBaseDirectory() + "/" + path[0];
-        Path absolutePath = Paths.get(getBaseDirectory()).resolve(requestedPath).toAbsolutePath().normalize();
-        responseBody.append("  \"files\": {");
-        if(absolutePath.startsWith(Paths.get(getBaseDirectory()).toAbsolutePath())) {
-            if ("/".equals(path[0])) {
-                //display all files in the directory
-                File fileDirectory = new File(requestedPath);
-                File[] files = fileDirectory.listFiles();
-                if (files != null && files.length > 0) {
-                    for (File file : files) {
-                        responseBody.append("\n\t\"").append(file.getName()).append("\",");
-                    }
-                    responseBody.setLength(responseBody.length() - 1);
+    /**
+     * Sends the objects of a batch/put stored here to their other replicas, one batch to each node with the stamps
+     * in the Object-Version header. The frame of an object held by fewer replicas than the write quorum gets 503,
+     * and the replicas that missed it receive it with the hints.
+     */
+    private void replicateBatch(List<BatchFrames.Frame> objects, int[] owners, List<CompletableFuture<BatchFrames.Frame>> frames) throws IOException {
+        int[] stored = new int[objects.size()];
+        Map<Integer, List<Integer>> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < objects.size(); ++i) {
+            int status = frames.get(i).join().status;
+            if (owners[i] >= 0 || (status != 200 && status != 201))
+                continue;
+            stored[i] = 1;
+            for (int node : cluster.replicas(objects.get(i).name, replicas)) {
+                if (node != port)
+                    nodes.computeIfAbsent(node, replica -> new ArrayList<>()).add(i);
+            }
+        }
+        for (Map.Entry<Integer, List<Integer>> node : nodes.entrySet()) {
+            List<BatchFrames.Frame> copies = new ArrayList<>();
+            List<String> stamps = new ArrayList<>();
+            for (int i : node.getValue()) {
+                // the copy now stored, which is not the body sent when that was appended
+                long[] stamp = new long[1];
+                byte[] copy = isDown(node.getKey()) ? null : readCopy(storageKey(objects.get(i).name), stamp);
+                if (copy != null) {
+                    copies.add(new BatchFrames.Frame(0, objects.get(i).name, copy));
+                    stamps.add(Long.toString(stamp[0]));
                 }
-                setStatusCode(200);
-            } else if (path[0].startsWith("/")) {
-                //retrieve the content of the file
-                File file = new File(requestedPath+ ".txt");
-                if (file.exists() && file.isFile()) {
-                    try {
-                        BufferedReader reader = new BufferedReader(new FileReader(file));
-                        String line = null;
-                        responseBody.setLength(0);
-                        responseBody.append("  \"data\": {");
-                        while ((line = reader.readLine()) != null) {
-                            responseBody.append("\n\t").append(line).append(",");
-                        }
-                        responseBody.setLength(responseBody.length() - 1);
-                        reader.close();
-                    } catch (IOException e) {
-                        setStatusCode(500);
-                        responseBody.append("\tInternal error");
-                    }
-                    setStatusCode(200);
-                } else{
-                    setStatusCode(404);
-                    responseBody.append("\n\t404 Not Found\n\tFile does not exist in the directory");
+            }
+            List<BatchFrames.Frame> answered = Collections.emptyList();
+            if (!copies.isEmpty()) {
+                String headers = REPLICA + ": " + port + "\r\n" + OBJECT_VERSION + ": " + String.join(",", stamps) + "\r\n";
+                try {
+                    answered = HttpClient.batch("http://localhost", "/batch/put", BatchFrames.encode(copies), copies.size(), node.getKey(), headers, verbose);
+                } catch (IOException | URISyntaxException e) {
+                    markDown(node.getKey(), e);
                 }
+            }
+            Set<String> held = new HashSet<>();
+            for (BatchFrames.Frame frame : answered) {
+                if (frame.status == 200 || frame.status == 201)
+                    held.add(frame.name);
+            }
+            for (int i : node.getValue()) {
+                if (held.contains(objects.get(i).name))
+                    ++stored[i];
+                else
+                    hint(node.getKey(), objects.get(i).name);
+            }
+        }
+        for (int i = 0; i < objects.size(); ++i) {
+            if (stored[i] > 0 && stored[i] < writeQuorum())
+                frames.set(i, CompletableFuture.completedFuture(new BatchFrames.Frame(503, objects.get(i).name, new byte[0])));
+        }
+    }
 
+    /**
+     * Passes the objects of a batch that other nodes own on to them, one batch to each node in the order given,
+     * and fills in their frames. Each object of a node that does not answer gets a frame with 502, or 503 when it is overloaded.
+     *
+     * @param objects The objects of a batch/put, or frames with only the names of a batch/get.
+     */
+    private void forwardBatch(String path, List<BatchFrames.Frame> objects, int[] owners, RequestContext context,
+                              List<CompletableFuture<BatchFrames.Frame>> frames) {
+        Map<Integer, List<Integer>> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < owners.length; ++i) {
+            if (owners[i] >= 0)
+                nodes.computeIfAbsent(owners[i], node -> new ArrayList<>()).add(i);
+        }
+        String headers = "Via: 1.0 localhost:" + port + "\r\n" + (context.isOverWrite() ? "" : "overwrite: false\r\n");
+        for (Map.Entry<Integer, List<Integer>> node : nodes.entrySet()) {
+            List<BatchFrames.Frame> part = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int position : node.getValue()) {
+                part.add(objects.get(position));
+                names.add(objects.get(position).name);
             }
-            else{
-                setStatusCode(404);
-                responseBody.append("\tDirectory not found");
+            byte[] body = path.equals("/batch/get") ? String.join("\n", names).getBytes(StandardCharsets.UTF_8) : BatchFrames.encode(part);
+            List<BatchFrames.Frame> answered;
+            try {
+                answered = HttpClient.batch("http://localhost", path, body, part.size(), node.getKey(), headers, verbose);
+            } catch (IOException | URISyntaxException e) {
+                answered = new ArrayList<>();
+                for (String name : names)
+                    answered.add(new BatchFrames.Frame(e instanceof ServerBusyException ? 503 : 502, name, new byte[0]));
+            }
+            for (int i = 0; i < part.size(); ++i)
+                frames.set(node.getValue().get(i), CompletableFuture.completedFuture(answered.get(i)));
+        }
+    }
 
+    /**
+     * Reads one object of a batch/get, under its read lock, into a frame with status 200, or 403, 404, 413 or 500.
+     */
+    private BatchFrames.Frame batchRead(String name) {
+        byte[] none = new byte[0];
+        String key = storageKey(name);
+        if (key == null)
+            return new BatchFrames.Frame(403, name, none);
+        try {
+            Lock lock = locks.get(key).readLock();
+            lock.lock();
+            try {
+                StorageBackend.Stat stat = backend.stat(key);
+                if (stat == null)
+                    return new BatchFrames.Frame(404, name, none);
+                if (stat.size > MAX_BATCH_OBJECT)
+                    return new BatchFrames.Frame(413, name, none);
+                PayloadSource content = backend.open(key, 0, stat.size);
+                if (content == null)
+                    return new BatchFrames.Frame(404, name, none);
+                try (InputStream in = content.toInputStream()) {
+                    return new BatchFrames.Frame(200, name, in.readAllBytes());
+                }
+            } finally {
+                lock.unlock();
             }
+        } catch (IOException e) {
+            return new BatchFrames.Frame(500, name, none);
         }
-        else{
-            setStatusCode(403);
-            responseBody.append("\tHTTP/1.1 403 Forbidden\n\n  Access to this directory is not allowed");
+    }
+
+    /**
+     * Stores one object of a batch/put like a POST of it would, and returns a frame with the status, 200 or 201,
+     * or 403, 413 or 500.
+     *
+     * @param stamp The version stamp of a copy another replica sends, kept only when newer than the one here, or 0.
+     */
+    private BatchFrames.Frame batchWrite(BatchFrames.Frame object, boolean append, long stamp) {
+        byte[] none = new byte[0];
+        String name = object.name;
+        String key = name.startsWith("/") ? storageKey(name) : null;
+        if (key == null)
+            return new BatchFrames.Frame(403, name, none);
+        if (object.body.length > backend.maxObjectSize())
+            return new BatchFrames.Frame(413, name, none);
+        boolean existed;
+        try (StorageBackend.Write upload = backend.startWrite(key, null)) {
+            upload.onBody(object.body, 0, object.body.length);
+            Lock lock = locks.get(key).writeLock();
+            lock.lock();
+            try {
+                existed = backend.contains(key);
+                if (stamp > 0 && existed && stamp <= versions.get(key))
+                    return new BatchFrames.Frame(200, name, none);
+                if (!upload.commit(append))
+                    return new BatchFrames.Frame(500, name, none);
+                invalidateCached(key);
+                if (versions != null)
+                    versions.put(key, stamp > 0 ? stamp : versions.next());
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            return new BatchFrames.Frame(500, name, none);
         }
-        responseBody.append("\n  },\n");
-        return responseBody.toString();
+        return new BatchFrames.Frame(existed ? 200 : 201, name, none);
+    }
+
+    /**
+     * Returns the version stamp of a copy another replica sends in a POST, 0 for a write made through this node.
+     */
+    private long replicaStamp(HttpRequestParser request) {
+        if (versions == null || request.getHeader(REPLICA) == null)
+            return 0;
+        return Math.max(parseLength(request.getHeader(OBJECT_VERSION), 0), 0);
     }
 
-    private String getResponseHeaders(String responseBody) {
-        return "HTTP/1.1 " + getStatusCode() + " "+ map.get(getStatusCode()) + "\n" +
-                "Date: " + getDate() + "\n" +
-                "Content-Type: application/json" + "\n" +
-                "Content-Length: " + responseBody.length() + "\n" +
-                "Connection: close" + "\n" +
-                "Server: gunicorn/19.9.0" + "\n" +
-                "Access-Control-Allow-Origin: *" + "\n" +
-                "Access-Control-Allow-Credentials: true" + "\n";
+    /**
+     * Sends the copy of an object just written here to its other replicas in the order of the ring until the write
+     * quorum holds it. The UDP client talks to one node at a time, so the remaining replicas get hints and receive
+     * the object once the response has gone out. A replica known to be down gets a hint straight away.
+     *
+     * @return The number of replicas holding the write, this one included.
+     */
+    private int replicate(String path, String key) throws IOException {
+        int stored = 1;
+        for (int node : cluster.replicas(path, replicas)) {
+            if (node == port)
+                continue;
+            if (stored < writeQuorum() && !isDown(node) && push(node, path, key))
+                ++stored;
+            else
+                hint(node, path);
+        }
+        return stored;
+    }
+
+    /**
+     * Sends the copy of an object stored here to another replica with its version stamp, streamed from the backend.
+     * The replica keeps it unless it holds a newer one.
+     *
+     * @return Whether the replica holds this version or a newer one now.
+     */
+    private boolean push(int node, String path, String key) throws IOException {
+        PayloadSource content;
+        long size;
+        long stamp;
+        Lock lock = locks.get(key).readLock();
+        lock.lock();
+        try {
+            StorageBackend.Stat stat = backend.stat(key);
+            content = stat == null ? null : backend.open(key, 0, stat.size);
+            if (content == null)
+                return true;
+            size = stat.size;
+            stamp = versions.get(key);
+        } finally {
+            lock.unlock();
+        }
+        byte[] head = ("POST " + path + " HTTP/1.0\r\n" + REPLICA + ": " + port + "\r\n" + OBJECT_VERSION + ": " + stamp
+                + "\r\nContent-Length: " + size + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        try (PayloadSource request = PayloadSource.concat(PayloadSource.of(head), content)) {
+            int status = HttpClient.exchange(request, node, verbose).statusCode;
+            return status == 200 || status == 201;
+        } catch (IOException e) {
+            markDown(node, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the copy of an object stored here, with its stamp into stamp[0], or returns null when there is none.
+     */
+    private byte[] readCopy(String key, long[] stamp) throws IOException {
+        Lock lock = locks.get(key).readLock();
+        lock.lock();
+        try {
+            StorageBackend.Stat stat = backend.stat(key);
+            PayloadSource content = stat == null ? null : backend.open(key, 0, stat.size);
+            if (content == null)
+                return null;
+            stamp[0] = versions.get(key);
+            try (InputStream in = content.toInputStream()) {
+                return in.readAllBytes();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public String generateHeaders(BufferedReader reader) throws IOException {
-        StringBuilder headers = new StringBuilder("  \"headers\": {\n");
+    /**
+     * Stores a copy fetched from another replica with its stamp, unless a newer one was written here meanwhile.
+     */
+    private void storeCopy(String key, byte[] content, long stamp) throws IOException {
+        try (StorageBackend.Write upload = backend.startWrite(key, null)) {
+            upload.onBody(content, 0, content.length);
+            Lock lock = locks.get(key).writeLock();
+            lock.lock();
+            try {
+                if (backend.contains(key) && stamp <= versions.get(key))
+                    return;
+                if (upload.commit(false)) {
+                    invalidateCached(key);
+                    versions.put(key, stamp);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.isEmpty()) {
+    /**
+     * Compares the version of an object here with that of readQuorum - 1 other replicas before a GET reads it.
+     * A newer copy found on one of them is fetched and stored here first, and each replica found with an older copy
+     * gets a hint, so it receives the newest once the response has gone out.
+     */
+    private void readRepair(String path) throws IOException {
+        String key = storageKey(path);
+        if (key == null)
+            return;
+        long newest;
+        Lock lock = locks.get(key).readLock();
+        lock.lock();
+        try {
+            newest = backend.contains(key) ? versions.get(key) : 0;
+        } finally {
+            lock.unlock();
+        }
+        int source = port;
+        Map<Integer, Long> seen = new LinkedHashMap<>();
+        for (int node : cluster.replicas(path, replicas)) {
+            if (seen.size() == readQuorum - 1)
                 break;
+            if (node == port || isDown(node))
+                continue;
+            try {
+                long stamp = versionOf(HttpClient.exchange(replicaRequest("HEAD", path), node, verbose));
+                seen.put(node, stamp);
+                if (stamp > newest) {
+                    newest = stamp;
+                    source = node;
+                }
+            } catch (IOException e) {
+                markDown(node, e);
             }
-            String[] temp = line.split(":");
-            if(line.contains("Host"))
-                setHost(temp[1]);
-            if(line.startsWith("overwrite")){
-                String[] append = line.split("=");
-                overWrite= Boolean.parseBoolean(append[1]);
+        }
+        if (source != port) {
+            try {
+                HttpClient.Response copy = HttpClient.exchange(replicaRequest("GET", path + "?raw"), source, verbose);
+                if (copy.statusCode == 200 && !copy.isTruncated() && versionOf(copy) == newest)
+                    storeCopy(key, copy.body.toByteArray(), newest);
+            } catch (IOException e) {
+                markDown(source, e);
             }
-            else{
-                if(temp[1].equals("null"))
-                    temp[1] = "localhost";
-                headers.append("\t\"").append(temp[0]).append("\": \"").append(temp[1]).append("\",\n");
+        }
+        for (Map.Entry<Integer, Long> node : seen.entrySet()) {
+            if (node.getValue() < newest)
+                hint(node.getKey(), path);
+        }
+    }
+
+    private byte[] replicaRequest(String method, String target) {
+        return (method + " " + target + " HTTP/1.0\r\n" + REPLICA + ": " + port + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the Object-Version of a replica's answer, 0 when it has no copy.
+     */
+    private static long versionOf(HttpClient.Response response) {
+        if (response.statusCode != 200)
+            return 0;
+        for (String line : response.head.split("\r\n")) {
+            if (line.regionMatches(true, 0, OBJECT_VERSION + ":", 0, OBJECT_VERSION.length() + 1))
+                return parseLength(line.substring(OBJECT_VERSION.length() + 1), 0);
+        }
+        return 0;
+    }
+
+    private void hint(int node, String path) {
+        // in compute, so the set cannot be dropped as empty between its lookup and the add
+        hints.compute(node, (replica, paths) -> {
+            if (paths == null)
+                paths = ConcurrentHashMap.newKeySet();
+            paths.add(path);
+            return paths;
+        });
+    }
+
+    private boolean isDown(int node) {
+        Long until = downUntil.get(node);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    /**
+     * Leaves a node alone after a failed request: for HINT_RETRY_MILLIS when it did not answer,
+     * or for the time it asked for when it refused the connection as overloaded.
+     */
+    private void markDown(int node, Exception failure) {
+        long millis = failure instanceof ServerBusyException ? ((ServerBusyException) failure).getRetryAfterMillis() : HINT_RETRY_MILLIS;
+        downUntil.put(node, System.currentTimeMillis() + millis);
+    }
+
+    private static long retryAfterSeconds(ServerBusyException busy) {
+        return Math.max(1, (busy.getRetryAfterMillis() + 999) / 1000);
+    }
+
+    /**
+     * Sends one object a replica has missed to it. Called between requests, so a client waits for one transfer at most;
+     * a replica that is down costs a single SYN and is tried again after HINT_RETRY_MILLIS.
+     */
+    private void deliverHint() throws IOException {
+        for (Map.Entry<Integer, Set<String>> node : hints.entrySet()) {
+            Iterator<String> paths = node.getValue().iterator();
+            if (isDown(node.getKey()) || !paths.hasNext())
+                continue;
+            String path = paths.next();
+            String key = storageKey(path);
+            boolean delivered;
+            UDPClient.setHandshakeAttempts(1);
+            try {
+                delivered = key == null || push(node.getKey(), path, key);
+            } finally {
+                UDPClient.setHandshakeAttempts(3);
             }
+            if (delivered) {
+                node.getValue().remove(path);
+                hints.computeIfPresent(node.getKey(), (replica, rest) -> rest.isEmpty() ? null : rest);
+            }
+            return;
         }
-        headers.setLength(headers.length()-1);
-        headers.append("\n  },");
-        return headers.toString();
     }
 
-    public static String generateJSON(String data){
+    /**
+     * Returns the id of a resumable upload from the Upload-Id header, or null when there is none or it is not valid.
+     */
+    private static String uploadId(HttpRequestParser request) {
+        String uploadId = request.getHeader("Upload-Id");
+        return FileUpload.isValidId(uploadId) ? uploadId : null;
+    }
+
+    /**
+     * Returns the offset a request continues a resumable upload at, from its Upload-Offset header, 0 by default.
+     */
+    private static long requestedUploadOffset(HttpRequestParser request) {
+        return parseLength(request.getHeader("Upload-Offset"), 0);
+    }
+
+    private static long parseLength(String value, long defaultValue) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Answers "HEAD /name" with an Upload-Id header with the number of bytes that upload has received,
+     * so an interrupted client knows where to continue. Without Upload-Id it answers with the validators of the object,
+     * and its Object-Version in a replicated cluster, which replicas compare on reads.
+     */
+    private ResponseWriter processHEADRequest(HttpRequestParser request, RequestContext context) throws IOException {
+        String uploadId = uploadId(request);
+        String key = storageKey(request.getPath());
+        if (uploadId == null && key != null && isObjectPath(request.getPath())) {
+            Lock lock = locks.get(key).readLock();
+            lock.lock();
+            try {
+                StorageBackend.Stat stat = backend.stat(key);
+                context.setStatusCode(stat != null ? 200 : 404);
+                if (stat != null) {
+                    context.setEtag(stat.etag);
+                    context.setLastModified(stat.lastModified);
+                    context.setVersion(versions != null ? versions.get(key) : 0);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return validators(new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())), context, "").noBody();
+        }
+        if (uploadId == null || key == null) {
+            context.setStatusCode(400);
+            return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode())).noBody();
+        }
+        // a backend that does not keep partial uploads reports 0, so the client starts over
+        context.setUploadOffset(backend.uploadOffset(key, uploadId));
+        context.setStatusCode(200);
+        return new ResponseWriter(context.getStatusCode(), map.get(context.getStatusCode()))
+                .header("Upload-Offset", Long.toString(context.getUploadOffset()))
+                .noBody();
+    }
+
+    /**
+     * Returns the SHA-256 a client announced with "Digest: sha-256=base64", or null.
+     */
+    private static byte[] announcedDigest(HttpRequestParser request) {
+        String digest = request.getHeader("Digest");
+        if (digest == null || !digest.regionMatches(true, 0, "sha-256=", 0, 8))
+            return null;
+        try {
+            byte[] value = Base64.getDecoder().decode(digest.substring(8).trim());
+            return value.length == 32 ? value : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private List<String> processPOSTRequest_FileStorage(String url,HttpRequestParser request,RequestContext context) throws IOException {
+
+        List<String> status = new ArrayList<>();
+        String[] path = url.split("\\?");
+
+        if(path[0].startsWith("/")) {
+            String requestedPath = getBaseDirectory() + "/" + path[0];
+            Path absolutePath = Paths.get(getBaseDirectory()).resolve(requestedPath).toAbsolutePath().normalize();
+
+            if (absolutePath.startsWith(Paths.get(getBaseDirectory()).toAbsolutePath())) {
+                String key = storageKey(path[0]);
+                String name = key.substring(key.lastIndexOf('/') + 1);
+                String uploadId = uploadId(request);
+                if (uploadId != null && requestedUploadOffset(request) != context.getUploadOffset()) {
+                    context.setStatusCode(409);
+                    status.add("409 Conflict: The upload continues at byte " + context.getUploadOffset() + ".");
+                    return status;
+                }
+                StorageBackend.Write upload = context.getUpload();
+                long contentLength = request.getContentLength();
+                if (upload == null && contentLength > backend.maxObjectSize()) {
+                    context.setStatusCode(413);
+                    status.add("413 Payload Too Large: The storage engine keeps objects of up to " + backend.maxObjectSize() + " bytes.");
+                    return status;
+                }
+                if (upload != null && uploadId != null)
+                    context.setUploadOffset(upload.getBytesReceived());
+                if (upload == null || (contentLength >= 0 && request.getBodyReceived() < contentLength)) {
+                    context.setStatusCode(400);
+                    status.add("400 Bad Request: The content was not received completely.");
+                    return status;
+                }
+                long uploadLength = uploadId != null ? parseLength(request.getHeader("Upload-Length"), -1) : -1;
+                if (upload.getBytesReceived() < uploadLength) {
+                    // a part of a resumable upload, put in place once all Upload-Length bytes are there
+                    context.setStatusCode(202);
+                    status.add("202 Accepted: " + upload.getBytesReceived() + " of " + uploadLength + " bytes received.");
+                    return status;
+                }
+                // the stamp of a copy another replica sends, 0 for a write made through this node
+                long stamp = replicaStamp(request);
+                Lock lock = locks.get(key).writeLock();
+                lock.lock();
+                boolean existed, committed, newer, tooLarge;
+                try {
+                    existed = backend.contains(key);
+                    newer = stamp > 0 && existed && stamp <= versions.get(key);
+                    // an append must leave an object the engine can still keep
+                    StorageBackend.Stat current = existed && !context.isOverWrite() && !newer ? backend.stat(key) : null;
+                    tooLarge = current != null && upload.getBytesReceived() > backend.maxObjectSize() - current.size;
+                    committed = newer || tooLarge || upload.commit(!context.isOverWrite());
+                    if (committed && !newer && !tooLarge) {
+                        invalidateCached(key);
+                        if (versions != null)
+                            versions.put(key, stamp > 0 ? stamp : versions.next());
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (tooLarge) {
+                    context.setStatusCode(413);
+                    status.add("413 Payload Too Large: The storage engine keeps objects of up to " + backend.maxObjectSize() + " bytes.");
+                    return status;
+                }
+                if (!committed) {
+                    context.setStatusCode(400);
+                    status.add("400 Bad Request: The content does not match its Digest header.");
+                    return status;
+                }
+                if (newer) {
+                    status.add("A newer version of " + name + " is kept");
+                    return status;
+                }
+                if (!existed) {
+                    context.setStatusCode(201);
+                    status.add(name + " doesn't exist, creating a new file");
+                }
+                status.add("Content has been saved to a file");
+                if (versions != null && stamp == 0) {
+                    int stored = replicate(path[0], key);
+                    if (stored < writeQuorum()) {
+                        context.setStatusCode(503);
+                        status.add("503 Service Unavailable: Stored on " + stored + " of the " + writeQuorum()
+                                + " replicas needed, the others receive it once they answer again.");
+                    }
+                }
 
-        StringBuilder json = new StringBuilder();
-        json.append("\n  \"json\":{");
+            } else{
+                context.setStatusCode(403);
+                status.add("403 Forbidden: Access to this directory is not allowed.");
+            }
+        }
+        return status;
+    }
 
-        data = data.replace("{","");
-        data = data.replace("}","");
-        String[] jsonData = data.split(",");
 
-        for(String attribute : jsonData )
-            json.append("\n\t").append(attribute).append(",");
 
-        json.setLength(json.length()-1);
-        json.append("\n  },");
+    /**
+     * Returns the key of the object at a URL path in the backend, its file name relative to the
+     * base directory, or null when the path leaves the base directory.
+     */
+    private String storageKey(String path) {
+        Path base = Paths.get(getBaseDirectory()).toAbsolutePath().normalize();
+        Path file = Paths.get(getBaseDirectory() + "/" + path + ".txt").toAbsolutePath().normalize();
+        if (!file.startsWith(base))
+            return null;
+        return base.relativize(file).toString().replace(File.separatorChar, '/');
+    }
 
-        return json.toString();
+    /**
+     * Returns the key an object's cached fragments are kept under: its entity tag when that names the content,
+     * so that duplicate objects share their entries, otherwise its storage key.
+     */
+    private String cacheKey(String key, StorageBackend.Stat stat) {
+        return backend.isContentAddressed() ? stat.etag : key;
     }
 
-    public static String generateData(String dataAttributes){
-        StringBuilder data = new StringBuilder();
-        data.append("  \"data\":{");
+    /**
+     * Drops the rendered fragment of an object that has just been written, and its gzip copies.
+     * Entries kept by content need no invalidation, the content under a tag never changes.
+     */
+    private void invalidateCached(String key) {
+        fileCache.invalidate(key);
+        fileCache.invalidate(key + GZIP_FRAGMENT);
+        fileCache.invalidate(key + GZIP_RAW);
+    }
 
-        dataAttributes = dataAttributes.replace("{","");
-        dataAttributes = dataAttributes.replace("}","");
-        String[] jsonData = dataAttributes.split(",");
+    /**
+     * Returns the gzip copy of the fragment rendered from an object when the response is sent in gzip, otherwise null.
+     * It is compressed once and then cached as long as the fragment is.
+     */
+    private byte[] compressFragment(RequestContext context, String cacheKey, String etag, byte[] fragment) throws IOException {
+        if (!CompressingSource.GZIP.equals(context.getEncoding()))
+            return null;
+        byte[] gzip = fileCache.get(cacheKey + GZIP_FRAGMENT, etag);
+        if (gzip == null) {
+            gzip = CompressingSource.compress(fragment, CompressingSource.GZIP);
+            fileCache.put(cacheKey + GZIP_FRAGMENT, etag, gzip);
+        }
+        return gzip;
+    }
 
-        for(String attribute : jsonData )
-            data.append(attribute.replace("\"","\\\"")).append(",");
+    /**
+     * Records the validators of the object being served and returns whether the client's copy is still current,
+     * judged by If-None-Match or, when the request has none, by If-Modified-Since.
+     *
+     * @param etag         The quoted entity tag of the object.
+     * @param lastModified The modification time of the object in milliseconds, or -1 when it has none.
+     */
+    private static boolean notModified(HttpRequestParser request, RequestContext context, String etag, long lastModified) {
+        context.setEtag(etag);
+        context.setLastModified(lastModified);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // weak comparison, a validator from the JSON response matches the raw one and the other way round
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag))
+                    return true;
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince == null || lastModified < 0)
+            return false;
+        long since = ResponseWriter.parseHttpDate(ifModifiedSince);
+        // HTTP dates have whole seconds
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
 
-        data.setLength(data.length()-1);
-        data.append("},\n");
+    /**
+     * Adds the ETag and Last-Modified headers of the object served, if any.
+     *
+     * @param weakPrefix "W/" when the body is not byte for byte the object, otherwise "".
+     */
+    private static ResponseWriter validators(ResponseWriter response, RequestContext context, String weakPrefix) {
+        if (context.getEtag() != null)
+            response.header("ETag", weakPrefix + context.getEtag());
+        if (context.getLastModified() >= 0)
+            response.header("Last-Modified", ResponseWriter.httpDate(context.getLastModified()));
+        if (context.getVersion() > 0)
+            response.header(OBJECT_VERSION, Long.toString(context.getVersion()));
+        return response;
+    }
 
-        return data.toString();
+    /**
+     * Answers "GET /name?raw" with the bytes of the object, streamed from the backend as they are sent,
+     * or with the single byte range a Range header asks for. The whole object is compressed when the client accepts
+     * gzip or deflate, before it is sent when it is small enough, otherwise while it is sent. Returns null when there is no such object, so the request gets the usual JSON error.
+     */
+    private ResponseWriter processRawGETRequest(HttpRequestParser request, RequestContext context) throws IOException {
+        String key = storageKey(request.getPath());
+        if (key == null)
+            return null;
+        StorageBackend.Stat stat;
+        PayloadSource content;
+        long[] range;
+        byte[] compressed = null;
+        // once open the object is read to the end even if a POST replaces it
+        Lock lock = locks.get(key).readLock();
+        lock.lock();
+        try {
+            stat = backend.stat(key);
+            if (stat == null)
+                return null;
+            // taken with the content, so a replica fetching the object gets the stamp of the bytes it receives
+            if (versions != null)
+                context.setVersion(versions.get(key));
+            if (notModified(request, context, stat.etag, stat.lastModified))
+                return rawResponse(context, 304).noBody();
+            range = requestedRange(request, context, stat.size);
+            if (range != null && range.length == 0)
+                return rawResponse(context, 416).header("Content-Range", "bytes */" + stat.size).noBody();
+            if (range == null && context.getEncoding() != null && stat.size >= CompressingSource.MIN_LENGTH
+                    && stat.size <= MAX_BUFFERED_COMPRESSION)
+                compressed = compressObject(context, key, stat);
+            // a range is read from its first byte, the rest of the object is not touched
+            content = range == null ? backend.open(key, 0, stat.size) : backend.open(key, range[0], range[1] - range[0] + 1);
+            if (content == null)
+                return null;
+        } finally {
+            lock.unlock();
+        }
+        if (compressed != null && compressed.length < stat.size) {
+            content.close();
+            return compressedResponse(context).body(compressed);
+        }
+        if (range == null)
+            return rawResponse(context, 200)
+                    .header(ResponseWriter.CONTENT_TYPE_OCTET_STREAM)
+                    .body(content, stat.size);
+        return rawResponse(context, 206)
+                .header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + stat.size)
+                .header(ResponseWriter.CONTENT_TYPE_OCTET_STREAM)
+                .body(content, range[1] - range[0] + 1);
     }
 
-    public static String generateArgs(String url){
+    /**
+     * Starts a response to a raw GET, with the validators of the object and Accept-Ranges.
+     */
+    private ResponseWriter rawResponse(RequestContext context, int statusCode) {
+        context.setStatusCode(statusCode);
+        return validators(new ResponseWriter(statusCode, map.get(statusCode)), context, "")
+                .header(ResponseWriter.ACCEPT_RANGES)
+                .header(ResponseWriter.VARY_ACCEPT_ENCODING);
+    }
 
-        StringBuilder args = new StringBuilder();
-        args.append("\n  \"args\":{");
+    /**
+     * Starts a 200 response to a raw GET sent in the negotiated content coding. Its validator is weak,
+     * as the bytes sent are not the object's bytes, so a Range with If-Range after it gets the whole object.
+     */
+    private ResponseWriter compressedResponse(RequestContext context) {
+        context.setStatusCode(200);
+        return validators(new ResponseWriter(200, map.get(200)), context, "W/")
+                .header(ResponseWriter.ACCEPT_RANGES)
+                .header(ResponseWriter.VARY_ACCEPT_ENCODING)
+                .header("Content-Encoding", context.getEncoding())
+                .header(ResponseWriter.CONTENT_TYPE_OCTET_STREAM);
+    }
 
-        String[] extractQueryParameters = url.split("\\?");
+    /**
+     * Returns an object compressed in the negotiated content coding, or null when it is gone. The gzip copy is cached
+     * as long as the object does not change, a deflate one is rarely asked for and compressed every time.
+     */
+    private byte[] compressObject(RequestContext context, String key, StorageBackend.Stat stat) throws IOException {
+        boolean gzip = CompressingSource.GZIP.equals(context.getEncoding());
+        String cacheKey = cacheKey(key, stat);
+        byte[] compressed = gzip ? fileCache.get(cacheKey + GZIP_RAW, stat.etag) : null;
+        if (compressed != null)
+            return compressed;
+        PayloadSource content = backend.open(key, 0, stat.size);
+        if (content == null)
+            return null;
+        compressed = CompressingSource.compress(content, context.getEncoding());
+        if (gzip)
+            fileCache.put(cacheKey + GZIP_RAW, stat.etag, compressed);
+        return compressed;
+    }
 
-        if(extractQueryParameters.length>1) {
-            if(!extractQueryParameters[1].equals("null")){
-                String[] queryParameters = extractQueryParameters[1].split("&");
+    /**
+     * Returns the first and last byte of the single range a request asks for in an object of the given size,
+     * null to send the whole object, or an empty array when no byte of the object is in the range.
+     * An If-Range validator that no longer matches, several ranges or a malformed header all mean the whole object.
+     */
+    private static long[] requestedRange(HttpRequestParser request, RequestContext context, long size) {
+        String range = request.getHeader("Range");
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return null;
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null) {
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                // strong comparison, a weak tag never matches
+                if (!ifRange.equals(context.getEtag()))
+                    return null;
+            } else if (context.getLastModified() < 0
+                    || context.getLastModified() / 1000 != ResponseWriter.parseHttpDate(ifRange) / 1000) {
+                return null;
+            }
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                // "-n" asks for the last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix < 0)
+                    return null;
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if (first < 0 || last < first)
+                    return null;
+                last = Math.min(last, size - 1);
+            }
+            if (first >= size || last < first)
+                return new long[0];
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-                for (String queryParameter : queryParameters) {
-                    String[] key_values = queryParameter.split("=");
-                    args.append("\n\t\"").append(key_values[0]).append("\": \"").append(key_values[1]).append("\",");
+    /**
+     * Writes the member of a GET response with the stored object: its lines as "data", the listing as "files",
+     * or the error as "files".
+     */
+    private void processGETRequest_FileStorage(String url, HttpRequestParser request, RequestContext context, JsonWriter json) throws IOException {
+        String[] path = url.split("\\?");
+        String requestedPath = getBaseDirectory() + "/" + path[0];
+        Path absolutePath = Paths.get(getBaseDirectory()).resolve(requestedPath).toAbsolutePath().normalize();
+        if(absolutePath.startsWith(Paths.get(getBaseDirectory()).toAbsolutePath())) {
+            if ("/".equals(path[0])) {
+                //display all files in the directory, from the index instead of a directory scan
+                context.setStatusCode(200);
+                if (request.getQuery("prefix") != null || request.getQuery("limit") != null || request.getQuery("cursor") != null) {
+                    writeListingPage(request, context, json);
+                    return;
+                }
+                json.name("files").fragment(backend.listing(), null);
+            } else if (path[0].startsWith("/")) {
+                //retrieve the content of the object, under the read lock so no POST replaces it meanwhile
+                String key = storageKey(path[0]);
+                Lock lock = locks.get(key).readLock();
+                lock.lock();
+                try {
+                    StorageBackend.Stat stat = backend.stat(key);
+                    PayloadSource content = null;
+                    if (stat != null) {
+                        if (notModified(request, context, stat.etag, stat.lastModified)) {
+                            context.setStatusCode(304);
+                            return;
+                        }
+                        byte[] cached = fileCache.get(cacheKey(key, stat), stat.etag);
+                        if (cached != null) {
+                            context.setStatusCode(200);
+                            json.name("data").fragment(cached, compressFragment(context, cacheKey(key, stat), stat.etag, cached));
+                            return;
+                        }
+                        content = backend.open(key, 0, stat.size);
+                    }
+                    if (content != null) {
+                        // the tag was taken before reading, so a write from outside the server racing with the read makes the entry stale
+                        try {
+                            byte[] rendered = renderLines(content.toInputStream());
+                            fileCache.put(cacheKey(key, stat), stat.etag, rendered);
+                            context.setStatusCode(200);
+                            json.name("data").fragment(rendered, compressFragment(context, cacheKey(key, stat), stat.etag, rendered));
+                        } catch (IOException e) {
+                            context.setStatusCode(500);
+                            context.setEtag(null);
+                            context.setLastModified(-1);
+                            writeMessages(json, "files", Collections.singletonList("Internal error"));
+                        }
+                    } else{
+                        context.setStatusCode(404);
+                        writeMessages(json, "files", Arrays.asList("404 Not Found", "File does not exist in the directory"));
+                    }
+                } finally {
+                    lock.unlock();
                 }
-                args.append("\n  ");
+
             }
+            else{
+                context.setStatusCode(404);
+                writeMessages(json, "files", Collections.singletonList("Directory not found"));
 
+            }
+        }
+        else{
+            context.setStatusCode(403);
+            writeMessages(json, "files", Arrays.asList("403 Forbidden", "Access to this directory is not allowed"));
         }
-        args.append("},\n");
+    }
 
-        return args.toString();
+    /**
+     * Writes one page of the listing as "files", with the cursor of the next page as "next_cursor", null after the last.
+     * The page holds at most limit names, MAX_PAGE by default and at most, that start with prefix and come after the cursor.
+     */
+    private void writeListingPage(HttpRequestParser request, RequestContext context, JsonWriter json) throws IOException {
+        String prefix = request.getQuery("prefix");
+        try {
+            prefix = prefix == null ? "" : URLDecoder.decode(prefix, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            prefix = null;
+        }
+        long limit = parseLength(request.getQuery("limit"), MAX_PAGE);
+        String cursor = request.getQuery("cursor");
+        String after = cursor == null || cursor.isEmpty() ? null : DirectoryIndex.decodeCursor(cursor);
+        if (prefix == null || limit < 1 || (after == null && cursor != null && !cursor.isEmpty())) {
+            context.setStatusCode(400);
+            writeMessages(json, "files", Arrays.asList("400 Bad Request", "The prefix must be URL encoded, the limit a positive number and the cursor one from an earlier page"));
+            return;
+        }
+        DirectoryIndex.Page page = DirectoryIndex.page(backend.keys(), prefix, after, (int) Math.min(limit, MAX_PAGE));
+        json.name("files").beginArray();
+        for (String name : page.names)
+            json.value(name);
+        json.endArray();
+        json.name("next_cursor").value(page.next);
+    }
+
+    /**
+     * Renders the lines of an object as the "data" value of a response, an array of strings, and closes the stream.
+     * A byte sequence that is not UTF-8 becomes U+FFFD.
+     */
+    private static byte[] renderLines(InputStream content) throws IOException {
+        JsonWriter json = new JsonWriter(new ResponseBody(), 1).beginArray();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(content, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                json.value(line);
+        }
+        return json.endArray().finish().toByteArray();
+    }
 
+    /**
+     * Returns the first line of the request body that holds a JSON object, or null.
+     * Only the lines before the first empty one are considered.
+     */
+    private static String firstJsonLine(HttpRequestParser request) {
+        byte[] buf = request.getBuffer();
+        int pos = request.getBodyOffset();
+        int end = pos + request.getBodyLength();
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < end && buf[lineEnd] != '\n')
+                ++lineEnd;
+            int contentEnd = lineEnd > pos && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd == pos)
+                break;
+            if (buf[pos] == '{')
+                return new String(buf, pos, contentEnd - pos, StandardCharsets.UTF_8);
+            pos = lineEnd + 1;
+        }
+        return null;
     }
 
-    public static String getDate(){
-        Date currentDate = new Date();
-        SimpleDateFormat dateFormat = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss z");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        String formattedDate = dateFormat.format(currentDate);
-        formattedDate = formattedDate.replace(".", "");
-        return formattedDate;
+    /**
+     * Takes the Host and overwrite headers of a request into its context.
+     */
+    private static void readHeaders(HttpRequestParser request, RequestContext context) {
+        for (int i = 0; i < request.getHeaderCount(); ++i) {
+            if(request.headerNameEquals(i, "Host"))
+                context.setHost(request.getHeaderValue(i));
+            if(request.headerStartsWith(i, "overwrite")){
+                // sent either as "overwrite=false" or as "overwrite: false"
+                String line = request.getHeaderLine(i);
+                int separator = line.indexOf('=') >= 0 ? line.indexOf('=') : line.indexOf(':');
+                context.setOverWrite(Boolean.parseBoolean(line.substring(separator + 1).trim()));
+            }
+        }
+    }
+
+    private static void writeHeaders(JsonWriter json, HttpRequestParser request) {
+        json.name("headers").beginObject();
+        for (int i = 0; i < request.getHeaderCount(); ++i) {
+            if (request.headerStartsWith(i, "overwrite"))
+                continue;
+            request.writeHeaderName(i, json);
+            if (request.headerValueEquals(i, "null"))
+                json.value("localhost");
+            else
+                request.writeHeaderValue(i, json);
+        }
+        json.endObject();
+    }
+
+    private static void writeArgs(JsonWriter json, HttpRequestParser request) {
+        json.name("args").beginObject();
+        int count = request.getQueryCount();
+        // a client without a query string sends "?null"
+        if (!(count == 1 && request.queryNameEquals(0, "null"))) {
+            for (int i = 0; i < count; ++i) {
+                request.writeQueryName(i, json);
+                request.writeQueryValue(i, json);
+            }
+        }
+        json.endObject();
     }
 
 
@@ -0,0 +1,117 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring that assigns every key to one of the storage nodes of a cluster.
+ * Each node is placed on the ring at VIRTUAL_NODES points, and a key belongs to the node at the first point
+ * at or after the key's own hash, so every node owns many small arcs and the keys spread evenly.
+ * Adding a node only takes over the arcs in front of its points, about 1/N of the keys, and removing one
+ * hands its arcs to the nodes after them; no other key changes owner.
+ * Nodes are named by their port, as every node of a cluster runs on localhost behind the same router.
+ */
+class HashRing {
+    static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, Integer> points = new TreeMap<>();
+    private final List<Integer> nodes;
+
+    /**
+     * Constructs the ring of a cluster.
+     *
+     * @param nodes The ports of the nodes, in any order. Every member of the cluster must use the same set.
+     */
+    HashRing(List<Integer> nodes) {
+        if (nodes.isEmpty())
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        List<Integer> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted);
+        this.nodes = Collections.unmodifiableList(sorted);
+        for (int node : sorted) {
+            for (int i = 0; i < VIRTUAL_NODES; ++i)
+                points.put(hash("localhost:" + node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Parses a list of ports such as "8080,8081,8082".
+     */
+    static HashRing parse(String ports) {
+        List<Integer> nodes = new ArrayList<>();
+        for (String port : ports.split(",")) {
+            if (!port.trim().isEmpty())
+                nodes.add(Integer.parseInt(port.trim()));
+        }
+        return new HashRing(nodes);
+    }
+
+    List<Integer> nodes() {
+        return nodes;
+    }
+
+    boolean contains(int node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * Returns the port of the node that owns the object at a URL path.
+     */
+    int owner(String path) {
+        Map.Entry<Long, Integer> point = points.ceilingEntry(hash(keyOf(path)));
+        // past the last point the ring wraps around to the first
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    /**
+     * Returns the nodes that keep copies of the object at a URL path: the owner, then the next distinct nodes
+     * around the ring. Adding or removing a node changes the replicas of the same 1/N of the keys as their owner.
+     *
+     * @param count The number of replicas, at most the number of nodes.
+     */
+    List<Integer> replicas(String path, int count) {
+        List<Integer> replicas = new ArrayList<>(count);
+        long hash = hash(keyOf(path));
+        for (int node : points.tailMap(hash, true).values()) {
+            if (replicas.size() == count)
+                return replicas;
+            if (!replicas.contains(node))
+                replicas.add(node);
+        }
+        for (int node : points.headMap(hash, false).values()) {
+            if (replicas.size() == count)
+                break;
+            if (!replicas.contains(node))
+                replicas.add(node);
+        }
+        return replicas;
+    }
+
+    /**
+     * Returns the key a URL path is placed on the ring by: the path with "." and ".." segments and repeated
+     * slashes resolved, so every spelling of an object's path reaches the same node.
+     */
+    static String keyOf(String path) {
+        return Paths.get("/", path).normalize().toString().replace(File.separatorChar, '/');
+    }
+
+    private static long hash(String value) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; ++i)
+            hash = hash << 8 | (digest[i] & 0xFF);
+        return hash;
+    }
+}
@@ -1,56 +1,383 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class HttpClient {
+    private static final ValidatorCache validators = new ValidatorCache();
+    // bodies from this size on are uploaded resumably
+    private static final int RESUMABLE_BYTES = 64 * 1024;
+    // attempts to continue a transfer after its connection failed
+    private static final int MAX_RESUMES = 5;
+    private static final String ACCEPT_ENCODING = "Accept-Encoding: gzip, deflate\r\n";
+    private static volatile HashRing cluster;
+    private static volatile int replicas = 1;
+
+    /**
+     * Keeps the validator cache in a directory, so repeated GETs from separate runs can be answered with 304.
+     */
+    public static void setCacheDirectory(String directory) throws IOException {
+        validators.setDirectory(Paths.get(directory));
+    }
+
+    /**
+     * Sends every request for an object to the node of a cluster that owns it, instead of to the port given.
+     * Any node would pass the request on, this saves the extra hop.
+     *
+     * @param cluster The ring of the cluster, the same the nodes were started with, or null.
+     */
+    static void setCluster(HashRing cluster) {
+        HttpClient.cluster = cluster;
+    }
+
+    /**
+     * Sets how many nodes of the cluster keep a copy of each object, as the nodes were started with.
+     * GETs are then spread over the replicas of their object, writes still go to its owner.
+     */
+    static void setReplicas(int replicas) {
+        HttpClient.replicas = replicas;
+    }
+
+    /**
+     * Returns the port of the node to send a request for a URL path to.
+     */
+    private static int route(String path, int port) {
+        HashRing ring = cluster;
+        return ring == null ? port : ring.owner(path);
+    }
+
+    /**
+     * Returns the port of the node to send a read of a URL path to, any of the object's replicas.
+     */
+    private static int routeRead(String path, int port) {
+        HashRing ring = cluster;
+        if (ring == null || replicas == 1)
+            return route(path, port);
+        List<Integer> nodes = ring.replicas(path, replicas);
+        return nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+    }
+
     public static String httpGET(String url, int port, boolean verbose, String requestHeaders) throws IOException, URISyntaxException {
         URI uri = new URI(url);
         String host = uri.getHost();
         String path = uri.getRawPath();
         String queryParameters = uri.getRawQuery();
-        UDPClient myClientSocket = new UDPClient(3000, port,verbose);
-        String[] headers = requestHeaders.split(",");
+        int node = routeRead(path, port);
 
         // Construct the request message
-        StringBuilder requestMessage = new StringBuilder(String.format("GET %s?%s HTTP/1.0\r\nHost: %s\r\nUser-Agent: Concordia-HTTP/1.0\r\n", path, queryParameters, host));
-        for (String header : headers) {
-            requestMessage.append(header).append("\r\n");
-        }
+        String request = getRequest(path, queryParameters, host, requestHeaders);
+        StringBuilder requestMessage = new StringBuilder(request);
+        // a copy from an earlier GET is revalidated, the server answers 304 without a body while it is current
+        ValidatorCache.Entry cached = validators.get(url);
+        if (cached != null && cached.etag != null)
+            requestMessage.append("If-None-Match: ").append(cached.etag).append("\r\n");
+        if (cached != null && cached.lastModified != null)
+            requestMessage.append("If-Modified-Since: ").append(cached.lastModified).append("\r\n");
         requestMessage.append("\r\n"); // Empty line to indicate the end of headers
-        myClientSocket.send(requestMessage.toString());
+        Response received = resume(exchange(requestMessage.toString().getBytes(StandardCharsets.UTF_8), node, verbose), request,
+                resume -> exchange(resume.getBytes(StandardCharsets.UTF_8), node, verbose));
+
+        String[] response = splitResponse(received.text());
+        if (received.statusCode == 304 && cached != null) {
+            response[1] = cached.body;
+        } else if (received.statusCode == 200) {
+            String etag = headerValue(response[0], "ETag");
+            String lastModified = headerValue(response[0], "Last-Modified");
+            if (etag != null || lastModified != null)
+                validators.put(url, etag, lastModified, response[1]);
+        }
+        return verbose ? response[0] + response[1] : response[1];
+
+    }
 
-        String output = UDPClient.receive();
-        return processResponse(verbose, output);
 
+    /**
+     * Returns the request line and headers of a GET, without the empty line that ends them.
+     * A raw GET does not ask for a content coding: the object's own bytes have a Content-Length and a strong
+     * entity tag, so a transfer that is cut off can be told apart from a complete one and resumed from where it stopped.
+     */
+    static String getRequest(String path, String queryParameters, String host, String requestHeaders) {
+        StringBuilder request = new StringBuilder(String.format("GET %s?%s HTTP/1.0\r\nHost: %s\r\nUser-Agent: Concordia-HTTP/1.0\r\n", path, queryParameters, host));
+        if (!hasParameter(queryParameters, "raw"))
+            request.append(ACCEPT_ENCODING);
+        for (String header : requestHeaders.split(",")) {
+            // an empty entry would end the header section early
+            if (!header.isEmpty())
+                request.append(header).append("\r\n");
+        }
+        return request.toString();
     }
 
+    private static boolean hasParameter(String queryParameters, String name) {
+        if (queryParameters == null)
+            return false;
+        for (String parameter : queryParameters.split("&")) {
+            if (parameter.equals(name) || parameter.startsWith(name + "="))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends a request and receives the response, on a connection of its own.
+     */
+    interface Exchange {
+        Response send(String request) throws IOException;
+    }
+
+    /**
+     * Completes a body cut off by a lost connection with range requests for the missing bytes, as long as the object
+     * is still the same; one that changed meanwhile is received again from the start.
+     *
+     * @param received The response received, possibly cut off.
+     * @param request  The request line and headers it answered, without the empty line that ends them.
+     * @throws IOException If the body is still incomplete after MAX_RESUMES attempts, or cannot be resumed.
+     */
+    static Response resume(Response received, String request, Exchange exchange) throws IOException {
+        for (int attempt = 0; received.isTruncated() && received.acceptsRanges() && attempt < MAX_RESUMES; ++attempt) {
+            String etag = headerValue(received.head, "ETag");
+            Response rest = exchange.send(request + "Range: bytes=" + received.body.size() + "-\r\n"
+                    + (etag != null ? "If-Range: " + etag + "\r\n" : "") + "\r\n");
+            if (rest.statusCode == 206 && rangeStart(rest.head) == received.body.size()) {
+                received.body.write(rest.body.toByteArray());
+            } else if (rest.statusCode == 200) {
+                // changed since the first response, what was received belongs to the old content
+                received = rest;
+            } else {
+                break;
+            }
+        }
+        if (received.isTruncated())
+            throw new IOException("Incomplete response: " + received.body.size() + " of " + received.contentLength + " bytes received");
+        return received;
+    }
 
     public static String httpPOST(String URL, String parameters, String requestHeaders, int port, boolean verbose) throws IOException, URISyntaxException {
         URI uri = new URI(URL);
         String host = uri.getHost();
         String path = uri.getRawPath();
+        port = route(path, port);
 
         String[] headers = requestHeaders.split(",");
 
         // Construct the request message
-        String requestMessage = String.format("POST %s HTTP/1.0\r\nHost: %s\r\n", path, host);
+        String requestMessage = String.format("POST %s HTTP/1.0\r\nHost: %s\r\n", path, host) + ACCEPT_ENCODING;
         for (String header : headers) {
-            requestMessage += header + "\r\n";
+            if (!header.isEmpty())
+                requestMessage += header + "\r\n";
+        }
+        // the server frames the body with Content-Length, which counts bytes rather than characters
+        byte[] body = parameters.getBytes(StandardCharsets.UTF_8);
+        // a large body is sent as a resumable upload, continued from the bytes the server kept if the connection fails
+        String uploadId = body.length >= RESUMABLE_BYTES ? UUID.randomUUID().toString() : null;
+        long offset = 0;
+        for (int attempt = 0; ; ++attempt) {
+            String head = requestMessage + "Content-Length: " + (body.length - offset) + "\r\n";
+            if (uploadId != null)
+                head += "Upload-Id: " + uploadId + "\r\nUpload-Offset: " + offset + "\r\nUpload-Length: " + body.length + "\r\n";
+            head += "User-Agent: Concordia-HTTP/1.0\r\n\r\n";
+            byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+            byte[] request = Arrays.copyOf(headBytes, headBytes.length + body.length - (int) offset);
+            System.arraycopy(body, (int) offset, request, headBytes.length, body.length - (int) offset);
+            Response received;
+            try (UDPClient client = new UDPClient(3000, port, verbose)) {
+                try {
+                    // Send the request message
+                    client.send(request);
+                } catch (IOException e) {
+                    if (uploadId == null || attempt >= MAX_RESUMES)
+                        throw e;
+                    if (verbose)
+                        System.out.println(e.getMessage() + ", resuming the upload");
+                    offset = uploadOffset(path, host, uploadId, body.length, port, verbose);
+                    continue;
+                }
+
+                // Receive the response
+                received = Response.receive(client);
+            }
+            String reported = headerValue(received.head, "Upload-Offset");
+            if (received.statusCode == 409 && reported != null && attempt < MAX_RESUMES) {
+                // the server kept a different number of bytes than this attempt assumed
+                offset = parseUploadOffset(reported, body.length);
+                continue;
+            }
+            return processResponse(verbose, received.text());
+        }
+    }
+
+    /**
+     * Fetches several objects in one request instead of one connection each.
+     *
+     * @param url   The server, such as "http://localhost:8080".
+     * @param names The URL paths of the objects, such as "/a".
+     * @return A frame per name in the same order, with status 200 and the object's bytes,
+     *         or 404, 413 for an object too large for a batch, 403 or 500 and no bytes.
+     */
+    public static List<BatchFrames.Frame> batchGET(String url, List<String> names, int port, boolean verbose) throws IOException, URISyntaxException {
+        List<BatchFrames.Frame> frames = new ArrayList<>(Collections.nCopies(names.size(), null));
+        // in a cluster one batch goes to each node, with the names it owns
+        for (Map.Entry<Integer, List<Integer>> node : partition(names, port).entrySet()) {
+            List<String> part = new ArrayList<>();
+            for (int position : node.getValue())
+                part.add(names.get(position));
+            byte[] body = String.join("\n", part).getBytes(StandardCharsets.UTF_8);
+            List<BatchFrames.Frame> answered = batch(url, "/batch/get", body, part.size(), node.getKey(), "", verbose);
+            for (int i = 0; i < part.size(); ++i)
+                frames.set(node.getValue().get(i), answered.get(i));
+        }
+        return frames;
+    }
+
+    /**
+     * Stores several objects in one request, each as a POST of it would.
+     *
+     * @param url     The server, such as "http://localhost:8080".
+     * @param objects The bytes of each object by URL path, such as "/a".
+     * @return A frame per object in the same order, with status 201 for a new object, 200 for a replaced one,
+     *         or 403, 413 or 500.
+     */
+    public static List<BatchFrames.Frame> batchPUT(String url, Map<String, byte[]> objects, int port, boolean verbose) throws IOException, URISyntaxException {
+        List<BatchFrames.Frame> objectFrames = new ArrayList<>();
+        for (Map.Entry<String, byte[]> object : objects.entrySet())
+            objectFrames.add(new BatchFrames.Frame(0, object.getKey(), object.getValue()));
+        List<String> names = new ArrayList<>(objects.keySet());
+        List<BatchFrames.Frame> frames = new ArrayList<>(Collections.nCopies(names.size(), null));
+        for (Map.Entry<Integer, List<Integer>> node : partition(names, port).entrySet()) {
+            List<BatchFrames.Frame> part = new ArrayList<>();
+            for (int position : node.getValue())
+                part.add(objectFrames.get(position));
+            List<BatchFrames.Frame> answered = batch(url, "/batch/put", BatchFrames.encode(part), part.size(), node.getKey(), "", verbose);
+            for (int i = 0; i < part.size(); ++i)
+                frames.set(node.getValue().get(i), answered.get(i));
+        }
+        return frames;
+    }
+
+    /**
+     * Groups the positions of names by the node to send them to, all to the given port outside a cluster.
+     */
+    private static Map<Integer, List<Integer>> partition(List<String> names, int port) {
+        Map<Integer, List<Integer>> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); ++i)
+            nodes.computeIfAbsent(route(names.get(i), port), node -> new ArrayList<>()).add(i);
+        return nodes;
+    }
+
+    /**
+     * Sends one batch request and decodes the frames of the response.
+     *
+     * @param headers Further header lines, each ending with CRLF, or "".
+     */
+    static List<BatchFrames.Frame> batch(String url, String path, byte[] body, int expected, int port, String headers, boolean verbose) throws IOException, URISyntaxException {
+        String host = new URI(url).getHost();
+        String head = String.format("POST %s HTTP/1.0\r\nHost: %s\r\n", path, host) + ACCEPT_ENCODING
+                + "Content-Type: " + BatchFrames.CONTENT_TYPE + "\r\nContent-Length: " + body.length
+                + "\r\n" + headers + "User-Agent: Concordia-HTTP/1.0\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+        byte[] request = Arrays.copyOf(headBytes, headBytes.length + body.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+        Response received = exchange(request, port, verbose);
+        if (verbose)
+            System.out.println(received.head);
+        if (received.statusCode != 200)
+            throw new IOException("Batch request failed: " + received.head.split("\r\n")[0]);
+        byte[] frames = received.decodedBody();
+        List<BatchFrames.Frame> decoded = BatchFrames.decode(frames, 0, frames.length, true);
+        // the response ends with the connection, a missing frame is the only sign it was cut short
+        if (decoded.size() != expected)
+            throw new IOException("Incomplete batch response: " + decoded.size() + " of " + expected + " objects received");
+        return decoded;
+    }
+
+    /**
+     * Sends an encoded request as it is to the node at a port and returns the response as received,
+     * its body still in the content coding it was sent in. Used by a node passing a request on to another.
+     *
+     * @throws IOException If the node does not answer.
+     */
+    static Response exchange(byte[] request, int port, boolean verbose) throws IOException {
+        return exchange(PayloadSource.of(request), port, verbose);
+    }
+
+    /**
+     * Sends a request read from a source, such as a stored object after its head, and returns the response as received.
+     */
+    static Response exchange(PayloadSource request, int port, boolean verbose) throws IOException {
+        try (UDPClient client = new UDPClient(3000, port, verbose)) {
+            client.send(request);
+            return Response.receive(client);
+        }
+    }
+
+    /**
+     * Asks the server how many bytes of a resumable upload of length bytes it has kept.
+     */
+    private static long uploadOffset(String path, String host, String uploadId, int length, int port, boolean verbose) throws IOException {
+        String request = String.format("HEAD %s HTTP/1.0\r\nHost: %s\r\nUpload-Id: %s\r\nUser-Agent: Concordia-HTTP/1.0\r\n\r\n", path, host, uploadId);
+        Response received = exchange(request.getBytes(StandardCharsets.UTF_8), port, verbose);
+        String offset = headerValue(received.head, "Upload-Offset");
+        if (received.statusCode != 200 || offset == null)
+            throw new IOException("The server does not report the offset of upload " + uploadId);
+        return parseUploadOffset(offset, length);
+    }
+
+    /**
+     * Parses the Upload-Offset a server reported for a body of length bytes.
+     *
+     * @throws IOException If it is not a number of bytes within the body, since resuming from it would send the wrong part.
+     */
+    static long parseUploadOffset(String reported, int length) throws IOException {
+        long offset;
+        try {
+            offset = Long.parseLong(reported.trim());
+        } catch (NumberFormatException e) {
+            offset = -1;
         }
-        requestMessage += "Content-Length: " + parameters.length() + "\r\n";
-        requestMessage += "User-Agent: Concordia-HTTP/1.0\r\n\r\n";
-        requestMessage += parameters;
-        UDPClient myClientSocket = new UDPClient(3000, port, verbose);
-        // Send the request message
-        myClientSocket.send(requestMessage);
+        if (offset < 0 || offset > length)
+            throw new IOException("The server reported Upload-Offset " + reported + " for a body of " + length + " bytes");
+        return offset;
+    }
 
-        // Receive the response
-        String output = UDPClient.receive();
-        return processResponse(verbose, output);
+    /**
+     * Returns the position of the first byte in the Content-Range of a 206 response, or -1.
+     */
+    private static long rangeStart(String responseHeaders) {
+        String range = headerValue(responseHeaders, "Content-Range");
+        if (range == null || !range.startsWith("bytes "))
+            return -1;
+        int dash = range.indexOf('-');
+        try {
+            return dash < 0 ? -1 : Long.parseLong(range.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     private static String processResponse(boolean verbose, String output) throws IOException {
+        String[] response = splitResponse(output);
+        return verbose ? response[0] + response[1] : response[1];
+    }
+
+    /**
+     * Splits a response into its status line with the headers, and its body.
+     */
+    private static String[] splitResponse(String output) throws IOException {
         StringReader stringReader = new StringReader(output);
         BufferedReader in = new BufferedReader(stringReader);
         String responseLine = in.readLine();
@@ -64,11 +391,95 @@ public class HttpClient {
         while ((line = in.readLine()) != null) {
             responseBody.append(line).append("\n");
         }
-        if (verbose) {
-            return responseHeaders.append(responseBody).toString();
-        } else {
-            return responseBody.toString();
+        return new String[] {responseHeaders.toString(), responseBody.toString()};
+    }
+
+    private static int statusCode(String responseHeaders) {
+        String[] statusLine = responseHeaders.split(" ", 3);
+        try {
+            return statusLine.length > 1 ? Integer.parseInt(statusLine[1].trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the value of the first response header with the given name, or null.
+     */
+    private static String headerValue(String responseHeaders, String name) {
+        for (String line : responseHeaders.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name))
+                return line.substring(colon + 1).trim();
         }
+        return null;
     }
-}
 
+    /**
+     * A response received as bytes, so a body cut off by a failed connection can be measured and completed.
+     */
+    static final class Response {
+        final String head;
+        final int statusCode;
+        final long contentLength;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Response(byte[] received) throws IOException {
+            int end = -1;
+            for (int i = 0; i + 3 < received.length && end < 0; ++i) {
+                if (received[i] == '\r' && received[i + 1] == '\n' && received[i + 2] == '\r' && received[i + 3] == '\n')
+                    end = i;
+            }
+            if (end < 0)
+                throw new IOException("No complete response received from the server");
+            head = new String(received, 0, end, StandardCharsets.ISO_8859_1);
+            statusCode = statusCode(head);
+            String length = headerValue(head, "Content-Length");
+            contentLength = length != null ? Long.parseLong(length) : -1;
+            body.write(received, end + 4, received.length - end - 4);
+        }
+
+        /**
+         * Receives a response from the server the client sent its request to, as much of it as arrives.
+         */
+        static Response receive(UDPClient client) throws IOException {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            client.receive(received::write);
+            return new Response(received.toByteArray());
+        }
+
+        boolean isTruncated() {
+            return contentLength >= 0 && body.size() < contentLength;
+        }
+
+        boolean acceptsRanges() {
+            return "bytes".equals(headerValue(head, "Accept-Ranges"));
+        }
+
+        /**
+         * Returns the head and the body as text, the body decompressed when it was sent in a content coding.
+         *
+         * @throws IOException If the compressed body is corrupt or was cut off.
+         */
+        String text() throws IOException {
+            return head + "\r\n\r\n" + new String(decodedBody(), StandardCharsets.UTF_8);
+        }
+
+        private byte[] decodedBody() throws IOException {
+            String encoding = headerValue(head, "Content-Encoding");
+            if (encoding == null || encoding.equalsIgnoreCase("identity"))
+                return body.toByteArray();
+            InputStream compressed = new ByteArrayInputStream(body.toByteArray());
+            // a gzip body may consist of several members, GZIPInputStream reads them all
+            if (encoding.equalsIgnoreCase("gzip"))
+                compressed = new GZIPInputStream(compressed);
+            else if (encoding.equalsIgnoreCase("deflate"))
+                compressed = new InflaterInputStream(compressed);
+            else
+                throw new IOException("Unsupported Content-Encoding: " + encoding);
+            try (InputStream in = compressed) {
+                return in.readAllBytes();
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser fed directly with packet payloads.
+ * The request line, headers and query parameters are kept as offsets into a single byte buffer,
+ * so no String is created per header or parameter. The body is framed by Content-Length,
+ * a request without it ends with the connection. A body can be streamed to a sink as it arrives,
+ * in which case only its first BODY_PREFIX bytes are kept in the buffer.
+ */
+class HttpRequestParser implements PayloadListener {
+    static final int BODY_PREFIX = 16 * 1024;
+
+    interface Handler {
+
+        /**
+         * Called once when the request line and headers have been received, before any of the body.
+         * This is the only place where streamBody() can be called.
+         */
+        default void onHeaders(HttpRequestParser request) throws IOException {
+        }
+
+        /**
+         * Called once when the request line, headers and body have all been received.
+         */
+        void onRequest(HttpRequestParser request) throws IOException;
+    }
+
+    /**
+     * Receives the body of a streamed request in order, limited to Content-Length.
+     */
+    interface BodySink {
+        void onBody(byte[] data, int offset, int count) throws IOException;
+    }
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int COMPLETE = 3;
+
+    private final Handler handler;
+    private int state = REQUEST_LINE;
+    private byte[] buf = new byte[2048];
+    private int length;
+    private int scan;
+
+    private int requestLineStart, requestLineEnd;
+    private int methodEnd;
+    private int targetStart, targetEnd;
+    private int pathEnd;
+
+    // four offsets per entry: name start, name end, value start, value end
+    private int[] headers = new int[4 * 16];
+    private int headerCount;
+    private int[] query = new int[4 * 8];
+    private int queryCount;
+
+    private int bodyStart;
+    private long bodyReceived;
+    private long contentLength = -1;
+    private BodySink sink;
+
+    /**
+     * Constructs a parser.
+     *
+     * @param handler Notified as soon as the request is complete, may be null.
+     */
+    HttpRequestParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void onPayload(byte[] payload) throws IOException {
+        feed(payload, 0, payload.length);
+    }
+
+    /**
+     * Appends received bytes and parses as far as they allow.
+     *
+     * @param data   The received bytes.
+     * @param offset Offset of the first byte.
+     * @param count  Number of bytes.
+     * @throws IOException If the handler fails.
+     */
+    void feed(byte[] data, int offset, int count) throws IOException {
+        if (state == COMPLETE)
+            return;
+        if (sink != null) {
+            stream(data, offset, count);
+        } else {
+            append(data, offset, count);
+        }
+
+        while (state == REQUEST_LINE || state == HEADERS) {
+            int lineEnd = indexOf((byte) '\n', scan, length);
+            if (lineEnd < 0)
+                return;
+            int end = lineEnd > scan && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (state == REQUEST_LINE) {
+                if (end > scan)
+                    parseRequestLine(scan, end);
+            } else if (end == scan) {
+                bodyStart = lineEnd + 1;
+                state = BODY;
+                if (handler != null)
+                    handler.onHeaders(this);
+                if (sink != null) {
+                    // what arrived with the headers goes through the sink like the rest of the body
+                    int buffered = length - bodyStart;
+                    length = bodyStart;
+                    stream(buf, bodyStart, buffered);
+                }
+            } else {
+                parseHeader(scan, end);
+            }
+            scan = lineEnd + 1;
+        }
+        if (state == BODY && sink == null)
+            bodyReceived = length - bodyStart;
+        if (state == BODY && (contentLength < 0 ? !hasBody() : bodyReceived >= contentLength)) {
+            complete();
+        }
+    }
+
+    /**
+     * Sends the body to the sink as it arrives instead of buffering it.
+     *
+     * @param sink Receives every body byte, the buffer only keeps a prefix of BODY_PREFIX bytes.
+     */
+    void streamBody(BodySink sink) {
+        if (state != BODY || bodyReceived > 0)
+            throw new IllegalStateException("The body can only be streamed from Handler.onHeaders");
+        this.sink = sink;
+    }
+
+    private void stream(byte[] data, int offset, int count) throws IOException {
+        if (contentLength >= 0)
+            count = (int) Math.min(count, contentLength - bodyReceived);
+        if (count <= 0)
+            return;
+        int keep = Math.min(count, Math.max(0, BODY_PREFIX - (length - bodyStart)));
+        if (keep > 0)
+            append(data, offset, keep);
+        sink.onBody(data, offset, count);
+        bodyReceived += count;
+    }
+
+    private void append(byte[] data, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(data, offset, buf, length, count);
+        length += count;
+    }
+
+    /**
+     * Marks the end of the connection, which completes a request whose body has no Content-Length.
+     *
+     * @throws IOException If the handler fails.
+     */
+    void finish() throws IOException {
+        if (state == BODY)
+            complete();
+    }
+
+    private void complete() throws IOException {
+        state = COMPLETE;
+        if (handler != null)
+            handler.onRequest(this);
+    }
+
+    boolean isHeaderComplete() {
+        return state >= BODY;
+    }
+
+    boolean isComplete() {
+        return state == COMPLETE;
+    }
+
+    private boolean hasBody() {
+        return !isMethod("GET") && !isMethod("HEAD");
+    }
+
+    private void parseRequestLine(int start, int end) {
+        requestLineStart = start;
+        requestLineEnd = end;
+        methodEnd = indexOf((byte) ' ', start, end);
+        if (methodEnd < 0)
+            methodEnd = end;
+        targetStart = Math.min(methodEnd + 1, end);
+        targetEnd = indexOf((byte) ' ', targetStart, end);
+        if (targetEnd < 0)
+            targetEnd = end;
+        pathEnd = indexOf((byte) '?', targetStart, targetEnd);
+        if (pathEnd < 0) {
+            pathEnd = targetEnd;
+        } else {
+            parseQuery(pathEnd + 1, targetEnd);
+        }
+        state = HEADERS;
+    }
+
+    private void parseQuery(int start, int end) {
+        int paramStart = start;
+        while (paramStart < end) {
+            int paramEnd = indexOf((byte) '&', paramStart, end);
+            if (paramEnd < 0)
+                paramEnd = end;
+            int equals = indexOf((byte) '=', paramStart, paramEnd);
+            if (paramEnd > paramStart) {
+                if (equals < 0)
+                    equals = paramEnd;
+                query = add(query, queryCount++, paramStart, equals, Math.min(equals + 1, paramEnd), paramEnd);
+            }
+            paramStart = paramEnd + 1;
+        }
+    }
+
+    private void parseHeader(int start, int end) {
+        int colon = indexOf((byte) ':', start, end);
+        int nameEnd = colon < 0 ? end : colon;
+        int valueStart = colon < 0 ? end : colon + 1;
+        while (valueStart < end && (buf[valueStart] == ' ' || buf[valueStart] == '\t'))
+            ++valueStart;
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t'))
+            --valueEnd;
+        headers = add(headers, headerCount++, start, nameEnd, valueStart, valueEnd);
+        if (equalsIgnoreCase(start, nameEnd, "Content-Length")) {
+            contentLength = parseLong(valueStart, valueEnd);
+        }
+    }
+
+    private static int[] add(int[] entries, int index, int a, int b, int c, int d) {
+        if (entries.length < 4 * (index + 1))
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        entries[4 * index] = a;
+        entries[4 * index + 1] = b;
+        entries[4 * index + 2] = c;
+        entries[4 * index + 3] = d;
+        return entries;
+    }
+
+    /**
+     * Returns the decimal number between start and end, or -1 for anything else, including a number
+     * of more than 18 digits, which might not fit in a long.
+     */
+    private long parseLong(int start, int end) {
+        long value = 0;
+        if (start == end || end - start > 18)
+            return -1;
+        for (int i = start; i < end; ++i) {
+            if (buf[i] < '0' || buf[i] > '9')
+                return -1;
+            value = value * 10 + (buf[i] - '0');
+        }
+        return value;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (buf[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String text) {
+        if (end - start != text.length())
+            return false;
+        for (int i = 0; i < text.length(); ++i) {
+            if (Character.toLowerCase((char) buf[start + i]) != Character.toLowerCase(text.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+    }
+
+    private String latin1(int start, int end) {
+        return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Writes the bytes between start and end as a JSON member name of ISO-8859-1 characters, the charset of HTTP headers.
+     */
+    private void writeName(JsonWriter json, int start, int end) {
+        json.nameLatin1(buf, start, end - start);
+    }
+
+    private void writeValue(JsonWriter json, int start, int end) {
+        json.valueLatin1(buf, start, end - start);
+    }
+
+    boolean isMethod(String method) {
+        return equalsIgnoreCase(requestLineStart, methodEnd, method);
+    }
+
+    String getMethod() {
+        return latin1(requestLineStart, methodEnd);
+    }
+
+    /**
+     * Returns the request target, path and query string as sent.
+     */
+    String getTarget() {
+        return latin1(targetStart, targetEnd);
+    }
+
+    String getPath() {
+        return latin1(targetStart, pathEnd);
+    }
+
+    String getRequestLine() {
+        return latin1(requestLineStart, requestLineEnd);
+    }
+
+    int getHeaderCount() {
+        return headerCount;
+    }
+
+    boolean headerNameEquals(int index, String name) {
+        return equalsIgnoreCase(headers[4 * index], headers[4 * index + 1], name);
+    }
+
+    /**
+     * Returns whether the raw header line starts with the given text, ignoring case.
+     */
+    boolean headerStartsWith(int index, String prefix) {
+        int start = headers[4 * index];
+        return headers[4 * index + 3] >= start + prefix.length() && equalsIgnoreCase(start, start + prefix.length(), prefix);
+    }
+
+    void writeHeaderName(int index, JsonWriter json) {
+        writeName(json, headers[4 * index], headers[4 * index + 1]);
+    }
+
+    void writeHeaderValue(int index, JsonWriter json) {
+        writeValue(json, headers[4 * index + 2], headers[4 * index + 3]);
+    }
+
+    boolean headerValueEquals(int index, String value) {
+        return equalsIgnoreCase(headers[4 * index + 2], headers[4 * index + 3], value);
+    }
+
+    String getHeaderValue(int index) {
+        return latin1(headers[4 * index + 2], headers[4 * index + 3]);
+    }
+
+    /**
+     * Returns the value of the first header with the given name, or null.
+     */
+    String getHeader(String name) {
+        for (int i = 0; i < headerCount; ++i) {
+            if (headerNameEquals(i, name))
+                return getHeaderValue(i);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the text of a header line without a colon, such as "overwrite=false".
+     */
+    String getHeaderLine(int index) {
+        return latin1(headers[4 * index], headers[4 * index + 3]);
+    }
+
+    int getQueryCount() {
+        return queryCount;
+    }
+
+    boolean queryNameEquals(int index, String name) {
+        return equalsIgnoreCase(query[4 * index], query[4 * index + 1], name);
+    }
+
+    /**
+     * Returns whether the query string has a parameter with the given name, such as "raw" in "?raw".
+     */
+    boolean hasQuery(String name) {
+        for (int i = 0; i < queryCount; ++i) {
+            if (queryNameEquals(i, name))
+                return true;
+        }
+        return false;
+    }
+
+    void writeQueryName(int index, JsonWriter json) {
+        writeName(json, query[4 * index], query[4 * index + 1]);
+    }
+
+    void writeQueryValue(int index, JsonWriter json) {
+        writeValue(json, query[4 * index + 2], query[4 * index + 3]);
+    }
+
+    String getQueryValue(int index) {
+        return latin1(query[4 * index + 2], query[4 * index + 3]);
+    }
+
+    /**
+     * Returns the raw value of the first query parameter with the given name, or null.
+     */
+    String getQuery(String name) {
+        for (int i = 0; i < queryCount; ++i) {
+            if (queryNameEquals(i, name))
+                return getQueryValue(i);
+        }
+        return null;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the number of body bytes received, including those only passed to the sink.
+     */
+    long getBodyReceived() {
+        return bodyReceived;
+    }
+
+    /**
+     * Returns the buffer holding the raw request, the body starts at getBodyOffset().
+     * For a streamed body only the first BODY_PREFIX bytes are there.
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    int getBodyOffset() {
+        return bodyStart;
+    }
+
+    int getBodyLength() {
+        if (state < BODY)
+            return 0;
+        int bodyLength = length - bodyStart;
+        return contentLength >= 0 ? (int) Math.min(bodyLength, contentLength) : bodyLength;
+    }
+}
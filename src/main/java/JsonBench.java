@@ -0,0 +1,140 @@
+import com.sun.management.ThreadMXBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the time and the heap allocated per response written with JsonWriter: documents written by the writer
+ * alone, and whole requests handled by the server with the memory engine, from parsing to the encoded body.
+ * Allocation is read from the thread's allocation counter, so it counts every byte allocated, garbage included.
+ * <p>
+ * Usage: java JsonBench [iterations]
+ */
+public class JsonBench {
+    private static final int DEFAULT_ITERATIONS = 100000;
+    private static final String HEADERS = "Host: localhost\r\nUser-Agent: Concordia-HTTP/1.0\r\nAccept: */*\r\n"
+            + "X-Trace: abc-123\r\nX-Name: value with spaces\r\nAccept-Language: en\r\n";
+    private static final String JSON = "{\"name\": \"widget\", \"count\": 12, \"tags\": [\"a\", \"b\"], \"ok\": true}";
+    // keeps the results alive, so the work measured is not optimized away
+    private static long sink;
+
+    /**
+     * One kind of response, written once per call.
+     */
+    private interface Case {
+        long run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        Path base = Files.createTempDirectory("json-bench");
+        HTTPFileStorage.setStorageEngine("memory");
+        HTTPFileStorage server = new HTTPFileStorage(8080, base.toString(), false);
+        server.open();
+        try {
+            String lines = "a line of text with \"quotes\" and ü\n".repeat(1000);
+            request(server, "POST /lines.txt HTTP/1.0\r\nHost: localhost\r\nContent-Length: "
+                    + lines.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + lines);
+
+            System.out.printf("%-22s %10s %10s %10s%n", "case", "ns/op", "B/op", "MB/s out");
+            measure("writer: echo", iterations, JsonBench::echo);
+            measure("writer: escaped", iterations, JsonBench::escaped);
+            measure("writer: 1000 lines", iterations / 10, JsonBench::lines);
+            measure("server: GET /get", iterations, () -> request(server, "GET /get?a=1&b=2&c=three HTTP/1.0\r\n" + HEADERS + "\r\n"));
+            measure("server: POST /post", iterations, () -> request(server, "POST /post HTTP/1.0\r\n" + HEADERS
+                    + "Content-Length: " + JSON.length() + "\r\n\r\n" + JSON));
+            measure("server: GET 1000 lines", iterations / 10, () -> request(server, "GET /lines.txt HTTP/1.0\r\n" + HEADERS + "\r\n"));
+        } finally {
+            server.close();
+            Files.delete(base);
+        }
+    }
+
+    /**
+     * Runs a case as often as measured to warm it up, then again measured, and prints the time, the allocation
+     * and the bytes written per second.
+     */
+    private static void measure(String name, int iterations, Case bench) throws IOException {
+        for (int i = 0; i < iterations; ++i)
+            sink += bench.run();
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long written = 0;
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            written += bench.run();
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        sink += written;
+        System.out.printf("%-22s %10.0f %10d %10.1f%n", name, (double) elapsed / iterations, allocated / iterations,
+                written / 1e6 / (elapsed / 1e9));
+    }
+
+    /**
+     * Writes a document shaped like the response to GET /get: a few arguments, headers and strings.
+     */
+    private static long echo() {
+        JsonWriter json = new JsonWriter(new ResponseBody());
+        json.beginObject();
+        json.name("args").beginObject().name("a").value("1").name("b").value("2").name("c").value("three").endObject();
+        json.name("headers").beginObject()
+                .name("Host").value("localhost")
+                .name("User-Agent").value("Concordia-HTTP/1.0")
+                .name("Accept").value("*/*")
+                .name("X-Trace").value("abc-123")
+                .name("X-Name").value("value with spaces")
+                .name("Accept-Language").value("en")
+                .endObject();
+        json.name("origin").value("127.0.0.1");
+        json.name("url").value("http://localhost/get?a=1&b=2&c=three");
+        return json.endObject().finish().length();
+    }
+
+    /**
+     * Writes strings that need escaping: quotes, backslashes, control characters and characters outside ASCII.
+     */
+    private static long escaped() {
+        JsonWriter json = new JsonWriter(new ResponseBody());
+        json.beginArray();
+        for (int i = 0; i < 8; ++i)
+            json.value("say \"hi\"\\\tthen\r\nleave — ü \u0001 " + i);
+        return json.endArray().finish().length();
+    }
+
+    /**
+     * Writes an array of lines, as the "data" of a file is rendered.
+     */
+    private static long lines() {
+        JsonWriter json = new JsonWriter(new ResponseBody());
+        json.beginObject().name("data").beginArray();
+        for (int i = 0; i < 1000; ++i)
+            json.value("a line of text with \"quotes\" and ü");
+        return json.endArray().endObject().finish().length();
+    }
+
+    /**
+     * Handles a request the way the server does, without the transport, and returns the size of the response.
+     */
+    private static long request(HTTPFileStorage server, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        RequestContext context = new RequestContext();
+        HttpRequestParser request = server.newRequest(context);
+        try {
+            request.onPayload(bytes);
+            server.complete(request, context);
+        } finally {
+            server.release(context);
+        }
+        try (ResponseWriter response = context.getResponse()) {
+            long length = 0;
+            byte[] chunk = new byte[1013];
+            for (int count; (count = response.read(chunk, 0, chunk.length)) >= 0; )
+                length += count;
+            return length;
+        }
+    }
+}
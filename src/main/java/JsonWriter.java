@@ -0,0 +1,413 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming JSON writer that encodes UTF-8 straight into the chunks of a ResponseBody, escaping strings as it goes,
+ * so a response is never assembled as text first. Output is indented two spaces per level.
+ * Commas and line breaks between members and elements are written by the writer; the caller only names members
+ * and says where objects and arrays begin and end. Values already encoded, such as a cached fragment,
+ * are spliced in as they are.
+ */
+class JsonWriter {
+    // chunks start small, as most responses are, and grow while the writer fills them
+    private static final int FIRST_CHUNK_BYTES = 512;
+    private static final int MAX_CHUNK_BYTES = 16 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private final ResponseBody out;
+    private byte[] chunk = new byte[FIRST_CHUNK_BYTES];
+    private int position;
+    private int depth;
+    // whether the object or array at each level still has no member, and whether a value follows a name
+    private boolean[] empty = new boolean[8];
+    private boolean afterName;
+
+    JsonWriter(ResponseBody out) {
+        this(out, 0);
+    }
+
+    /**
+     * Constructs a writer for a fragment that is spliced in at a given nesting level of another document.
+     */
+    JsonWriter(ResponseBody out, int depth) {
+        this.out = out;
+        this.depth = depth;
+        if (depth >= empty.length)
+            empty = new boolean[depth + 8];
+        // the first value goes where the enclosing writer left off, after a name or a separator
+        afterName = true;
+    }
+
+    JsonWriter beginObject() {
+        return open('{');
+    }
+
+    JsonWriter endObject() {
+        return close('}');
+    }
+
+    JsonWriter beginArray() {
+        return open('[');
+    }
+
+    JsonWriter endArray() {
+        return close(']');
+    }
+
+    /**
+     * Writes the name of the next member of the current object.
+     */
+    JsonWriter name(String name) {
+        separate();
+        string(name);
+        put((byte) ':');
+        put((byte) ' ');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a member name held in ISO-8859-1 bytes, as the request parser keeps it, without making a String of it.
+     */
+    JsonWriter nameLatin1(byte[] bytes, int offset, int count) {
+        separate();
+        latin1(bytes, offset, count);
+        put((byte) ':');
+        put((byte) ' ');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string value, or null.
+     */
+    JsonWriter value(String value) {
+        beforeValue();
+        if (value == null)
+            put(NULL, 0, NULL.length);
+        else
+            string(value);
+        return this;
+    }
+
+    /**
+     * Writes a string value held in ISO-8859-1 bytes.
+     */
+    JsonWriter valueLatin1(byte[] bytes, int offset, int count) {
+        beforeValue();
+        latin1(bytes, offset, count);
+        return this;
+    }
+
+    JsonWriter value(long value) {
+        beforeValue();
+        String digits = Long.toString(value);
+        for (int i = 0; i < digits.length(); ++i)
+            put((byte) digits.charAt(i));
+        return this;
+    }
+
+    JsonWriter value(boolean value) {
+        beforeValue();
+        byte[] literal = value ? TRUE : FALSE;
+        put(literal, 0, literal.length);
+        return this;
+    }
+
+    JsonWriter nullValue() {
+        beforeValue();
+        put(NULL, 0, NULL.length);
+        return this;
+    }
+
+    /**
+     * Splices in a value encoded elsewhere, shared rather than copied, such as a fragment rendered by
+     * a writer constructed at the current nesting level.
+     *
+     * @param encoded The UTF-8 encoded value, which must be valid JSON.
+     * @param gzip    A gzip copy of it, used as it is when the body is sent in gzip, or null.
+     */
+    JsonWriter fragment(byte[] encoded, byte[] gzip) {
+        beforeValue();
+        flush();
+        out.append(encoded, gzip);
+        return this;
+    }
+
+    /**
+     * Hands the bytes still held by the writer to the body and returns it.
+     */
+    ResponseBody finish() {
+        flush();
+        return out;
+    }
+
+    private JsonWriter open(char bracket) {
+        beforeValue();
+        put((byte) bracket);
+        if (++depth == empty.length)
+            empty = Arrays.copyOf(empty, depth * 2);
+        empty[depth] = true;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) {
+        if (!empty[depth--])
+            newline();
+        put((byte) bracket);
+        return this;
+    }
+
+    private void beforeValue() {
+        if (afterName)
+            afterName = false;
+        else if (depth > 0)
+            separate();
+    }
+
+    /**
+     * Starts the next member or element on its own line, after a comma unless it is the first.
+     */
+    private void separate() {
+        if (!empty[depth])
+            put((byte) ',');
+        empty[depth] = false;
+        newline();
+    }
+
+    private void newline() {
+        put((byte) '\n');
+        for (int i = 0; i < depth; ++i) {
+            put((byte) ' ');
+            put((byte) ' ');
+        }
+    }
+
+    private void string(String value) {
+        put((byte) '"');
+        int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                ascii(c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | c >> 6));
+                put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                put((byte) (0xF0 | codePoint >> 18));
+                put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                put((byte) (0x80 | codePoint & 0x3F));
+            } else {
+                // a surrogate without its other half cannot be encoded and becomes U+FFFD
+                if (Character.isSurrogate(c))
+                    c = '\uFFFD';
+                put((byte) (0xE0 | c >> 12));
+                put((byte) (0x80 | c >> 6 & 0x3F));
+                put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void latin1(byte[] bytes, int offset, int count) {
+        put((byte) '"');
+        for (int i = offset; i < offset + count; ++i) {
+            int c = bytes[i] & 0xFF;
+            if (c < 0x80) {
+                ascii((char) c);
+            } else {
+                put((byte) (0xC0 | c >> 6));
+                put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void ascii(char c) {
+        if (c >= 0x20 && c != '"' && c != '\\') {
+            put((byte) c);
+            return;
+        }
+        put((byte) '\\');
+        switch (c) {
+            case '"':
+            case '\\':
+                put((byte) c);
+                break;
+            case '\n':
+                put((byte) 'n');
+                break;
+            case '\r':
+                put((byte) 'r');
+                break;
+            case '\t':
+                put((byte) 't');
+                break;
+            case '\b':
+                put((byte) 'b');
+                break;
+            case '\f':
+                put((byte) 'f');
+                break;
+            default:
+                put((byte) 'u');
+                put((byte) '0');
+                put((byte) '0');
+                put(HEX[c >> 4]);
+                put(HEX[c & 0xF]);
+        }
+    }
+
+    private void put(byte b) {
+        if (position == chunk.length) {
+            // a full chunk becomes a segment of the body as it is, and the writer goes on in a new one
+            out.append(chunk);
+            chunk = new byte[Math.min(chunk.length * 2, MAX_CHUNK_BYTES)];
+            position = 0;
+        }
+        chunk[position++] = b;
+    }
+
+    private void put(byte[] bytes, int offset, int count) {
+        for (int i = offset; i < offset + count; ++i)
+            put(bytes[i]);
+    }
+
+    private void flush() {
+        if (position == 0)
+            return;
+        if (position == chunk.length) {
+            out.append(chunk);
+            chunk = new byte[chunk.length];
+        } else {
+            // only the written part becomes a segment, the rest of the chunk is used for what follows
+            out.append(Arrays.copyOf(chunk, position));
+        }
+        position = 0;
+    }
+
+    /**
+     * Returns whether text is a single valid JSON value, so it can be spliced into a response as it is.
+     */
+    static boolean isValid(String text) {
+        int[] at = {0};
+        return parseValue(text, at) && skipSpace(text, at) == text.length();
+    }
+
+    private static int skipSpace(String text, int[] at) {
+        while (at[0] < text.length() && " \t\r\n".indexOf(text.charAt(at[0])) >= 0)
+            ++at[0];
+        return at[0];
+    }
+
+    private static boolean parseValue(String text, int[] at) {
+        if (skipSpace(text, at) == text.length())
+            return false;
+        char c = text.charAt(at[0]);
+        if (c == '{')
+            return parseContainer(text, at, '}', true);
+        if (c == '[')
+            return parseContainer(text, at, ']', false);
+        if (c == '"')
+            return parseString(text, at);
+        for (String literal : new String[] {"true", "false", "null"}) {
+            if (text.startsWith(literal, at[0])) {
+                at[0] += literal.length();
+                return true;
+            }
+        }
+        return parseNumber(text, at);
+    }
+
+    private static boolean parseContainer(String text, int[] at, char end, boolean object) {
+        ++at[0];
+        if (skipSpace(text, at) < text.length() && text.charAt(at[0]) == end) {
+            ++at[0];
+            return true;
+        }
+        while (true) {
+            if (object) {
+                if (skipSpace(text, at) == text.length() || text.charAt(at[0]) != '"' || !parseString(text, at))
+                    return false;
+                if (skipSpace(text, at) == text.length() || text.charAt(at[0]++) != ':')
+                    return false;
+            }
+            if (!parseValue(text, at) || skipSpace(text, at) == text.length())
+                return false;
+            char c = text.charAt(at[0]++);
+            if (c == end)
+                return true;
+            if (c != ',')
+                return false;
+        }
+    }
+
+    private static boolean parseString(String text, int[] at) {
+        for (int i = at[0] + 1; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                at[0] = i + 1;
+                return true;
+            }
+            if (c < 0x20)
+                return false;
+            if (c == '\\') {
+                if (++i == text.length())
+                    return false;
+                char escaped = text.charAt(i);
+                if (escaped == 'u') {
+                    if (i + 4 >= text.length())
+                        return false;
+                    for (int j = i + 1; j <= i + 4; ++j) {
+                        if (Character.digit(text.charAt(j), 16) < 0)
+                            return false;
+                    }
+                    i += 4;
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean parseNumber(String text, int[] at) {
+        int start = at[0];
+        int i = start;
+        if (i < text.length() && text.charAt(i) == '-')
+            ++i;
+        int digits = i;
+        while (i < text.length() && isDigit(text.charAt(i)))
+            ++i;
+        if (i == digits || (text.charAt(digits) == '0' && i - digits > 1))
+            return false;
+        if (i < text.length() && text.charAt(i) == '.') {
+            int fraction = ++i;
+            while (i < text.length() && isDigit(text.charAt(i)))
+                ++i;
+            if (i == fraction)
+                return false;
+        }
+        if (i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            ++i;
+            if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-'))
+                ++i;
+            int exponent = i;
+            while (i < text.length() && isDigit(text.charAt(i)))
+                ++i;
+            if (i == exponent)
+                return false;
+        }
+        at[0] = i;
+        return true;
+    }
+}
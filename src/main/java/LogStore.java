@@ -0,0 +1,560 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Log-structured store for small objects.
+ * Every write is appended as a record to the active segment file, and an in-memory index maps each key to
+ * the places of its value in the segments, so a write costs no file open, create or rename.
+ * Segments are rolled at a fixed size, and a background thread rewrites the live records of mostly dead
+ * segments to the active one and deletes them. The index is rebuilt from the segments on open.
+ *
+ * <p>Record layout: CRC32C(4) of the rest of the record, type(1), key length(2), value length(4), key, value.
+ */
+class LogStore implements StorageBackend {
+
+    /**
+     * When a write is on disk.
+     */
+    enum Durability {
+        // left to the operating system, like the plain file store
+        NONE,
+        // the log is forced every SYNC_INTERVAL_MS, a crash loses at most that much
+        INTERVAL,
+        // a write returns once it is forced, concurrent writes share one force
+        COMMIT
+    }
+
+    static final int MAX_VALUE = 8 * 1024 * 1024;
+    private static final int HEADER = 11;
+    private static final byte PUT = 1;
+    private static final byte APPEND = 2;
+    private static final long SYNC_INTERVAL_MS = 50;
+    private static final long COMPACTION_INTERVAL_MS = 1000;
+    // a sealed segment with less live data than this is compacted
+    private static final double LIVE_RATIO = 0.5;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Durability durability;
+    private final ConcurrentSkipListMap<String, Entry> index = new ConcurrentSkipListMap<>();
+    // starts at the clock, so an entity tag from before a restart is not given to other content
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // write-locked only while a compacted segment is dropped, so readers never see it closed
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final CRC32C crc = new CRC32C();
+    private volatile Segment active;
+    private volatile boolean closed;
+
+    // group commit, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long appended;
+    private long synced;
+
+    private long puts;
+    private long syncs;
+    private long compactedSegments;
+    private long reclaimedBytes;
+
+    /**
+     * Opens the store, replaying its segments into the index, and starts its background threads.
+     *
+     * @param directory    The directory of the segment files, created if needed.
+     * @param segmentBytes The size at which the active segment is sealed and a new one started.
+     * @param durability   When a write is forced to disk.
+     * @throws IOException If the segments cannot be read.
+     */
+    LogStore(Path directory, long segmentBytes, Durability durability) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.durability = durability;
+        Files.createDirectories(directory);
+        recover();
+        if (durability != Durability.NONE)
+            startThread(this::flush, "log-flusher");
+        startThread(this::compact, "log-compactor");
+    }
+
+    private void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes a value.
+     *
+     * @param key    The name of the object.
+     * @param data   Array holding the value.
+     * @param offset Offset of the value in data.
+     * @param length Length of the value, at most MAX_VALUE.
+     * @param append Whether to add the value to the end of the current one instead of replacing it.
+     * @throws IOException If the value, with the current one when appended, would exceed MAX_VALUE,
+     *                     or the record cannot be written, or forced in COMMIT mode.
+     */
+    void put(String key, byte[] data, int offset, int length, boolean append) throws IOException {
+        if (key.getBytes(StandardCharsets.UTF_8).length > 0xFFFF)
+            throw new IOException("Key is longer than " + 0xFFFF + " bytes");
+        long commitPoint;
+        synchronized (this) {
+            Entry current = append ? index.get(key) : null;
+            long total = (long) length + (current != null ? current.length : 0);
+            // compaction writes a value as one record, which replay refuses past MAX_VALUE
+            if (total > MAX_VALUE)
+                throw new IOException("Value of " + total + " bytes exceeds the limit of " + MAX_VALUE);
+            commitPoint = write(key, data, offset, length, append, versions.incrementAndGet());
+            ++puts;
+        }
+        if (durability == Durability.COMMIT)
+            awaitSync(commitPoint);
+    }
+
+    /**
+     * Returns the value of a key, or null.
+     */
+    byte[] get(String key) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Entry entry = index.get(key);
+            return entry == null ? null : read(entry.extents);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Returns the length of a value with an entity tag made from its version, from the index alone,
+     * as the store keeps no modification time.
+     */
+    @Override
+    public Stat stat(String key) {
+        Entry entry = index.get(key);
+        if (entry == null)
+            return null;
+        return new Stat(entry.length, -1, "\"" + Integer.toHexString(entry.length) + "-" + Long.toHexString(entry.version) + "\"");
+    }
+
+    /**
+     * Reads a value into the heap and returns the range of it, as values are at most MAX_VALUE bytes.
+     */
+    @Override
+    public PayloadSource open(String key, long offset, long count) throws IOException {
+        byte[] value = get(key);
+        if (value == null)
+            return null;
+        int start = (int) Math.min(offset, value.length);
+        return PayloadSource.of(value, start, (int) Math.min(count, value.length - start));
+    }
+
+    /**
+     * Collects a body in the heap, to be written as one record on commit.
+     */
+    @Override
+    public Write startWrite(String key, byte[] digest) {
+        return new Upload(key);
+    }
+
+    /**
+     * Returns the keys in sorted order, a live view of the index.
+     */
+    @Override
+    public NavigableSet<String> keys() {
+        return index.keySet();
+    }
+
+    @Override
+    public long maxObjectSize() {
+        return MAX_VALUE;
+    }
+
+    @Override
+    public synchronized String getStats() {
+        long total = 0, live = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+            live += segment.live;
+        }
+        return String.format("keys=%d, segments=%d, bytes=%d (live %d), puts=%d, syncs=%d, compacted segments=%d, reclaimed bytes=%d",
+                index.size(), segments.size(), total, live, puts, syncs, compactedSegments, reclaimedBytes);
+    }
+
+    /**
+     * Appends one record to the active segment and points the index at it. Callers hold the store's lock.
+     *
+     * @param version The version the value gets in the index.
+     * @return The position in the log up to which it must be forced for the record to be durable.
+     * @throws IOException If the record is longer than MAX_VALUE, which replay would take for a torn record.
+     */
+    private long write(String key, byte[] data, int offset, int length, boolean append, long version) throws IOException {
+        if (length > MAX_VALUE)
+            throw new IOException("Record of " + length + " bytes exceeds the limit of " + MAX_VALUE);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordLength = HEADER + keyBytes.length + length;
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.position(4);
+        record.put(append ? APPEND : PUT).putShort((short) keyBytes.length).putInt(length).put(keyBytes).put(data, offset, length);
+        crc.reset();
+        crc.update(record.array(), 4, recordLength - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+
+        if (active.size > 0 && active.size + recordLength > segmentBytes)
+            roll();
+        Segment segment = active;
+        long position = segment.size;
+        while (record.hasRemaining())
+            segment.channel.write(record, position + record.position());
+        segment.size += recordLength;
+        index(key, new Extent(segment.id, position + HEADER + keyBytes.length, length, recordLength), append, version);
+        synchronized (syncLock) {
+            appended += recordLength;
+            syncLock.notifyAll();
+            return appended;
+        }
+    }
+
+    private void index(String key, Extent extent, boolean append, long version) {
+        Entry previous = index.get(key);
+        Extent[] current;
+        int length = extent.length;
+        if (append && previous != null) {
+            current = Arrays.copyOf(previous.extents, previous.extents.length + 1);
+            current[previous.extents.length] = extent;
+            length += previous.length;
+        } else {
+            current = new Extent[]{extent};
+            if (previous != null) {
+                for (Extent dead : previous.extents)
+                    segments.get(dead.segment).live -= dead.recordLength;
+            }
+        }
+        segments.get(extent.segment).live += extent.recordLength;
+        index.put(key, new Entry(current, length, version));
+    }
+
+    private byte[] read(Extent[] extents) throws IOException {
+        int length = 0;
+        for (Extent extent : extents)
+            length += extent.length;
+        byte[] value = new byte[length];
+        int position = 0;
+        for (Extent extent : extents) {
+            ByteBuffer target = ByteBuffer.wrap(value, position, extent.length);
+            FileChannel channel = segments.get(extent.segment).channel;
+            while (target.hasRemaining()) {
+                if (channel.read(target, extent.offset + target.position() - position) < 0)
+                    throw new IOException("Segment " + extent.segment + " ends inside a record");
+            }
+            position += extent.length;
+        }
+        return value;
+    }
+
+    /**
+     * Seals the active segment and starts the next one. Callers hold the store's lock.
+     */
+    private void roll() throws IOException {
+        // a sealed segment is never forced by the flusher again
+        if (durability != Durability.NONE)
+            active.channel.force(false);
+        active = openSegment(active.id + 1);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = directory.resolve(String.format("segment-%08d.log", id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel);
+        segment.size = channel.size();
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Rebuilds the index by replaying the segments in order. A torn record at the end of a segment,
+     * left by a crash during a write, is cut off.
+     */
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(ids);
+        for (int id : ids)
+            replay(openSegment(id));
+        active = ids.isEmpty() ? openSegment(0) : segments.get(ids.get(ids.size() - 1));
+    }
+
+    private void replay(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long position = 0;
+        while (position + HEADER <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            int checksum = header.getInt(0);
+            byte type = header.get(4);
+            int keyLength = header.getShort(5) & 0xFFFF;
+            int valueLength = header.getInt(7);
+            if ((type != PUT && type != APPEND) || valueLength < 0 || valueLength > MAX_VALUE
+                    || position + HEADER + keyLength + valueLength > segment.size)
+                break;
+            ByteBuffer body = ByteBuffer.allocate(keyLength + valueLength);
+            readFully(segment.channel, body, position + HEADER);
+            crc.reset();
+            crc.update(header.array(), 4, HEADER - 4);
+            crc.update(body.array(), 0, body.capacity());
+            if ((int) crc.getValue() != checksum)
+                break;
+            String key = new String(body.array(), 0, keyLength, StandardCharsets.UTF_8);
+            int recordLength = HEADER + keyLength + valueLength;
+            index(key, new Extent(segment.id, position + HEADER + keyLength, valueLength, recordLength), type == APPEND,
+                    versions.incrementAndGet());
+            position += recordLength;
+        }
+        if (position < segment.size) {
+            System.out.println("Log store: truncating " + segment.path.getFileName() + " at " + position
+                    + ", " + (segment.size - position) + " bytes are not a complete record");
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of segment");
+        }
+        buffer.flip();
+    }
+
+    private void awaitSync(long commitPoint) throws IOException {
+        synchronized (syncLock) {
+            try {
+                while (synced < commitPoint) {
+                    if (closed)
+                        throw new IOException("Log store closed before the write was forced");
+                    syncLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the log to be forced");
+            }
+        }
+    }
+
+    /**
+     * Forces the active segment whenever there are new records, at once in COMMIT mode, so all writes that
+     * arrive during one force are covered by the next, or every SYNC_INTERVAL_MS otherwise.
+     */
+    private void flush() {
+        try {
+            while (!closed) {
+                long target;
+                synchronized (syncLock) {
+                    if (durability == Durability.INTERVAL)
+                        syncLock.wait(SYNC_INTERVAL_MS);
+                    while (appended == synced && !closed)
+                        syncLock.wait();
+                    target = appended;
+                }
+                // records counted in target are either in this segment or in a sealed one, forced when it was rolled
+                active.channel.force(false);
+                synchronized (syncLock) {
+                    synced = target;
+                    ++syncs;
+                    syncLock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } catch (IOException e) {
+            System.out.println("Log store: forcing the log failed, " + e.getMessage());
+        }
+    }
+
+    private void compact() {
+        while (!closed) {
+            try {
+                Thread.sleep(COMPACTION_INTERVAL_MS);
+                for (Segment segment : segments.values()) {
+                    if (isMostlyDead(segment))
+                        compact(segment);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("Log store: compaction failed, " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rewrites every key with a record in the segment to the active segment, then deletes the segment.
+     * A value keeps its version, and one appended past MAX_VALUE before that was refused is rewritten
+     * in records of at most MAX_VALUE.
+     */
+    private void compact(Segment segment) throws IOException {
+        for (Map.Entry<String, Entry> entry : index.entrySet()) {
+            if (references(entry.getValue().extents, segment.id)) {
+                synchronized (this) {
+                    // the key may have been rewritten since the scan
+                    Entry current = index.get(entry.getKey());
+                    if (current != null && references(current.extents, segment.id)) {
+                        byte[] value = read(current.extents);
+                        int position = 0;
+                        do {
+                            int length = Math.min(MAX_VALUE, value.length - position);
+                            write(entry.getKey(), value, position, length, position > 0, current.version);
+                            position += length;
+                        } while (position < value.length);
+                    }
+                }
+            }
+        }
+        // the copies must be on disk before the originals go
+        if (durability != Durability.NONE)
+            active.channel.force(false);
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.delete(segment.path);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        synchronized (this) {
+            ++compactedSegments;
+            reclaimedBytes += segment.size;
+        }
+    }
+
+    private synchronized boolean isMostlyDead(Segment segment) {
+        return segment != active && segment.live <= segment.size * LIVE_RATIO;
+    }
+
+    private static boolean references(Extent[] extents, int segment) {
+        for (Extent extent : extents) {
+            if (extent.segment == segment)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (syncLock) {
+            syncLock.notifyAll();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (durability != Durability.NONE)
+                    segment.channel.force(false);
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * A body being received, refused once it grows past MAX_VALUE.
+     */
+    private final class Upload extends ByteArrayOutputStream implements Write {
+        private final String key;
+
+        Upload(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onBody(byte[] data, int offset, int length) throws IOException {
+            if (length > MAX_VALUE - count)
+                throw new IOException("Value exceeds the limit of " + MAX_VALUE + " bytes");
+            write(data, offset, length);
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return count;
+        }
+
+        @Override
+        public boolean commit(boolean append) throws IOException {
+            // written from the collecting array, without a copy of it
+            put(key, buf, 0, count, append);
+            return true;
+        }
+    }
+
+    /**
+     * The places of a value in the segments, with its length and its version, which changes with every write.
+     */
+    private static final class Entry {
+        final Extent[] extents;
+        final int length;
+        final long version;
+
+        Entry(Extent[] extents, int length, long version) {
+            this.extents = extents;
+            this.length = length;
+            this.version = version;
+        }
+    }
+
+    /**
+     * One contiguous part of a value: where it starts in which segment, and the record holding it.
+     */
+    private static final class Extent {
+        final int segment;
+        final long offset;
+        final int length;
+        final int recordLength;
+
+        Extent(int segment, long offset, int length, int recordLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        // both guarded by the store's lock
+        long size;
+        long live;
+
+        Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps every object in the heap, for tests and for data that need not outlive the server.
+ * An object's content is never changed once stored, a write replaces it with a new array,
+ * so a response goes on sending the content it was opened with without copying it.
+ */
+class MemoryBackend implements StorageBackend {
+    // the largest array the JVM allocates
+    static final int MAX_OBJECT = Integer.MAX_VALUE - 8;
+
+    private final ConcurrentSkipListMap<String, Entry> objects = new ConcurrentSkipListMap<>();
+    // starts at the clock, so an entity tag from before a restart is not given to other content
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    @Override
+    public Stat stat(String key) {
+        Entry entry = objects.get(key);
+        if (entry == null)
+            return null;
+        return new Stat(entry.content.length, entry.lastModified,
+                "\"" + Integer.toHexString(entry.content.length) + "-" + Long.toHexString(entry.version) + "\"");
+    }
+
+    @Override
+    public PayloadSource open(String key, long offset, long count) {
+        Entry entry = objects.get(key);
+        if (entry == null)
+            return null;
+        int start = (int) Math.min(offset, entry.content.length);
+        return PayloadSource.of(entry.content, start, (int) Math.min(count, entry.content.length - start));
+    }
+
+    @Override
+    public Write startWrite(String key, byte[] digest) {
+        return new Upload(key);
+    }
+
+    @Override
+    public NavigableSet<String> keys() {
+        return objects.keySet();
+    }
+
+    @Override
+    public long maxObjectSize() {
+        return MAX_OBJECT;
+    }
+
+    @Override
+    public String getStats() {
+        return String.format("objects=%d, bytes=%d, writes=%d", objects.size(), bytes.get(), writes.get());
+    }
+
+    /**
+     * A body collected in the heap until it is committed.
+     */
+    private final class Upload implements Write {
+        private final String key;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Upload(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onBody(byte[] data, int offset, int count) throws IOException {
+            if (count > MAX_OBJECT - body.size())
+                throw new IOException("Object exceeds the limit of " + MAX_OBJECT + " bytes");
+            body.write(data, offset, count);
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return body.size();
+        }
+
+        @Override
+        public boolean commit(boolean append) throws IOException {
+            byte[] received = body.toByteArray();
+            Entry previous = objects.get(key);
+            byte[] content = received;
+            if (append && previous != null) {
+                if (received.length > MAX_OBJECT - previous.content.length)
+                    throw new IOException("Object exceeds the limit of " + MAX_OBJECT + " bytes");
+                content = Arrays.copyOf(previous.content, previous.content.length + received.length);
+                System.arraycopy(received, 0, content, previous.content.length, received.length);
+            }
+            objects.put(key, new Entry(content, System.currentTimeMillis(), versions.incrementAndGet()));
+            bytes.addAndGet(content.length - (previous != null ? previous.content.length : 0));
+            writes.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class Entry {
+        final byte[] content;
+        final long lastModified;
+        final long version;
+
+        Entry(byte[] content, long lastModified, long version) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.version = version;
+        }
+    }
+}
@@ -3,6 +3,7 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.zip.CRC32C;
 
 /**
  * Packet represents a simulated network packet.
@@ -16,21 +17,38 @@ public class Packet {
     public static final int SYN_2 = 3;
     public static final int SYN_3 = 4;
     public static final int EOD   = 5;
-    public static final int MIN_LEN = 11;
+    public static final int MIN_LEN = 18;
     public static final int MAX_LEN = 11 + 1024;
+    public static final int MAX_WINDOW = 0xFFFF;
+
+    // header layout: type(1) seq(4) peer address(4) peer port(2) window(2) flags(1) checksum(4)
+    private static final int PEER_OFFSET = 5;
+    private static final int WINDOW_OFFSET = 11;
+    private static final int CHECKSUM_OFFSET = 14;
+    private static final byte FLAG_CHECKSUM = 1;
+    // CRC32C is intrinsified by the JIT, one instance per thread keeps checksums allocation free
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
 
     private final int type;
     private final long sequenceNumber;
     private final InetAddress peerAddress;
     private final int peerPort;
+    private final int receiveWindow;
+    private final boolean checksum;
     private final byte[] payload;
 
 
     public Packet(int type, long sequenceNumber, InetAddress peerAddress, int peerPort, byte[] payload) {
+        this(type, sequenceNumber, peerAddress, peerPort, 0, false, payload);
+    }
+
+    public Packet(int type, long sequenceNumber, InetAddress peerAddress, int peerPort, int receiveWindow, boolean checksum, byte[] payload) {
         this.type = type;
         this.sequenceNumber = sequenceNumber;
         this.peerAddress = peerAddress;
         this.peerPort = peerPort;
+        this.receiveWindow = receiveWindow;
+        this.checksum = checksum;
         this.payload = payload;
     }
 
@@ -50,6 +68,20 @@ public class Packet {
         return peerPort;
     }
 
+    /**
+     * Returns the number of packets the sender of this packet can still buffer, advertised on ACKs.
+     */
+    public int getReceiveWindow() {
+        return receiveWindow;
+    }
+
+    /**
+     * Returns whether the packet carries a CRC32C of its contents.
+     */
+    public boolean hasChecksum() {
+        return checksum;
+    }
+
     public byte[] getPayload() {
         return payload;
     }
@@ -64,6 +96,8 @@ public class Packet {
                 .setSequenceNumber(sequenceNumber)
                 .setPeerAddress(peerAddress)
                 .setPortNumber(peerPort)
+                .setReceiveWindow(receiveWindow)
+                .setChecksum(checksum)
                 .setPayload(payload);
     }
 
@@ -72,11 +106,41 @@ public class Packet {
      * The order of the buffer should be set as BigEndian.
      */
     private void write(ByteBuffer buf) {
+        int start = buf.position();
         buf.put((byte) type);
         buf.putInt((int) sequenceNumber);
         buf.put(peerAddress.getAddress());
         buf.putShort((short) peerPort);
+        buf.putShort((short) receiveWindow);
+        buf.put(checksum ? FLAG_CHECKSUM : 0);
+        buf.putInt(0);
         buf.put(payload);
+        if (checksum) {
+            buf.putInt(start + CHECKSUM_OFFSET, computeChecksum(buf, start, buf.position()));
+        }
+    }
+
+    /**
+     * Computes the CRC32C of a raw packet between start and end.
+     * The peer address and port are left out because the router rewrites them in transit,
+     * and so is the checksum field itself.
+     */
+    private static int computeChecksum(ByteBuffer buf, int start, int end) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        if (buf.hasArray()) {
+            byte[] raw = buf.array();
+            int offset = buf.arrayOffset() + start;
+            crc.update(raw, offset, PEER_OFFSET);
+            crc.update(raw, offset + WINDOW_OFFSET, CHECKSUM_OFFSET - WINDOW_OFFSET);
+            crc.update(raw, offset + MIN_LEN, end - start - MIN_LEN);
+        } else {
+            ByteBuffer view = buf.duplicate();
+            crc.update(view.limit(start + PEER_OFFSET).position(start));
+            crc.update(view.limit(start + CHECKSUM_OFFSET).position(start + WINDOW_OFFSET));
+            crc.update(view.limit(end).position(start + MIN_LEN));
+        }
+        return (int) crc.getValue();
     }
 
     /**
@@ -109,6 +173,7 @@ public class Packet {
         }
 
         Builder builder = new Builder();
+        int start = buf.position();
 
         builder.setType(Byte.toUnsignedInt(buf.get()));
         builder.setSequenceNumber(Integer.toUnsignedLong(buf.getInt()));
@@ -116,6 +181,13 @@ public class Packet {
         byte[] host = new byte[]{buf.get(), buf.get(), buf.get(), buf.get()};
         builder.setPeerAddress(Inet4Address.getByAddress(host));
         builder.setPortNumber(Short.toUnsignedInt(buf.getShort()));
+        builder.setReceiveWindow(Short.toUnsignedInt(buf.getShort()));
+        boolean checksum = (buf.get() & FLAG_CHECKSUM) != 0;
+        int expected = buf.getInt();
+        if (checksum && expected != computeChecksum(buf, start, buf.limit())) {
+            throw new IOException("Checksum mismatch");
+        }
+        builder.setChecksum(checksum);
 
         byte[] payload = new byte[buf.remaining()];
         buf.get(payload);
@@ -144,6 +216,8 @@ public class Packet {
         private long sequenceNumber;
         private InetAddress peerAddress;
         private int portNumber;
+        private int receiveWindow;
+        private boolean checksum;
         private byte[] payload;
 
         public Builder setType(int type) {
@@ -166,13 +240,23 @@ public class Packet {
             return this;
         }
 
+        public Builder setReceiveWindow(int receiveWindow) {
+            this.receiveWindow = Math.min(Math.max(receiveWindow, 0), MAX_WINDOW);
+            return this;
+        }
+
+        public Builder setChecksum(boolean checksum) {
+            this.checksum = checksum;
+            return this;
+        }
+
         public Builder setPayload(byte[] payload) {
             this.payload = payload;
             return this;
         }
 
         public Packet create() {
-            return new Packet(type, sequenceNumber, peerAddress, portNumber, payload);
+            return new Packet(type, sequenceNumber, peerAddress, portNumber, receiveWindow, checksum, payload);
         }
     }
 }
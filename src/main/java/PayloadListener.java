@@ -0,0 +1,15 @@
+import java.io.IOException;
+
+/**
+ * Receives packet payloads in sequence order, as soon as the reliable receiver can deliver them.
+ */
+interface PayloadListener {
+
+    /**
+     * Called for every in-order payload.
+     *
+     * @param payload The payload of the delivered packet.
+     * @throws IOException If the payload cannot be consumed.
+     */
+    void onPayload(byte[] payload) throws IOException;
+}
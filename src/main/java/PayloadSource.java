@@ -0,0 +1,123 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Supplies the bytes of an outgoing transfer, read straight into the payload of the next packet.
+ * A source holding a file is closed by whoever created it once the transfer has ended.
+ */
+interface PayloadSource extends Closeable {
+
+    /**
+     * Copies the next bytes into dst.
+     *
+     * @param dst    The packet payload being filled.
+     * @param offset Position of the first byte to write.
+     * @param length Maximum number of bytes to write.
+     * @return The number of bytes written, or -1 once the transfer is complete.
+     * @throws IOException If the bytes cannot be produced.
+     */
+    int read(byte[] dst, int offset, int length) throws IOException;
+
+    /**
+     * Releases what the source holds, nothing for sources in memory.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Returns a stream over the bytes still to come, for code that reads rather than sends them.
+     * Closing the stream closes the source.
+     */
+    default InputStream toInputStream() {
+        PayloadSource source = this;
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int count;
+                while ((count = source.read(one, 0, 1)) == 0)
+                    ;
+                return count < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                int count;
+                while ((count = source.read(b, off, len)) == 0)
+                    ;
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    /**
+     * Returns a source that sends one source and then the other, such as the head of a request and its body.
+     * Closing it closes both.
+     */
+    static PayloadSource concat(PayloadSource first, PayloadSource second) {
+        return new PayloadSource() {
+            private boolean firstDone;
+
+            @Override
+            public int read(byte[] dst, int offset, int length) throws IOException {
+                if (!firstDone) {
+                    int count = first.read(dst, offset, length);
+                    if (count >= 0)
+                        return count;
+                    firstDone = true;
+                }
+                return second.read(dst, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    first.close();
+                } finally {
+                    second.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a source over an array that is already fully in memory.
+     *
+     * @param data The bytes to be sent.
+     */
+    static PayloadSource of(byte[] data) {
+        return of(data, 0, data.length);
+    }
+
+    /**
+     * Returns a source over a part of an array that is already fully in memory, which must not change while it is sent.
+     *
+     * @param data   Array holding the bytes to be sent.
+     * @param offset Offset of the first byte in data.
+     * @param count  Number of bytes to send.
+     */
+    static PayloadSource of(byte[] data, int offset, int count) {
+        return new PayloadSource() {
+            private int position = offset;
+
+            @Override
+            public int read(byte[] dst, int dstOffset, int length) {
+                if (position == offset + count)
+                    return -1;
+                int copied = Math.min(length, offset + count - position);
+                System.arraycopy(data, position, dst, dstOffset, copied);
+                position += copied;
+                return copied;
+            }
+        };
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
@@ -8,6 +9,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -21,6 +24,35 @@ class ReliableSRReceiver {
     private StringBuilder data;
     private boolean verbose;
 
+    // delayed ACKs: in-order packets are acknowledged every ackEvery packets or after ackDelayMillis
+    private static int ackEvery = 2;
+    private static long ackDelayMillis = 40;
+    private int unackedPackets;
+    private long ackDeadline;
+    private long acksSent;
+
+    // a sender that has sent nothing for this long is taken to be gone
+    private static final long IDLE_TIMEOUT = 60000;
+    private long lastPacketTime;
+
+    // flow control: the buffer of receiveBufferPackets holds the out-of-order packets and the in-order payloads
+    // the listener has not consumed yet, the free part is advertised, so a slow listener closes the window
+    private static int receiveBufferPackets = 32;
+    private final int windowSize;
+    private HashMap<Long, Packet> currentWindowPackets;
+    private static final byte[] END_OF_DATA = new byte[0];
+    private ArrayBlockingQueue<byte[]> deliveryQueue;
+    private AtomicInteger undelivered;
+    private Thread deliveryThread;
+    private volatile Throwable deliveryFailure;
+    // while the window is closed, how often the receiver looks whether the listener has made room again
+    private static final long WINDOW_UPDATE_POLL = 10;
+    private int lastAdvertisedWindow;
+    private static long totalZeroWindows;
+    private boolean checksum;
+    private PayloadListener listener;
+    private ConnectionRequestListener connectionRequests;
+
     ReliableSRReceiver(DatagramChannel channel, InetAddress clientAddress, int clientPort, SocketAddress routerAddress, boolean setVerbose) {
         this.channel = channel;
         this.clientAddress = clientAddress;
@@ -29,48 +61,166 @@ class ReliableSRReceiver {
 
         dataAvailable = false;
         verbose = setVerbose;
+        windowSize = receiveBufferPackets;
+    }
+
+    /**
+     * Hands every in-order payload to the listener as soon as it can be delivered,
+     * instead of collecting the data for getData(). The listener is called on a thread of its own,
+     * one payload after the other, and the payloads waiting for it count against the advertised window.
+     *
+     * @param listener The consumer of the delivered payloads.
+     */
+    void setPayloadListener(PayloadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Enables CRC32C checksums on the ACKs of this connection, and requires them on the sender's packets:
+     * one without a checksum is dropped, since a corrupted flag would otherwise turn the check off.
+     *
+     * @param enabled Whether ACKs carry a checksum and packets must.
+     */
+    void setChecksum(boolean enabled) {
+        checksum = enabled;
+    }
+
+    /**
+     * Hands the SYNs of other clients read while a request comes in to the listener, so the server can
+     * queue them for when this connection is over.
+     *
+     * @param listener The consumer of the connection requests.
+     */
+    void setConnectionRequestListener(ConnectionRequestListener listener) {
+        connectionRequests = listener;
+    }
+
+    /**
+     * Sets the reassembly buffer size of receivers created afterwards, which bounds the sender's window.
+     *
+     * @param packets Number of packets that can be buffered.
+     */
+    static void setReceiveBufferPackets(int packets) {
+        receiveBufferPackets = Math.max(1, Math.min(packets, Packet.MAX_WINDOW));
+    }
+
+    /**
+     * Configures ACK coalescing for receivers created afterwards.
+     *
+     * @param everyPackets Number of in-order packets covered by one ACK, 1 acknowledges every packet.
+     * @param delayMillis  Maximum time an in-order packet waits for its ACK.
+     */
+    static void setDelayedAck(int everyPackets, long delayMillis) {
+        ackEvery = Math.max(1, everyPackets);
+        ackDelayMillis = Math.max(1, delayMillis);
+    }
+
+    /**
+     * Returns how often the receivers of this process advertised a closed window.
+     */
+    static long getTotalZeroWindows() {
+        return totalZeroWindows;
     }
 
+    /**
+     * Receives data until the sender's FIN, delivering it in order.
+     *
+     * @return The next sequence number, or -1 when the connection failed or the sender stopped sending
+     *         for IDLE_TIMEOUT, in which case only part of the data was delivered.
+     */
     long receive(long windowBeginSeqNum, long totalSequenceNumber, int serverPort) {
-        long windowSize = 4;
         data = new StringBuilder();
+        lastPacketTime = System.currentTimeMillis();
 
-        HashMap<Long, Packet> currentWindowPackets = new HashMap<>();
+        currentWindowPackets = new HashMap<>();
+        lastAdvertisedWindow = windowSize;
+        startDelivery();
 
         ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
         try {
             channel.configureBlocking(false);
             while (true){
+                checkDelivery();
                 Selector selector = Selector.open();
                 channel.register(selector, OP_READ);
-                selector.select(1000);
+                long timeout = lastAdvertisedWindow == 0 ? WINDOW_UPDATE_POLL : 1000;
+                if (unackedPackets > 0)
+                    timeout = Math.min(timeout, Math.max(1, ackDeadline - System.currentTimeMillis()));
+                selector.select(timeout);
                 Set<SelectionKey> keys = selector.selectedKeys();
 
                 if (keys.isEmpty()) {
-                    handleTimeout(windowBeginSeqNum, serverPort);
+                    if (unackedPackets > 0) {
+                        if (verbose) System.out.println("Delayed ACK timer expired");
+                        sendAck(windowBeginSeqNum, serverPort);
+                    } else if (System.currentTimeMillis() - lastPacketTime > IDLE_TIMEOUT) {
+                        if (verbose) System.out.println("Nothing received from " + serverPort + " for " + IDLE_TIMEOUT + "ms, giving up");
+                        selector.close();
+                        return -1;
+                    } else if (lastAdvertisedWindow == 0) {
+                        // tell the sender as soon as the listener has made enough room, instead of waiting for its probe
+                        if (advertisedWindow() >= Math.max(1, windowSize / 2)) {
+                            if (verbose) System.out.println("Window reopened to " + advertisedWindow());
+                            sendAck(windowBeginSeqNum, serverPort);
+                        }
+                    } else {
+                        handleTimeout(windowBeginSeqNum, serverPort);
+                    }
                 } else {
                     dataAvailable = true;
                     buf.clear();
-                    channel.receive(buf);
+                    SocketAddress from = channel.receive(buf);
                     buf.flip();
-                    Packet packet = Packet.fromBuffer(buf);
+                    Packet packet;
+                    try {
+                        packet = Packet.fromBuffer(buf);
+                    } catch (IOException exception) {
+                        // corrupted or truncated datagram, the sender will repair it like a loss
+                        if (verbose) System.out.println("Discarding packet: " + exception.getMessage());
+                        keys.clear();
+                        selector.close();
+                        continue;
+                    }
+                    if (checksum && !packet.hasChecksum() && packet.getType() != 1) {
+                        // the connection negotiated checksums, the flag of this one was lost in transit
+                        if (verbose) System.out.println("Discarding packet without checksum: " + packet);
+                        keys.clear();
+                        selector.close();
+                        continue;
+                    }
                     buf.flip();
                     long seqNum = packet.getSequenceNumber();
+                    // only the sender's packets count, a new client's SYN says nothing about this one
+                    if (packet.getType() == 0 || packet.getType() == 4)
+                        lastPacketTime = System.currentTimeMillis();
+                    if (packet.getType() == 1 && connectionRequests != null)
+                        connectionRequests.onConnectionRequest(packet, from);
                     if (4 == packet.getType()) {
+                        // the FIN_ACK tells the sender the data has arrived, so the listener must have had all of it
+                        finishDelivery();
                         Packet resp = packet.toBuilder()
                                 .setType(5)
                                 .setSequenceNumber(windowBeginSeqNum)
                                 .setPayload("FIN_ACK".getBytes())
                                 .create();
                         channel.send(resp.toBuffer(), routerAddress);
-                        if (verbose) System.out.println("    " + serverPort + " sent    : " + resp);
+                        if (verbose) {
+                            System.out.println("    " + serverPort + " sent    : " + resp);
+                            System.out.println("ACKs sent: " + acksSent);
+                        }
                         return ++windowBeginSeqNum;
                     }
                     if (0 != packet.getType()) continue;
                     if (verbose) System.out.print(" Received from port: "+serverPort +" Packet: "+ packet);
                     boolean outOfOrderButWithinRange = false;
-                    if (windowBeginSeqNum == seqNum) {
+                    if (windowBeginSeqNum == seqNum && bufferedPackets() >= windowSize) {
+                        // the listener has not caught up, the sender must wait for the window to open
+                        if (verbose) System.out.println(", no room in the buffer, discarding it");
+                        sendAck(windowBeginSeqNum, serverPort);
+                    } else if (windowBeginSeqNum == seqNum) {
+                        boolean gapFilled = !currentWindowPackets.isEmpty();
                         windowBeginSeqNum = handleInOrderPackets(windowBeginSeqNum, totalSequenceNumber, seqNum, packet, windowSize, currentWindowPackets);
+                        scheduleAck(windowBeginSeqNum, serverPort, gapFilled);
                     } else if (windowBeginSeqNum + windowSize <= totalSequenceNumber) {
                         if (windowBeginSeqNum < seqNum && seqNum < windowBeginSeqNum + windowSize) {
                             if (verbose)
@@ -79,6 +229,8 @@ class ReliableSRReceiver {
                         } else {
                             if (verbose)
                                 System.out.println(", Packet is out of order and range, discarding it.");
+                            // most likely a retransmission whose ACK was lost, re-ACK at once
+                            sendAck(windowBeginSeqNum, serverPort);
                         }
                     } else {
                         // out of order
@@ -89,6 +241,7 @@ class ReliableSRReceiver {
                             outOfOrderButWithinRange = true;
                         } else {
                             if (verbose) System.out.println(", Packet is out of order and range, discarding it.");
+                            sendAck(windowBeginSeqNum, serverPort);
                         }
                     }
 
@@ -103,20 +256,22 @@ class ReliableSRReceiver {
         } catch (IOException exception) {
             System.out.println(exception.getMessage());
             return -1;
+        } finally {
+            stopDelivery();
         }
     }
 
-    private long handleInOrderPackets(long windowBeginSeqNum, long totalSequenceNumber, long seqNum, Packet packet, long windowSize, HashMap<Long, Packet> currentWindowPackets) {
+    private long handleInOrderPackets(long windowBeginSeqNum, long totalSequenceNumber, long seqNum, Packet packet, long windowSize, HashMap<Long, Packet> currentWindowPackets) throws IOException {
         // in order
         if (verbose) System.out.print("Packet is in order, deliver#" +seqNum);
-        data.append(new String(packet.getPayload(), UTF_8));
+        deliver(packet.getPayload());
         windowBeginSeqNum = (windowBeginSeqNum + 1) % totalSequenceNumber;
         // check buffer
         for (long i = 0; i < windowSize -1; ++i) {
             long bufferSeqNum = windowBeginSeqNum;
             if (currentWindowPackets.containsKey(bufferSeqNum)) {
                 if (verbose) System.out.print(", #" + bufferSeqNum);
-                data.append(new String(currentWindowPackets.get(bufferSeqNum).getPayload(), UTF_8));
+                deliver(currentWindowPackets.get(bufferSeqNum).getPayload());
                 windowBeginSeqNum = (windowBeginSeqNum + 1) % totalSequenceNumber;
                 currentWindowPackets.remove(bufferSeqNum);
             } else {
@@ -133,36 +288,187 @@ class ReliableSRReceiver {
                 System.out.println(", duplicate packet, discarding it");
             return;
         }
+        if (bufferedPackets() >= windowSize - 1) {
+            // the last free slot is kept for the packet that fills the gap, or nothing could be delivered again
+            if (verbose)
+                System.out.println(", no room in the buffer, discarding it");
+            sendAck(windowBeginSeqNum, serverPort);
+            return;
+        }
         if (verbose)
             System.out.println(", Adding to the buffer");
         // buffer it
         currentWindowPackets.put(seqNum, packet);
-        // send ACK
-        Packet resp = packet.toBuilder()
+        // a gap is a loss signal for the sender, ACK it immediately
+        sendAck(windowBeginSeqNum, serverPort);
+    }
+
+    private void deliver(byte[] payload) {
+        if (deliveryQueue != null) {
+            undelivered.incrementAndGet();
+            // never full, a packet is only accepted when the buffer has room for it
+            deliveryQueue.add(payload);
+        } else {
+            data.append(new String(payload, UTF_8));
+        }
+    }
+
+    /**
+     * Starts the thread that hands the delivered payloads to the listener, if there is one.
+     */
+    private void startDelivery() {
+        deliveryQueue = null;
+        deliveryFailure = null;
+        undelivered = new AtomicInteger();
+        if (listener == null)
+            return;
+        // one more than the buffer, for the end of data
+        deliveryQueue = new ArrayBlockingQueue<>(windowSize + 1);
+        deliveryThread = new Thread(this::deliverQueued, "payload-delivery");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * Hands the queued payloads to the listener until the end of data. Once the listener has failed,
+     * the rest is only taken off the queue, the receiving thread reports the failure.
+     */
+    private void deliverQueued() {
+        try {
+            for (byte[] payload; (payload = deliveryQueue.take()) != END_OF_DATA; ) {
+                if (deliveryFailure == null) {
+                    try {
+                        listener.onPayload(payload);
+                    } catch (Throwable failure) {
+                        deliveryFailure = failure;
+                    }
+                }
+                undelivered.decrementAndGet();
+            }
+        } catch (InterruptedException exception) {
+            // the connection failed, the payloads still queued are dropped
+        }
+    }
+
+    /**
+     * Waits until the listener has consumed every payload delivered.
+     *
+     * @throws IOException If the listener failed, or the wait was interrupted.
+     */
+    private void finishDelivery() throws IOException {
+        if (deliveryQueue == null)
+            return;
+        try {
+            deliveryQueue.put(END_OF_DATA);
+            deliveryThread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the data was delivered");
+        }
+        checkDelivery();
+    }
+
+    /**
+     * Stops the delivery thread if it still runs, after a failure, and waits for it, so the listener
+     * is never called once receive() has returned.
+     */
+    private void stopDelivery() {
+        if (deliveryThread == null)
+            return;
+        deliveryThread.interrupt();
+        boolean interrupted = false;
+        while (deliveryThread.isAlive()) {
+            try {
+                deliveryThread.join();
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        deliveryThread = null;
+    }
+
+    /**
+     * Rethrows on the receiving thread what the listener threw on the delivery thread.
+     */
+    private void checkDelivery() throws IOException {
+        Throwable failure = deliveryFailure;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+    }
+
+    /**
+     * Returns the number of packets taking up the buffer: the out-of-order packets and the payloads
+     * the listener has not consumed yet.
+     */
+    private int bufferedPackets() {
+        return currentWindowPackets.size() + undelivered.get();
+    }
+
+    /**
+     * Decides whether the in-order packets delivered so far are acknowledged now or later.
+     * An ACK goes out at once when a gap has just been filled or ackEvery packets are pending,
+     * otherwise the delayed ACK timer is armed for the first pending packet.
+     *
+     * @param windowBeginSeqNum The next expected sequence number.
+     * @param serverPort        Port used in the log output.
+     * @param gapFilled         Whether the delivery drained buffered out-of-order packets.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void scheduleAck(long windowBeginSeqNum, int serverPort, boolean gapFilled) throws IOException {
+        if (unackedPackets == 0)
+            ackDeadline = System.currentTimeMillis() + ackDelayMillis;
+        ++unackedPackets;
+        if (gapFilled || unackedPackets >= ackEvery)
+            sendAck(windowBeginSeqNum, serverPort);
+    }
+
+    /**
+     * Sends a cumulative ACK for everything before windowBeginSeqNum and clears the pending ACK state.
+     *
+     * @param windowBeginSeqNum The next expected sequence number.
+     * @param serverPort        Port used in the log output.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void sendAck(long windowBeginSeqNum, int serverPort) throws IOException {
+        int window = advertisedWindow();
+        if (window == 0 && lastAdvertisedWindow != 0)
+            ++totalZeroWindows;
+        lastAdvertisedWindow = window;
+        Packet resp = new Packet.Builder()
                 .setType(3)
                 .setSequenceNumber(windowBeginSeqNum)
+                .setPeerAddress(clientAddress)
+                .setPortNumber(clientPort)
+                .setReceiveWindow(window)
+                .setChecksum(checksum)
                 .setPayload("ACK".getBytes())
                 .create();
         channel.send(resp.toBuffer(), routerAddress);
+        unackedPackets = 0;
+        ++acksSent;
 
         if (verbose)
             System.out.println("    sent to: "+ serverPort + " " + resp);
     }
 
+    /**
+     * Returns the number of packets the sender may have outstanding beyond the cumulative ACK,
+     * the buffer minus the out-of-order packets and the undelivered payloads already waiting in it.
+     */
+    private int advertisedWindow() {
+        return Math.max(0, windowSize - bufferedPackets());
+    }
+
     private void handleTimeout(long windowBeginSeqNum, int serverPort) throws IOException {
         if (dataAvailable) {
             if (verbose) System.out.println("Time out");
-            Packet resp = new Packet.Builder()
-                    .setType(3)
-                    .setSequenceNumber(windowBeginSeqNum)
-                    .setPeerAddress(clientAddress)
-                    .setPortNumber(clientPort)
-                    .setPayload("ACK".getBytes())
-                    .create();
-            channel.send(resp.toBuffer(), routerAddress);
-            if (verbose)
-                System.out.println("    sent to: "+ serverPort + " " + resp);
-
+            sendAck(windowBeginSeqNum, serverPort);
         }
     }
 
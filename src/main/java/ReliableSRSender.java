@@ -5,6 +5,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
@@ -16,11 +17,48 @@ import static java.nio.channels.SelectionKey.OP_READ;
  */
 class ReliableSRSender {
     private final int maxPacketDataLength = 1013;
-    private int currentPacketIndex;
+    private PayloadSource source;
+    private boolean sourceExhausted;
     private int timeoutCounter;
-    private static HashMap<Long, Packet> currentWindowPackets;
+    private final HashMap<Long, Packet> currentWindowPackets;
     private boolean requestSent;
 
+    // pacing: spreads the window over the RTT instead of bursting it into the router's queue
+    private static long pacingRateCap = 4_000_000;
+    private static long totalPacketsSent;
+    private static long totalRetransmissions;
+    private static long totalDelayedPackets;
+    private static long totalPacingDelayNanos;
+    private final TokenBucketPacer pacer;
+    private final HashMap<Long, Long> sendTimes;
+    private double smoothedRtt;
+    private long windowSize;
+
+    // congestion control: limited transmit on the first duplicate ACKs, fast retransmit after dupAckThreshold
+    // of them, then NewReno fast recovery
+    private static int dupAckThreshold = 3;
+    private static long totalFastRetransmits;
+    private double congestionWindow;
+    private double slowStartThreshold;
+    private int duplicateAcks;
+    private boolean inFastRecovery;
+    private long recoverySeqNum;
+    private static final long RETRANSMIT_TIMEOUT = 2000;
+    private long retransmitDeadline;
+    // a receiver that has sent nothing for this many retransmission timeouts in a row is taken to be gone
+    private static final int MAX_SILENT_TIMEOUTS = 15;
+    private int silentTimeouts;
+
+    // flow control: never more packets beyond the cumulative ACK than the receiver advertised
+    private static final long MAX_WINDOW_SIZE = 64;
+    private static final long INITIAL_WINDOW_SIZE = 4;
+    private long peerWindow;
+    private boolean zeroWindowProbe;
+    private static long totalZeroWindowProbes;
+
+    private boolean checksum;
+    private ConnectionRequestListener connectionRequests;
+
     private DatagramChannel channel;
     private InetSocketAddress receiverAddress;
     private SocketAddress routerAddress;
@@ -45,12 +83,85 @@ class ReliableSRSender {
 
         timeoutCounter = 3;
         currentWindowPackets = new HashMap<>();
-        currentPacketIndex = 0;
         requestSent = false;
 
+        pacer = new TokenBucketPacer(pacingRateCap, 2L * Packet.MAX_LEN);
+        sendTimes = new HashMap<>();
+        smoothedRtt = -1;
+
         verbose = setVerbose;
     }
 
+    /**
+     * Enables CRC32C checksums on the packets of this connection, and requires them on the receiver's ACKs:
+     * one without a checksum is dropped, since a corrupted flag would otherwise turn the check off.
+     *
+     * @param enabled Whether packets carry a checksum and ACKs must.
+     */
+    void setChecksum(boolean enabled) {
+        checksum = enabled;
+    }
+
+    /**
+     * Hands the SYNs of other clients that arrive while the data is sent to the listener, instead of dropping them.
+     *
+     * @param listener The consumer of the connection requests.
+     */
+    void setConnectionRequestListener(ConnectionRequestListener listener) {
+        connectionRequests = listener;
+    }
+
+    /**
+     * Sets the pacing rate used until an RTT estimate is available, and the upper bound afterwards.
+     *
+     * @param bytesPerSecond The rate cap in bytes per second, 0 disables pacing.
+     */
+    static void setPacingRateCap(long bytesPerSecond) {
+        pacingRateCap = bytesPerSecond;
+    }
+
+    static long getTotalPacketsSent() {
+        return totalPacketsSent;
+    }
+
+    static long getTotalRetransmissions() {
+        return totalRetransmissions;
+    }
+
+    static long getTotalDelayedPackets() {
+        return totalDelayedPackets;
+    }
+
+    static long getTotalPacingDelayNanos() {
+        return totalPacingDelayNanos;
+    }
+
+    /**
+     * Sets the number of duplicate ACKs that triggers a fast retransmit.
+     *
+     * @param threshold The duplicate ACK threshold, at least 1.
+     */
+    static void setDupAckThreshold(int threshold) {
+        dupAckThreshold = Math.max(1, threshold);
+    }
+
+    static long getTotalFastRetransmits() {
+        return totalFastRetransmits;
+    }
+
+    static long getTotalZeroWindowProbes() {
+        return totalZeroWindowProbes;
+    }
+
+    /**
+     * Summarises the pacing counters accumulated by all senders of this process.
+     */
+    static String getPacingStats() {
+        return String.format("packets sent=%d, retransmitted=%d, fast retransmits=%d, zero window probes=%d, paced=%d, pacing delay=%dms",
+                totalPacketsSent, totalRetransmissions, totalFastRetransmits, totalZeroWindowProbes, totalDelayedPackets,
+                totalPacingDelayNanos / 1_000_000);
+    }
+
     /**
      * Sends data using selective repeat protocol.
      *
@@ -60,44 +171,90 @@ class ReliableSRSender {
      * @return The next window sequence number to be used.
      */
     long send(String data, long windowSeqNum, long totalSequenceNumber) {
-        byte[] byteData = data.getBytes();
+        return send(PayloadSource.of(data.getBytes(StandardCharsets.UTF_8)), windowSeqNum, totalSequenceNumber);
+    }
+
+    /**
+     * Sends data using selective repeat protocol, reading each packet's payload from the source
+     * only when the window lets the packet go out.
+     *
+     * @param data                 The source of the data to be sent.
+     * @param windowSeqNum         The current sequence number for the window.
+     * @param totalSequenceNumber  The total number of sequence numbers available.
+     * @return The next window sequence number to be used, or -1 when the receiver stopped answering
+     *         before the data was acknowledged.
+     */
+    long send(PayloadSource data, long windowSeqNum, long totalSequenceNumber) {
+        source = data;
+        sourceExhausted = false;
         //long windowSize = totalSequenceNumber / 2;
-        long windowSize = 4;
-        //calculate number of packets needed to send the data
-        long packetsCount = byteData.length / maxPacketDataLength;
-        if (0 != byteData.length % maxPacketDataLength)
-            ++packetsCount;
+        windowSize = MAX_WINDOW_SIZE;
+        // until the first ACK advertises the receiver's buffer, assume the classic window of four
+        peerWindow = INITIAL_WINDOW_SIZE;
+        congestionWindow = INITIAL_WINDOW_SIZE;
+        slowStartThreshold = windowSize;
 
+        retransmitDeadline = System.currentTimeMillis() + RETRANSMIT_TIMEOUT;
         while(true) {
             try {
                 // fill up / create window size Packets
-                generatePackets(windowSeqNum, totalSequenceNumber, windowSize, packetsCount, byteData);
+                generatePackets(windowSeqNum, totalSequenceNumber, zeroWindowProbe ? 1 : sendWindow());
+                zeroWindowProbe = false;
+                if (!requestSent && sourceExhausted && currentWindowPackets.isEmpty()) {
+                    // everything has been acknowledged
+                    sendAllPackets(windowSeqNum);
+                }
 
                 //Request/Response data sent, receive a response before timeout
                 channel.configureBlocking(false);
                 Selector selector = Selector.open();
                 channel.register(selector, OP_READ);
-                selector.select(2000);
+                // the timer runs from the last progress, a stream of duplicate ACKs must not hold it off
+                long timeout = retransmitDeadline - System.currentTimeMillis();
+                if (timeout > 0)
+                    selector.select(timeout);
 
                 Set<SelectionKey> keys = selector.selectedKeys();
                 if (keys.isEmpty()) {
                     if (verbose)
                         System.out.println("Time out occurred");
-                    windowSeqNum = handleTimeOut(windowSeqNum, windowSize);
+                    if (!requestSent && ++silentTimeouts > MAX_SILENT_TIMEOUTS) {
+                        if (verbose)
+                            System.out.println("No answer from " + serverPort + ", giving up");
+                        selector.close();
+                        return -1;
+                    }
+                    retransmitDeadline = System.currentTimeMillis() + RETRANSMIT_TIMEOUT;
+                    onRetransmissionTimeout();
+                    windowSeqNum = handleTimeOut(windowSeqNum, Math.max(1, Math.min(windowSize, (long) congestionWindow)));
                 }
                 else {
                     ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
-                    channel.receive(buf);
+                    SocketAddress from = channel.receive(buf);
                     buf.flip();
                     Packet resp = Packet.fromBuffer(buf);
+                    if (checksum && !resp.hasChecksum() && resp.getType() != 1) {
+                        // the connection negotiated checksums, the flag of this one was lost in transit
+                        if (verbose) System.out.println("Discarding packet without checksum: " + resp);
+                        keys.clear();
+                        selector.close();
+                        continue;
+                    }
+                    if (resp.getType() == 1 && connectionRequests != null)
+                        connectionRequests.onConnectionRequest(resp, from);
+                    // only the receiver's answers count, a new client's SYN says nothing about this one
+                    if (resp.getType() == 3 || resp.getType() == 5)
+                        silentTimeouts = 0;
                     if (requestSent) {
                         if (resp.getType() ==3) {
-                            channel.send(currentWindowPackets.get(windowSeqNum).toBuffer(), routerAddress);
+                            sendPacket(currentWindowPackets.get(windowSeqNum), true);
                             if (verbose)
                                 System.out.println("Sent to " + serverPort + ": " + currentWindowPackets.get(windowSeqNum));
                         } else if (5 == resp.getType()) {
-                            if (verbose)
+                            if (verbose) {
                                 System.out.println("Finish sending request");
+                                System.out.println("Pacing: " + getPacingStats());
+                            }
                             return ++windowSeqNum;
                         }
                     }
@@ -105,14 +262,24 @@ class ReliableSRSender {
                         if (verbose)
                             System.out.println("Received ACK " + resp);
                         long missedSeqNum = resp.getSequenceNumber();
-                        if (currentWindowPackets.containsKey(missedSeqNum)) {
-                            windowSeqNum = sendMissedPackets(windowSeqNum, totalSequenceNumber, missedSeqNum);
+                        peerWindow = resp.getReceiveWindow();
+                        if (missedSeqNum == windowSeqNum && currentWindowPackets.containsKey(missedSeqNum)) {
+                            // nothing new acknowledged, the receiver is still missing the window base
+                            handleDuplicateAck(missedSeqNum, totalSequenceNumber);
+                        } else if (currentWindowPackets.containsKey(missedSeqNum)) {
+                            // cumulative (possibly delayed) ACK, the rest of the window is still in flight
+                            sampleRtt(windowSeqNum, totalSequenceNumber, missedSeqNum);
+                            boolean partialAck = onNewAck(windowSeqNum, totalSequenceNumber, missedSeqNum);
+                            windowSeqNum = slideWindow(windowSeqNum, totalSequenceNumber, missedSeqNum);
+                            if (partialAck) {
+                                // the new base was lost as well, repair it without waiting for more duplicates
+                                sendMissedPackets(missedSeqNum);
+                            }
                         } else if (missedSeqNum == (windowSeqNum + currentWindowPackets.size()) % totalSequenceNumber) {
+                            sampleRtt(windowSeqNum, totalSequenceNumber, missedSeqNum);
+                            onNewAck(windowSeqNum, totalSequenceNumber, missedSeqNum);
                             currentWindowPackets.clear();
                             windowSeqNum = missedSeqNum;
-                            if (currentPacketIndex == packetsCount) {
-                                sendAllPackets(windowSeqNum);
-                            }
                         }
                     }
                 }
@@ -125,19 +292,107 @@ class ReliableSRSender {
     }
 
     /**
-     * Resends the missed packets and adjusts the window sequence number.
+     * Resends the missed packet.
      *
-     * @param windowSeqNum         The current sequence number for the window.
-     * @param totalSequenceNumber  The total number of sequence numbers available.
-     * @param missedSeqNum         The sequence number of the missed packet.
-     * @return The adjusted window sequence number.
+     * @param missedSeqNum The sequence number of the missed packet.
      * @throws IOException If an I/O error occurs.
      */
-    private long sendMissedPackets(long windowSeqNum, long totalSequenceNumber, long missedSeqNum) throws IOException {
-        channel.send(currentWindowPackets.get(missedSeqNum).toBuffer(), routerAddress);
+    private void sendMissedPackets(long missedSeqNum) throws IOException {
+        sendPacket(currentWindowPackets.get(missedSeqNum), true);
         if (verbose) System.out.println("Resending to " + serverPort + ": " + currentWindowPackets.get(missedSeqNum));
+    }
 
-        long numACKed = missedSeqNum - windowSeqNum;
+    /**
+     * Counts a duplicate ACK and, once dupAckThreshold have arrived, retransmits the window base without waiting
+     * for the timer. The window is halved rather than collapsed and inflated by one packet per further duplicate,
+     * since each duplicate means another packet has left the network.
+     * A duplicate below the threshold sends one new packet instead (limited transmit), so a window of only a few
+     * packets still produces enough duplicates, without retransmitting on a mere reordering.
+     *
+     * @param missedSeqNum         The window base the receiver is still waiting for.
+     * @param totalSequenceNumber  The total number of sequence numbers available.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void handleDuplicateAck(long missedSeqNum, long totalSequenceNumber) throws IOException {
+        ++duplicateAcks;
+        if (inFastRecovery) {
+            congestionWindow += 1;
+        } else if (duplicateAcks < dupAckThreshold) {
+            generatePackets(missedSeqNum, totalSequenceNumber, Math.min(peerWindow, currentWindowPackets.size() + 1));
+        } else if (duplicateAcks == dupAckThreshold) {
+            if (verbose) System.out.println(duplicateAcks + " duplicate ACKs, fast retransmit #" + missedSeqNum);
+            ++totalFastRetransmits;
+            slowStartThreshold = Math.max(congestionWindow / 2, 2);
+            congestionWindow = slowStartThreshold + duplicateAcks;
+            inFastRecovery = true;
+            recoverySeqNum = (missedSeqNum + currentWindowPackets.size()) % totalSequenceNumber;
+            sendMissedPackets(missedSeqNum);
+        }
+    }
+
+    /**
+     * Grows the congestion window for newly acknowledged packets, or leaves fast recovery once
+     * everything outstanding at the time of the fast retransmit has been acknowledged.
+     * An ACK that covers only part of that is a partial ACK: recovery goes on, and the window is deflated
+     * by the packets acknowledged and grown by the one retransmitted for it, as in NewReno.
+     *
+     * @param windowSeqNum         The current sequence number for the window.
+     * @param totalSequenceNumber  The total number of sequence numbers available.
+     * @param ackSeqNum            The next sequence number expected by the receiver.
+     * @return Whether the ACK is a partial ACK, after which the new window base is to be retransmitted.
+     */
+    private boolean onNewAck(long windowSeqNum, long totalSequenceNumber, long ackSeqNum) {
+        long numACKed = (ackSeqNum - windowSeqNum + totalSequenceNumber) % totalSequenceNumber;
+        duplicateAcks = 0;
+        retransmitDeadline = System.currentTimeMillis() + RETRANSMIT_TIMEOUT;
+        if (inFastRecovery) {
+            long remaining = (recoverySeqNum - ackSeqNum + totalSequenceNumber) % totalSequenceNumber;
+            if (remaining == 0 || remaining > windowSize) {
+                inFastRecovery = false;
+                congestionWindow = slowStartThreshold;
+                return false;
+            }
+            congestionWindow = Math.max(congestionWindow - numACKed + 1, 1);
+            return true;
+        }
+        if (congestionWindow < slowStartThreshold)
+            congestionWindow += numACKed;
+        else
+            congestionWindow += (double) numACKed / congestionWindow;
+        congestionWindow = Math.min(congestionWindow, windowSize);
+        return false;
+    }
+
+    /**
+     * Reacts to a retransmission timeout, the strongest congestion signal: the window restarts at one packet.
+     */
+    private void onRetransmissionTimeout() {
+        if (requestSent)
+            return;
+        slowStartThreshold = Math.max(congestionWindow / 2, 2);
+        congestionWindow = 1;
+        duplicateAcks = 0;
+        inFastRecovery = false;
+    }
+
+    /**
+     * Returns the number of packets that may be outstanding, bounded by the window size
+     * and by the receiver's advertised window, which may be zero.
+     */
+    private long sendWindow() {
+        return Math.min(peerWindow, Math.max(1, Math.min(windowSize, (long) congestionWindow)));
+    }
+
+    /**
+     * Removes the packets acknowledged by a cumulative ACK and adjusts the window sequence number.
+     *
+     * @param windowSeqNum         The current sequence number for the window.
+     * @param totalSequenceNumber  The total number of sequence numbers available.
+     * @param ackSeqNum            The next sequence number expected by the receiver.
+     * @return The adjusted window sequence number.
+     */
+    private long slideWindow(long windowSeqNum, long totalSequenceNumber, long ackSeqNum) {
+        long numACKed = (ackSeqNum - windowSeqNum + totalSequenceNumber) % totalSequenceNumber;
         for (int i = 0; i < numACKed; ++i) {
             // remove ACK'd Packets
             currentWindowPackets.remove(windowSeqNum);
@@ -158,6 +413,12 @@ class ReliableSRSender {
     private long handleTimeOut(long windowSeqNum, long windowSize) throws IOException {
         if (requestSent) {
             windowSeqNum =handleTimeoutForRequest(windowSeqNum, currentWindowPackets);
+        } else if (currentWindowPackets.isEmpty() && peerWindow == 0) {
+            // the receiver's window is closed and its reopening ACK may have been lost, probe it with one packet
+            if (verbose)
+                System.out.println("Zero window, sending probe to " + serverPort);
+            ++totalZeroWindowProbes;
+            zeroWindowProbe = true;
         } else {
            sendWindowPackets(windowSeqNum, windowSize);
         }
@@ -175,7 +436,7 @@ class ReliableSRSender {
         for (long i = 0; i < windowSize; ++i) {
             long seqNum = windowSeqNum + i;
             if (currentWindowPackets.containsKey(seqNum)) {
-                channel.send(currentWindowPackets.get(seqNum).toBuffer(), routerAddress);
+                sendPacket(currentWindowPackets.get(seqNum), true);
                 if (verbose)
                     System.out.println("resending to " + serverPort + ": " + currentWindowPackets.get(seqNum));
             }
@@ -194,10 +455,11 @@ class ReliableSRSender {
                 .setSequenceNumber(windowSeqNum)
                 .setPortNumber(receiverAddress.getPort())
                 .setPeerAddress(receiverAddress.getAddress())
+                .setChecksum(checksum)
                 .setPayload("FIN".getBytes())
                 .create();
         currentWindowPackets.put(windowSeqNum, p);
-        channel.send(currentWindowPackets.get(windowSeqNum).toBuffer(), routerAddress);
+        sendPacket(currentWindowPackets.get(windowSeqNum), false);
         if (verbose) System.out.println("Sent FIN to " + serverPort + ": " + currentWindowPackets.get(windowSeqNum));
         requestSent = true;
     }
@@ -216,7 +478,7 @@ class ReliableSRSender {
                 System.out.println("Finish sending data");
             return ++windowSeqNum;
         }
-        channel.send(currentWindowPackets.get(windowSeqNum).toBuffer(), routerAddress);
+        sendPacket(currentWindowPackets.get(windowSeqNum), true);
         if (verbose)
             System.out.println("resending to " + serverPort + ": " + currentWindowPackets.get(windowSeqNum));
         return windowSeqNum;
@@ -230,44 +492,107 @@ class ReliableSRSender {
      * @param windowSeqNum         The sequence number of the first packet in the current window.
      * @param totalSequenceNumber  The total number of sequence numbers in the protocol.
      * @param windowSize           The size of the current sliding window.
-     * @param packetsCount         The total number of packets needed to transmit the data.
-     * @param byteData             The byte array representing the data to be transmitted.
      * @throws IOException         If an I/O error occurs while sending the packets.
      */
-    private void generatePackets(long windowSeqNum, long totalSequenceNumber, long windowSize, long packetsCount, byte[] byteData) throws IOException {
+    private void generatePackets(long windowSeqNum, long totalSequenceNumber, long windowSize) throws IOException {
         if (!requestSent) {
             for (int i = 0; i < windowSize; ++i) {
                 long currentSeqNum = (windowSeqNum + i) % totalSequenceNumber;
                 if (!currentWindowPackets.containsKey(currentSeqNum)) {
-                    byte[] packetData;
-
-                    //break down the data into multiple packets if the exceeds max size
-                    if (currentPacketIndex < packetsCount - 1) {
-                        packetData = Arrays.copyOfRange(byteData,
-                                (currentPacketIndex) * maxPacketDataLength,
-                                (currentPacketIndex + 1) * maxPacketDataLength);
-
-                    } else if (currentPacketIndex == packetsCount - 1){
-                        packetData = Arrays.copyOfRange(byteData,
-                                (currentPacketIndex) * maxPacketDataLength,
-                                byteData.length);
-                    } else {
+                    byte[] packetData = nextPayload();
+                    if (packetData == null)
                         break;
-                    }
-                    ++currentPacketIndex;
                     //create a packet and send it
                     Packet packet = new Packet.Builder()
                             .setType(0)
                             .setSequenceNumber(currentSeqNum)
                             .setPortNumber(receiverAddress.getPort())
                             .setPeerAddress(receiverAddress.getAddress())
+                            .setChecksum(checksum)
                             .setPayload(packetData)
                             .create();
                     currentWindowPackets.put(currentSeqNum, packet);
-                    channel.send(currentWindowPackets.get(currentSeqNum).toBuffer(), routerAddress);
+                    sendPacket(currentWindowPackets.get(currentSeqNum), false);
                     if (verbose) System.out.println("Sent to " + serverPort + ": " + currentWindowPackets.get(currentSeqNum));
                 }
             }
         }
     }
+
+    /**
+     * Reads the payload of the next packet from the source, filling it up to the maximum size.
+     *
+     * @return The payload, or null once the source is exhausted.
+     * @throws IOException If the source fails.
+     */
+    private byte[] nextPayload() throws IOException {
+        if (sourceExhausted)
+            return null;
+        byte[] packetData = new byte[maxPacketDataLength];
+        int length = 0;
+        while (length < packetData.length) {
+            int count = source.read(packetData, length, packetData.length - length);
+            if (count < 0) {
+                sourceExhausted = true;
+                break;
+            }
+            length += count;
+        }
+        if (length == 0)
+            return null;
+        return length == packetData.length ? packetData : Arrays.copyOf(packetData, length);
+    }
+
+    /**
+     * Sends a packet to the router once the pacer allows it.
+     * Retransmitted packets lose their send time so they never produce an RTT sample (Karn's rule).
+     *
+     * @param packet         The packet to be sent.
+     * @param retransmission Whether the packet has been sent before.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void sendPacket(Packet packet, boolean retransmission) throws IOException {
+        ByteBuffer buf = packet.toBuffer();
+        long waitedNanos = pacer.acquire(buf.remaining());
+        channel.send(buf, routerAddress);
+        ++totalPacketsSent;
+        if (waitedNanos > 0) {
+            ++totalDelayedPackets;
+            totalPacingDelayNanos += waitedNanos;
+        }
+        if (retransmission) {
+            ++totalRetransmissions;
+            sendTimes.remove(packet.getSequenceNumber());
+        } else {
+            sendTimes.put(packet.getSequenceNumber(), System.nanoTime());
+        }
+    }
+
+    /**
+     * Updates the RTT estimate from the newest packet covered by an ACK and re-derives the pacing rate,
+     * so that one window is spread over one RTT, never faster than the configured cap.
+     * The receiver holds an ACK back by at most its delayed ACK timer, which is small against the RTO.
+     * An ACK covering a retransmitted packet is not sampled, it was held back by the repair of that hole.
+     *
+     * @param windowSeqNum         The current sequence number for the window.
+     * @param totalSequenceNumber  The total number of sequence numbers available.
+     * @param ackSeqNum            The next sequence number expected by the receiver.
+     */
+    private void sampleRtt(long windowSeqNum, long totalSequenceNumber, long ackSeqNum) {
+        Long sentAt = null;
+        boolean repaired = false;
+        for (long seqNum = windowSeqNum; seqNum != ackSeqNum; seqNum = (seqNum + 1) % totalSequenceNumber) {
+            sentAt = sendTimes.remove(seqNum);
+            if (sentAt == null)
+                repaired = true;
+        }
+        if (sentAt == null || repaired)
+            return;
+        long sample = System.nanoTime() - sentAt;
+        smoothedRtt = smoothedRtt < 0 ? sample : 0.875 * smoothedRtt + 0.125 * sample;
+        double rate = Math.max(1, sendWindow()) * Packet.MAX_LEN * 1e9 / Math.max(smoothedRtt, 1);
+        if (pacingRateCap > 0)
+            rate = Math.min(rate, pacingRateCap);
+        pacer.setRate(rate);
+    }
 }
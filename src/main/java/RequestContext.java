@@ -0,0 +1,153 @@
+/**
+ * Everything that belongs to one request, from its headers to the sent response.
+ * HTTPFileStorage keeps no per-request state of its own, so requests can be handled concurrently.
+ */
+class RequestContext {
+    private int statusCode = 200;
+    private String host;
+    private String requestLine;
+    private boolean overWrite = true;
+    private ResponseWriter response;
+    private StorageBackend.Write upload;
+    private String etag;
+    private long lastModified = -1;
+    private long uploadOffset = -1;
+    private String encoding;
+    private int forwardTo = -1;
+    private FileUpload forwardedBody;
+    private long version;
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Returns the Host header of the request, or null when it had none.
+     */
+    String getHost() {
+        return host;
+    }
+
+    void setHost(String host) {
+        this.host = host;
+    }
+
+    String getRequestLine() {
+        return requestLine;
+    }
+
+    void setRequestLine(String requestLine) {
+        this.requestLine = requestLine;
+    }
+
+    /**
+     * Returns whether a POST replaces the stored content, false when it appends ("overwrite=false").
+     */
+    boolean isOverWrite() {
+        return overWrite;
+    }
+
+    void setOverWrite(boolean overWrite) {
+        this.overWrite = overWrite;
+    }
+
+    ResponseWriter getResponse() {
+        return response;
+    }
+
+    void setResponse(ResponseWriter response) {
+        this.response = response;
+    }
+
+    /**
+     * Returns the write receiving the body of a POST as it arrives, or null when the body is not stored.
+     */
+    StorageBackend.Write getUpload() {
+        return upload;
+    }
+
+    void setUpload(StorageBackend.Write upload) {
+        this.upload = upload;
+    }
+
+    /**
+     * Returns the port of the cluster node the request is passed on to, or -1 when this node answers it.
+     */
+    int getForwardTo() {
+        return forwardTo;
+    }
+
+    void setForwardTo(int forwardTo) {
+        this.forwardTo = forwardTo;
+    }
+
+    /**
+     * Returns the temporary file holding the body of a request passed on to another node, or null when it has none.
+     */
+    FileUpload getForwardedBody() {
+        return forwardedBody;
+    }
+
+    void setForwardedBody(FileUpload forwardedBody) {
+        this.forwardedBody = forwardedBody;
+    }
+
+    /**
+     * Returns the version stamp of the object served in a replicated cluster, 0 when the response has none.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Returns the entity tag of the object served, quoted, or null when the response has none.
+     */
+    String getEtag() {
+        return etag;
+    }
+
+    void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * Returns the modification time of the object served in milliseconds, or -1 when it has none.
+     */
+    long getLastModified() {
+        return lastModified;
+    }
+
+    void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the number of bytes a resumable upload has received, reported as Upload-Offset, or -1.
+     */
+    long getUploadOffset() {
+        return uploadOffset;
+    }
+
+    void setUploadOffset(long uploadOffset) {
+        this.uploadOffset = uploadOffset;
+    }
+
+    /**
+     * Returns the content coding negotiated for the response, CompressingSource.GZIP or DEFLATE, or null.
+     */
+    String getEncoding() {
+        return encoding;
+    }
+
+    void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Response body assembled from encoded segments, so cached fragments are sent as they are
+ * instead of being decoded and re-encoded with the rest of the body.
+ */
+class ResponseBody implements PayloadSource {
+    private final ArrayList<byte[]> segments = new ArrayList<>();
+    // the gzip copy of each segment, or null
+    private final ArrayList<byte[]> gzipped = new ArrayList<>();
+    private long length;
+    private int segment;
+    private int position;
+
+    ResponseBody append(String text) {
+        return append(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends an encoded segment, which is shared rather than copied and must not change afterwards.
+     */
+    ResponseBody append(byte[] bytes) {
+        return append(bytes, null);
+    }
+
+    /**
+     * Appends a shared segment with a gzip copy of it, used as it is when the body is sent in gzip.
+     */
+    ResponseBody append(byte[] bytes, byte[] gzip) {
+        if (bytes.length > 0) {
+            segments.add(bytes);
+            gzipped.add(gzip);
+            length += bytes.length;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the body compressed in a content coding. In gzip every run of segments without a copy becomes
+     * one gzip member and the copies are used as they are, as a gzip stream may consist of several members.
+     *
+     * @param encoding CompressingSource.GZIP or CompressingSource.DEFLATE.
+     */
+    ResponseBody compress(String encoding) throws IOException {
+        ResponseBody compressed = new ResponseBody();
+        if (!CompressingSource.GZIP.equals(encoding))
+            return compressed.append(CompressingSource.compress(this, encoding));
+        ResponseBody run = new ResponseBody();
+        for (int i = 0; i < segments.size(); ++i) {
+            if (gzipped.get(i) == null) {
+                run.append(segments.get(i));
+                continue;
+            }
+            if (run.length() > 0)
+                compressed.append(CompressingSource.compress(run, encoding));
+            run = new ResponseBody();
+            compressed.append(gzipped.get(i));
+        }
+        if (run.length() > 0)
+            compressed.append(CompressingSource.compress(run, encoding));
+        return compressed;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Returns the segments joined into one array, for a body that is cached rather than sent.
+     */
+    byte[] toByteArray() {
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        for (byte[] part : segments) {
+            System.arraycopy(part, 0, bytes, offset, part.length);
+            offset += part.length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int count) {
+        if (segment == segments.size())
+            return -1;
+        byte[] current = segments.get(segment);
+        int copied = Math.min(count, current.length - position);
+        System.arraycopy(current, position, dst, offset, copied);
+        position += copied;
+        if (position == current.length) {
+            ++segment;
+            position = 0;
+        }
+        return copied;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (byte[] bytes : segments)
+            text.append(new String(bytes, StandardCharsets.UTF_8));
+        return text.toString();
+    }
+}
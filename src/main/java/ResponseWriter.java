@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes an HTTP response as bytes, ready to be cut into packets by the sender.
+ * Status lines and static headers are encoded once and copied from templates, and the Date header
+ * is formatted at most once per second, so no String is built for the response head.
+ */
+class ResponseWriter implements PayloadSource {
+    static final byte[] CONTENT_TYPE_JSON = line("Content-Type: application/json");
+    static final byte[] CONTENT_TYPE_OCTET_STREAM = line("Content-Type: application/octet-stream");
+    static final byte[] ACCEPT_RANGES = line("Accept-Ranges: bytes");
+    static final byte[] VARY_ACCEPT_ENCODING = line("Vary: Accept-Encoding");
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] COMMON_HEADERS = (
+            "Connection: close\r\n" +
+            "Server: gunicorn/19.9.0\r\n" +
+            "Access-Control-Allow-Origin: *\r\n" +
+            "Access-Control-Allow-Credentials: true\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final ConcurrentHashMap<Integer, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static volatile DateHeader dateHeader = new DateHeader(-1, null);
+
+    private byte[] head = new byte[512];
+    private int headLength;
+    private int headPosition;
+    private PayloadSource body;
+    private long contentLength;
+
+    /**
+     * Starts a response with its status line and Date header.
+     *
+     * @param statusCode The HTTP status code.
+     * @param reason     The reason phrase, only encoded the first time the status code is used.
+     */
+    ResponseWriter(int statusCode, String reason) {
+        append(STATUS_LINES.computeIfAbsent(statusCode, code -> line("HTTP/1.1 " + code + " " + reason)));
+        append(currentDateHeader());
+    }
+
+    /**
+     * Adds a pre-encoded header line, terminated by CRLF.
+     */
+    ResponseWriter header(byte[] line) {
+        append(line);
+        return this;
+    }
+
+    /**
+     * Adds a header whose value changes between responses.
+     */
+    ResponseWriter header(String name, String value) {
+        return header(line(name + ": " + value));
+    }
+
+    /**
+     * Completes the head with Content-Length and the common headers and attaches a body held in memory.
+     */
+    ResponseWriter body(byte[] content) {
+        return body(PayloadSource.of(content), content.length);
+    }
+
+    /**
+     * Completes the head with Content-Length and the common headers and attaches a streamed body.
+     *
+     * @param content The body, read packet by packet while sending.
+     * @param length  The exact number of bytes the body will produce.
+     */
+    ResponseWriter body(PayloadSource content, long length) {
+        append(CONTENT_LENGTH);
+        appendDecimal(length);
+        append(CRLF);
+        append(COMMON_HEADERS);
+        append(CRLF);
+        body = content;
+        contentLength = length;
+        return this;
+    }
+
+    /**
+     * Completes the head with the common headers and attaches a streamed body whose length is not known
+     * in advance, such as one compressed while it is sent. The body ends when the connection does.
+     */
+    ResponseWriter body(PayloadSource content) {
+        append(COMMON_HEADERS);
+        append(CRLF);
+        body = content;
+        contentLength = -1;
+        return this;
+    }
+
+    /**
+     * Completes the head of a response that has no body, such as 304 Not Modified, without Content-Length.
+     */
+    ResponseWriter noBody() {
+        append(COMMON_HEADERS);
+        append(CRLF);
+        return this;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        if (headPosition < headLength) {
+            int count = Math.min(length, headLength - headPosition);
+            System.arraycopy(head, headPosition, dst, offset, count);
+            headPosition += count;
+            return count;
+        }
+        return body == null ? -1 : body.read(dst, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (body != null)
+            body.close();
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(headLength + bytes.length);
+        System.arraycopy(bytes, 0, head, headLength, bytes.length);
+        headLength += bytes.length;
+    }
+
+    private void appendDecimal(long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
+            ++digits;
+        ensureCapacity(headLength + digits);
+        for (int i = headLength + digits - 1; i >= headLength; --i) {
+            head[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        headLength += digits;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > head.length)
+            head = Arrays.copyOf(head, Math.max(capacity, head.length * 2));
+    }
+
+    private static byte[] line(String text) {
+        return (text + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Formats a time in milliseconds as an HTTP date, such as "Sun, 06 Nov 1994 08:49:37 GMT".
+     */
+    static String httpDate(long millis) {
+        return DATE_FORMAT.format(Instant.ofEpochSecond(millis / 1000));
+    }
+
+    /**
+     * Parses an HTTP date into milliseconds, or returns -1 when it is not one.
+     */
+    static long parseHttpDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the encoded Date header line, re-formatted only when the second has changed.
+     */
+    static byte[] currentDateHeader() {
+        long second = System.currentTimeMillis() / 1000;
+        DateHeader cached = dateHeader;
+        if (cached.second != second) {
+            cached = new DateHeader(second, line("Date: " + DATE_FORMAT.format(Instant.ofEpochSecond(second))));
+            dateHeader = cached;
+        }
+        return cached.line;
+    }
+
+    private static final class DateHeader {
+        final long second;
+        final byte[] line;
+
+        DateHeader(long second, byte[] line) {
+            this.second = second;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import java.io.IOException;
+
+/**
+ * Thrown when a server refuses a connection because it is overloaded, with the time it asks the client
+ * to wait before trying again.
+ */
+class ServerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    ServerBusyException(int port, long retryAfterMillis) {
+        super("The server at port " + port + " is busy, retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
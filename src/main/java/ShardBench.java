@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Measures how the time to create and to look up an object grows with the number of objects in the file engine,
+ * in the flat and in the sharded layout. Objects are added until each count is reached, and after each count
+ * random objects are looked up: their attributes read as a GET does before it opens the file.
+ * Each layout gets a fresh temporary directory, which is deleted afterwards.
+ * <p>
+ * Usage: java ShardBench [object counts, comma-separated] [lookups per count]
+ */
+public class ShardBench {
+    private static final String DEFAULT_COUNTS = "1000,10000,100000";
+    private static final int DEFAULT_LOOKUPS = 20000;
+    private static final int WARM_UP_OBJECTS = 5000;
+    private static final byte[] BODY = new byte[64];
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = Arrays.stream((args.length > 0 ? args[0] : DEFAULT_COUNTS).split(",")).mapToInt(Integer::parseInt).toArray();
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_LOOKUPS;
+
+        System.out.printf("%-8s %9s %12s %12s %12s%n", "layout", "objects", "create us", "lookup us", "lookup p99");
+        for (boolean sharded : new boolean[]{false, true}) {
+            // a small run first, not reported, so the JIT has compiled the paths measured
+            run(sharded, new int[]{WARM_UP_OBJECTS}, lookups, false);
+            run(sharded, counts, lookups, true);
+        }
+    }
+
+    private static void run(boolean sharded, int[] counts, int lookups, boolean report) throws IOException {
+        Path base = Files.createTempDirectory("shard-bench");
+        try {
+            if (sharded)
+                ShardedLayout.enable(base);
+            try (FileSystemBackend backend = new FileSystemBackend(base, sharded)) {
+                Random random = new Random(1);
+                int created = 0;
+                for (int count : counts) {
+                    long start = System.nanoTime();
+                    int added = count - created;
+                    for (; created < count; ++created)
+                        write(backend, "object" + created + ".txt");
+                    double createMicros = added > 0 ? (System.nanoTime() - start) / 1e3 / added : 0;
+
+                    long[] lookupNanos = new long[lookups];
+                    for (int i = 0; i < lookups; ++i) {
+                        String key = "object" + random.nextInt(created) + ".txt";
+                        long lookupStart = System.nanoTime();
+                        if (backend.stat(key) == null)
+                            throw new IllegalStateException(key + " was not found");
+                        lookupNanos[i] = System.nanoTime() - lookupStart;
+                    }
+                    Arrays.sort(lookupNanos);
+                    if (report)
+                        System.out.printf("%-8s %9d %12.1f %12.1f %12.1f%n", sharded ? "sharded" : "flat", count, createMicros,
+                                Arrays.stream(lookupNanos).average().orElse(0) / 1e3, lookupNanos[(int) (lookups * 0.99)] / 1e3);
+                }
+            }
+        } finally {
+            delete(base);
+        }
+    }
+
+    private static void write(StorageBackend backend, String key) throws IOException {
+        try (StorageBackend.Write write = backend.startWrite(key, null)) {
+            write.onBody(BODY, 0, BODY.length);
+            write.commit(false);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+}
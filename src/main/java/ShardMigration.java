@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Converts a flat storage directory to the sharded layout, in place.
+ * Every object is moved to its hashed subdirectory with a rename, emptied directories are removed,
+ * and the directory is marked as sharded at the end. An interrupted run can simply be started again:
+ * objects that are already in place are skipped. The server must not be running meanwhile.
+ *
+ * <p>Usage: java ShardMigration directory
+ */
+public class ShardMigration {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: java ShardMigration directory");
+            return;
+        }
+        Path base = Paths.get(args[0]).toAbsolutePath().normalize();
+        if (ShardedLayout.isSharded(base)) {
+            System.out.println(base + " is already sharded");
+            return;
+        }
+        long start = System.nanoTime();
+        int moved = migrate(base);
+        ShardedLayout.mark(base);
+        System.out.printf("Moved %d objects in %.1f s, start the server with --layout sharded%n",
+                moved, (System.nanoTime() - start) / 1e9);
+    }
+
+    static int migrate(Path base) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+        try (Stream<Path> tree = Files.walk(base)) {
+            tree.filter(path -> !path.equals(base) && !isHidden(base, path)).forEach(path -> {
+                if (Files.isDirectory(path))
+                    directories.add(path);
+                else
+                    files.add(path);
+            });
+        }
+        int moved = 0;
+        for (Path file : files) {
+            String relative = base.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            if (ShardedLayout.keyOf(relative) != null)
+                continue;
+            Path target = ShardedLayout.resolve(base, relative);
+            Files.createDirectories(target.getParent());
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            if (++moved % 10000 == 0)
+                System.out.println("Moved " + moved + " of " + files.size() + " objects");
+        }
+        // deepest first, so a directory is empty once its children are gone
+        directories.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        for (Path directory : directories) {
+            try (Stream<Path> entries = Files.list(directory)) {
+                if (!entries.findAny().isPresent())
+                    Files.delete(directory);
+            }
+        }
+        return moved;
+    }
+
+    private static boolean isHidden(Path base, Path path) {
+        for (Path name : base.relativize(path)) {
+            if (name.toString().startsWith("."))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+/**
+ * Storage layout that fans objects out over two levels of hashed subdirectories, 256 each,
+ * so no directory holds more than a small share of the objects. An object stored as "dir/name.txt"
+ * in the flat layout is at "3f/a0/dir/name.txt", clients see the same URLs either way.
+ * A base directory in this layout is marked by a hidden file, so it is never read as a flat one.
+ */
+class ShardedLayout {
+    static final String MARKER = ".layout";
+    private static final String SHARDED = "sharded";
+
+    private ShardedLayout() {
+    }
+
+    /**
+     * Returns the two directory levels of a key, such as "3f/a0".
+     *
+     * @param key The object's path relative to the base directory, with '/' separators.
+     */
+    static String shard(String key) {
+        CRC32C crc = new CRC32C();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        int hash = (int) crc.getValue();
+        return String.format("%02x/%02x", hash >>> 24, (hash >>> 16) & 0xFF);
+    }
+
+    /**
+     * Returns where an object is stored.
+     */
+    static Path resolve(Path base, String key) {
+        return base.resolve(shard(key)).resolve(key);
+    }
+
+    /**
+     * Returns the key of a file in the layout, or null when it is not where its key hashes to.
+     *
+     * @param relative The file's path relative to the base directory, with '/' separators.
+     */
+    static String keyOf(String relative) {
+        if (relative.length() < 7 || relative.charAt(2) != '/' || relative.charAt(5) != '/')
+            return null;
+        String key = relative.substring(6);
+        return shard(key).equals(relative.substring(0, 5)) ? key : null;
+    }
+
+    static boolean isSharded(Path base) throws IOException {
+        Path marker = base.resolve(MARKER);
+        return Files.isRegularFile(marker) && new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim().equals(SHARDED);
+    }
+
+    /**
+     * Marks an empty base directory as sharded. A directory that already holds flat objects has to be
+     * converted with ShardMigration instead.
+     *
+     * @throws IOException If the directory holds objects or cannot be written.
+     */
+    static void enable(Path base) throws IOException {
+        if (isSharded(base))
+            return;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(base)) {
+            for (Path entry : entries) {
+                if (!entry.getFileName().toString().startsWith("."))
+                    throw new IOException(base + " holds objects in the flat layout, run \"java ShardMigration " + base + "\" first");
+            }
+        }
+        mark(base);
+    }
+
+    static void mark(Path base) throws IOException {
+        Files.write(base.resolve(MARKER), SHARDED.getBytes(StandardCharsets.UTF_8));
+    }
+}
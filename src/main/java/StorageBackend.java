@@ -0,0 +1,136 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.NavigableSet;
+
+/**
+ * Where the server keeps objects, by key: the path of an object relative to the base directory, such as "a.txt".
+ * Bodies are streamed both ways, a write receives the body as it arrives and a read is sent as it is read.
+ * The server holds the key's lock from StripedLocks around every call for a key, the read lock for stat and open
+ * and the write lock for commit, so a backend only has to be safe for calls on different keys at the same time.
+ */
+interface StorageBackend extends Closeable {
+
+    /**
+     * Returns the size and validators of an object, or null when there is no such object.
+     */
+    Stat stat(String key) throws IOException;
+
+    /**
+     * Returns whether there is an object with the key.
+     */
+    default boolean contains(String key) throws IOException {
+        return stat(key) != null;
+    }
+
+    /**
+     * Opens a range of an object to be sent. The bytes sent are those of the object when it was opened,
+     * even if it is replaced before they have all been read.
+     *
+     * @param offset The position of the first byte.
+     * @param count  The number of bytes, cut at the end of the object.
+     * @return The bytes, or null when there is no such object.
+     */
+    PayloadSource open(String key, long offset, long count) throws IOException;
+
+    /**
+     * Starts receiving the body of a put or an append, which takes effect on commit.
+     *
+     * @param digest The SHA-256 the client announced for the body, or null. A backend may check the body against it.
+     */
+    Write startWrite(String key, byte[] digest) throws IOException;
+
+    /**
+     * Returns the keys in sorted order, a live view.
+     */
+    NavigableSet<String> keys();
+
+    /**
+     * Returns whether the entity tag of an object names its content, so that objects with the same tag
+     * hold the same bytes and can share what is derived from them.
+     */
+    default boolean isContentAddressed() {
+        return false;
+    }
+
+    /**
+     * Returns the size of the largest object the backend takes.
+     */
+    default long maxObjectSize() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the encoded "files" value of the listing response.
+     */
+    default byte[] listing() {
+        return DirectoryIndex.renderListing(keys());
+    }
+
+    /**
+     * Continues a resumable upload with the bytes received so far, or starts it.
+     *
+     * @return The write, or null when the backend does not keep partial uploads.
+     */
+    default Write resumeWrite(String key, String uploadId) throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes a resumable upload has kept, 0 when it has not started or partial uploads are not kept.
+     */
+    default long uploadOffset(String key, String uploadId) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Deletes the partial uploads that have not been continued for the given time.
+     *
+     * @return The number of uploads deleted.
+     */
+    default int removeAbandonedUploads(long maxAgeMillis) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Returns a line of counters for verbose output, or null.
+     */
+    default String getStats() {
+        return null;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * A body being received for an object. Closing it discards the body unless it has been committed.
+     */
+    interface Write extends HttpRequestParser.BodySink, Closeable {
+
+        long getBytesReceived();
+
+        /**
+         * Makes the received body the content of the object, or adds it to the end of the current content.
+         *
+         * @return Whether the body was stored, false when it does not match the digest the client announced.
+         */
+        boolean commit(boolean append) throws IOException;
+    }
+
+    /**
+     * The size of an object and the validators it is served with.
+     */
+    final class Stat {
+        final long size;
+        // -1 when the backend keeps no modification time
+        final long lastModified;
+        // quoted, changes whenever the content does
+        final String etag;
+
+        Stat(long size, long lastModified, String etag) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read/write locks shared out by key hash, so every stored object has a lock
+ * without a lock object per object. GETs of an object hold its read lock and run in parallel,
+ * a POST holds the write lock while it replaces the content. Two keys may share a stripe,
+ * which only costs some parallelism.
+ */
+class StripedLocks {
+    private final ReentrantReadWriteLock[] stripes;
+
+    /**
+     * Constructs the locks.
+     *
+     * @param count The number of stripes, rounded up to a power of two.
+     */
+    StripedLocks(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; ++i)
+            stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Returns the lock of a key, the normalized path of an object.
+     */
+    ReadWriteLock get(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, the index only uses the low ones
+        hash ^= hash >>> 16;
+        return stripes[hash & (stripes.length - 1)];
+    }
+}
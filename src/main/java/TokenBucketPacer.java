@@ -0,0 +1,73 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket used to pace outgoing datagrams.
+ * Tokens are bytes; the bucket refills at the current pacing rate and holds at most a small burst,
+ * so a full window is spread out instead of leaving the channel back-to-back.
+ */
+class TokenBucketPacer {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long burstBytes;
+    private double bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Constructs a pacer.
+     *
+     * @param bytesPerSecond Initial pacing rate, 0 or less disables pacing.
+     * @param burstBytes     Maximum number of bytes that may be sent without waiting.
+     */
+    TokenBucketPacer(double bytesPerSecond, long burstBytes) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        tokens = burstBytes;
+        lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Updates the pacing rate, tokens already earned are kept.
+     *
+     * @param bytesPerSecond The new rate, 0 or less disables pacing.
+     */
+    void setRate(double bytesPerSecond) {
+        refill(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    double getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Blocks until the bucket holds enough tokens for a datagram of the given size, then spends them.
+     *
+     * @param bytes Size of the datagram about to be sent.
+     * @return The time spent waiting in nanoseconds.
+     */
+    long acquire(int bytes) {
+        if (bytesPerSecond <= 0)
+            return 0;
+        long now = System.nanoTime();
+        long waitNanos = 0;
+        refill(now);
+        if (tokens < bytes) {
+            waitNanos = (long) ((bytes - tokens) * NANOS_PER_SECOND / bytesPerSecond);
+            long deadline = now + waitNanos;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            refill(now);
+        }
+        tokens -= bytes;
+        return waitNanos;
+    }
+
+    private void refill(long now) {
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * bytesPerSecond / NANOS_PER_SECOND);
+        }
+        lastRefillNanos = now;
+    }
+}
@@ -1,3 +1,4 @@
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -13,16 +14,21 @@ import static java.nio.channels.SelectionKey.OP_READ;
 /**
  * The UDPClient class represents a simple UDP client that can send and receive datagrams
  * to and from a server using a reliable communication protocol based on selective repeat.
+ * Each object is one connection with its own channel and sequence numbers, so clients in one process,
+ * such as a storage node passing requests on, never share the state of an exchange.
  */
-public class UDPClient {
-    private static SocketAddress routerAddress;
-    private static InetSocketAddress serverAddress;
-    private static DatagramChannel channel;
+public class UDPClient implements Closeable {
+    private final SocketAddress routerAddress;
+    private final InetSocketAddress serverAddress;
+    private DatagramChannel channel;
     private static final long sequenceNumber = 2324234;
-    private static long sendSeqNum;
-    private static long receiveSeqNum;
-    private static int serverPort;
-    private static boolean verbose;
+    private long sendSeqNum;
+    private long receiveSeqNum;
+    private final int serverPort;
+    private final boolean verbose;
+    private static boolean checksumEnabled = true;
+    private boolean connectionChecksum;
+    private static int handshakeAttempts;
 
     /**
      * Constructs a new UDPClient object.
@@ -40,13 +46,60 @@ public class UDPClient {
         sendSeqNum = 1;
     }
 
+    /**
+     * Chooses whether the next connections protect their packets with a CRC32C checksum.
+     * The server follows the choice made in the SYN, so it can be turned off for a trusted loopback path,
+     * and the connection uses checksums only if the server's SYN-ACK carries one as well.
+     *
+     * @param enabled Whether packets carry a checksum.
+     */
+    static void setChecksumEnabled(boolean enabled) {
+        checksumEnabled = enabled;
+    }
+
+    /**
+     * Limits how many SYNs are sent, 2 seconds apart, before a connection is given up.
+     * A storage node passing a request on to another one sets a limit, so a node that is down
+     * fails that request instead of stalling the one that forwards it.
+     *
+     * @param attempts The number of SYNs, 0 to retry until the server answers.
+     */
+    static void setHandshakeAttempts(int attempts) {
+        handshakeAttempts = attempts;
+    }
+
     /**
      * Sends a request to the server using a reliable communication protocol.
      *
      * @param request The request to be sent to the server.
+     * @throws IOException If the server stopped answering before the request was acknowledged.
      */
-    static void send(String request){
+    void send(String request) throws IOException {
+        send(request.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends an encoded request to the server using a reliable communication protocol.
+     *
+     * @param request The bytes of the request.
+     * @throws IOException If the server stopped answering before the request was acknowledged.
+     */
+    void send(byte[] request) throws IOException {
+        send(PayloadSource.of(request));
+    }
+
+    /**
+     * Sends a request to the server as it is read from a source, such as a stored object after its head.
+     *
+     * @param request The bytes of the request.
+     * @throws IOException If the server stopped answering before the request was acknowledged, or the source failed.
+     *                     A ServerBusyException if the server refused the connection.
+     */
+    void send(PayloadSource request) throws IOException {
         try{
+            // a request sent again is a new connection, the previous one is over
+            if (channel != null)
+                channel.close();
             channel = DatagramChannel.open();
         }catch (IOException exception){
             if(verbose)
@@ -60,13 +113,19 @@ public class UDPClient {
 
     /**
      * Performs a three-way handshake with the server to establish a connection.
+     *
+     * @throws IOException If the server has not answered the number of SYNs set with setHandshakeAttempts.
+     * @throws ServerBusyException If the server refused the connection because it is overloaded.
      */
-    private static void handShake(){
+    private void handShake() throws IOException {
         if(verbose)
             System.out.println("\u001B[32mInitiating connection with server, port:"+ serverPort+"\u001B[0m");
         int step = 1;
+        int attempts = 0;
         boolean connected = false;
         while(!connected) {
+            if (step == 1 && handshakeAttempts > 0 && attempts++ == handshakeAttempts)
+                throw new IOException("The server at port " + serverPort + " does not answer");
             try {
                 switch (step) {
                     case 1:
@@ -75,6 +134,7 @@ public class UDPClient {
                                 .setSequenceNumber(sendSeqNum)
                                 .setPortNumber(serverPort)
                                 .setPeerAddress(serverAddress.getAddress())
+                                .setChecksum(checksumEnabled)
                                 .setPayload("SYN".getBytes(StandardCharsets.UTF_8))
                                 .create();
                         channel.send(SYNPacket.toBuffer(), routerAddress);
@@ -104,12 +164,17 @@ public class UDPClient {
                             }
                             //Received a response check if it is of type SYN-ACK and seqNumber
                             if (response.getType() == 2 && sendSeqNum == response.getSequenceNumber()) {
+                                // a server that refuses checksums neither sends nor expects them
+                                connectionChecksum = checksumEnabled && response.hasChecksum();
                                 //update the step to 3 to send ACK
                                 step = 3;
                             }
 
                             keys.clear();
                             selector.close();
+                            // the server is at its limit and says when to try again, a fast failure instead of waiting
+                            if (response.getType() == 6 && sendSeqNum == response.getSequenceNumber())
+                                throw new ServerBusyException(serverPort, retryAfter(response));
                         }
                         break;
                     case 3:
@@ -119,6 +184,7 @@ public class UDPClient {
                                 .setSequenceNumber(sendSeqNum)
                                 .setPortNumber(serverPort)
                                 .setPeerAddress(serverAddress.getAddress())
+                                .setChecksum(connectionChecksum)
                                 .setPayload("ACK".getBytes())
                                 .create();
                         channel.send(PacketAck.toBuffer(), routerAddress);
@@ -131,20 +197,38 @@ public class UDPClient {
                         connected = true;
                         break;
                 }
+            } catch (ServerBusyException exception) {
+                throw exception;
             } catch (IOException exception) {
                 System.out.println(exception.getMessage());
             }
         }
     }
 
+    private static long retryAfter(Packet refusal) {
+        try {
+            return Long.parseLong(new String(refusal.getPayload(), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            return 1000;
+        }
+    }
+
     /**
      * Sends data reliably to the server using selective repeat.
      *
      * @param request The data to be sent.
+     * @throws IOException If the server stopped answering before the data was acknowledged.
      */
-    public static void selectiveRepeat(String request){
+    public void selectiveRepeat(byte[] request) throws IOException {
+        selectiveRepeat(PayloadSource.of(request));
+    }
+
+    private void selectiveRepeat(PayloadSource request) throws IOException {
         ReliableSRSender reliableSRSender = new ReliableSRSender(channel, serverAddress, serverPort,routerAddress, verbose);
+        reliableSRSender.setChecksum(connectionChecksum);
         receiveSeqNum = reliableSRSender.send(request, sendSeqNum, sequenceNumber);
+        if (receiveSeqNum < 0)
+            throw new IOException("The server at port " + serverPort + " stopped answering");
     }
 
     /**
@@ -152,9 +236,32 @@ public class UDPClient {
      *
      * @return The received data as a String.
      */
-    static String receive() {
+    String receive() {
         ReliableSRReceiver reliableSRReceiver = new ReliableSRReceiver(channel, serverAddress.getAddress(), serverPort, routerAddress, verbose);
+        reliableSRReceiver.setChecksum(connectionChecksum);
         reliableSRReceiver.receive(receiveSeqNum, sequenceNumber, serverPort);
         return reliableSRReceiver.getData();
     }
+
+    /**
+     * Receives data reliably from the server, handing each payload to the listener in order as it arrives.
+     * When the server stops sending, the listener has only seen part of the response.
+     *
+     * @param listener The consumer of the received payloads.
+     */
+    void receive(PayloadListener listener) {
+        ReliableSRReceiver reliableSRReceiver = new ReliableSRReceiver(channel, serverAddress.getAddress(), serverPort, routerAddress, verbose);
+        reliableSRReceiver.setChecksum(connectionChecksum);
+        reliableSRReceiver.setPayloadListener(listener);
+        reliableSRReceiver.receive(receiveSeqNum, sequenceNumber, serverPort);
+    }
+
+    /**
+     * Closes the channel of the connection, a process sending many requests would otherwise run out of sockets.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
 }
@@ -5,11 +5,17 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
 
 /**
  * The UDPServer class represents a simple UDP server that can receive datagrams
  * on a specified port and handle incoming data.
+ * A process runs one server and it serves one connection at a time: every datagram arrives on the one channel
+ * bound to the port, and nothing in a packet but the client's address tells connections apart, so the state
+ * of the connection served is kept here. The SYNs of other clients are queued by the admission control and
+ * accepted one after the other, and the server's request handling is not shared with another connection.
  */
 public class UDPServer {
     private static long sequenceNumber;
@@ -22,6 +28,11 @@ public class UDPServer {
     private static long initialSeqNum;
     private static long sendSeqNum;
     private static boolean verbose;
+    private static boolean checksumEnabled = true;
+    private static boolean connectionChecksum;
+    static final int DEFAULT_BACKLOG = 32;
+    static final long DEFAULT_TARGET_LATENCY_MILLIS = 2000;
+    private static AdmissionControl admission = new AdmissionControl(DEFAULT_BACKLOG, DEFAULT_TARGET_LATENCY_MILLIS);
 
     /**
      * Constructs a new UDPServer object.
@@ -45,68 +56,174 @@ public class UDPServer {
     }
 
     /**
-     * Accepts a connection request and initializes the connection.
+     * Allows or refuses checksums on the server's side of each connection.
+     * When allowed, a connection uses them if the client's SYN did.
      *
-     * @return 1 if the connection is accepted successfully, 0 otherwise.
+     * @param enabled Whether the server protects its packets with a checksum.
      */
-    static int acceptConnectionRequest() {
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-                buffer.clear();
-                SocketAddress router = channel.receive(buffer);
-                if(router==null)
-                    return 0;
-                //accept the connection request
-                buffer.flip();
-                Packet packet = Packet.fromBuffer(buffer);
-                buffer.flip();
+    static void setChecksumEnabled(boolean enabled) {
+        checksumEnabled = enabled;
+    }
 
-                //if type = 1, new connection request
-                if (packet.getType()==1) {
-                    if (verbose)
-                        System.out.println("\u001B[32mPort"+ serverPort + " received connection request from : \u001B[0m" + packet.getPeerPort());
+    /**
+     * Limits the connections the server takes on: at most backlog requests wait while one is served, and fewer
+     * when the service time observed means they would wait longer than the target latency. The others are refused
+     * with a packet telling the client when to try again.
+     *
+     * @param backlog             The most connection requests kept waiting.
+     * @param targetLatencyMillis The time a client should wait at most, from its SYN to the end of the response.
+     */
+    static void setAdmission(int backlog, long targetLatencyMillis) {
+        admission = new AdmissionControl(backlog, targetLatencyMillis);
+    }
 
-                    initialSeqNum = packet.getSequenceNumber();
-                    //Build SYN-ACK packet
-                    Packet PacketSYN_ACK = packet.toBuilder()
-                            .setType(2)
-                            .setPayload("SYN-ACK".getBytes())
-                            .create();
-                    channel.send(PacketSYN_ACK.toBuffer(), router);
-                    if (verbose) {
-                        System.out.println("\nSent SYN-ACK to client "+packet.getPeerPort()+": " + PacketSYN_ACK);
-                        System.out.println("Payload: " + new String(PacketSYN_ACK.getPayload(), StandardCharsets.UTF_8));
-                    }
-                    //retrieve the client details from the packet
-                    clientAddress = packet.getPeerAddress();
-                    clientPort = packet.getPeerPort();
-                    UDPServer.router = router;
+    static String getAdmissionStats() {
+        return admission.getStats();
+    }
+
+    /**
+     * Waits up to a timeout for a connection request and accepts it, so the server can do other work
+     * between connections without spinning on the channel. The requests that came in while the last
+     * connection was served are accepted first, in the order they came in.
+     *
+     * @return 1 if a connection was accepted, 0 when none arrived in time.
+     */
+    static int acceptConnectionRequest(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            channel.configureBlocking(false);
+            while (true) {
+                receiveConnectionRequests();
+                AdmissionControl.Pending next = admission.poll();
+                if (next != null) {
+                    accept(next.syn, next.router);
                     return 1;
                 }
-
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return 0;
+                try (Selector selector = Selector.open()) {
+                    channel.register(selector, SelectionKey.OP_READ);
+                    if (selector.select(remaining) == 0)
+                        return 0;
+                }
+            }
         } catch (IOException exception) {
             System.out.println("Exception at connection initialization : " + exception.getMessage());
         }
         return 0;
     }
 
+    /**
+     * Reads the packets waiting on the channel and queues or refuses the connection requests among them.
+     * Other packets belong to connections that are over and are dropped.
+     */
+    private static void receiveConnectionRequests() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
+        for (SocketAddress from = channel.receive(buffer); from != null; from = channel.receive(buffer)) {
+            buffer.flip();
+            try {
+                Packet packet = Packet.fromBuffer(buffer);
+                //if type = 1, new connection request
+                if (packet.getType() == 1)
+                    onConnectionRequest(packet, from);
+            } catch (IOException exception) {
+                // corrupted or truncated datagram, a client sends its SYN again
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Queues a connection request for when the server is free, or refuses it with a packet of type 6
+     * carrying the milliseconds to wait when the server is at its limit.
+     */
+    private static void onConnectionRequest(Packet packet, SocketAddress from) throws IOException {
+        // the SYN of the connection served, sent again before the SYN-ACK arrived
+        if (packet.getPeerPort() == clientPort && packet.getSequenceNumber() == initialSeqNum && packet.getPeerAddress().equals(clientAddress))
+            return;
+        if (admission.offer(packet, from))
+            return;
+        Packet refusal = packet.toBuilder()
+                .setType(6)
+                .setChecksum(checksumEnabled && packet.hasChecksum())
+                .setPayload(Long.toString(admission.retryAfterMillis()).getBytes(StandardCharsets.UTF_8))
+                .create();
+        channel.send(refusal.toBuffer(), from);
+        if (verbose)
+            System.out.println("Refused connection request from " + packet.getPeerPort() + ": " + admission.getStats());
+    }
+
+    /**
+     * Answers a connection request with a SYN-ACK and makes its client the one served.
+     */
+    private static void accept(Packet packet, SocketAddress router) throws IOException {
+        if (verbose)
+            System.out.println("\u001B[32mPort"+ serverPort + " received connection request from : \u001B[0m" + packet.getPeerPort());
+
+        initialSeqNum = packet.getSequenceNumber();
+        connectionChecksum = checksumEnabled && packet.hasChecksum();
+        //Build SYN-ACK packet
+        Packet PacketSYN_ACK = packet.toBuilder()
+                .setType(2)
+                .setChecksum(connectionChecksum)
+                .setPayload("SYN-ACK".getBytes())
+                .create();
+        channel.send(PacketSYN_ACK.toBuffer(), router);
+        if (verbose) {
+            System.out.println("\nSent SYN-ACK to client "+packet.getPeerPort()+": " + PacketSYN_ACK);
+            System.out.println("Payload: " + new String(PacketSYN_ACK.getPayload(), StandardCharsets.UTF_8));
+        }
+        //retrieve the client details from the packet
+        clientAddress = packet.getPeerAddress();
+        clientPort = packet.getPeerPort();
+        UDPServer.router = router;
+    }
+
     /**
      * Receives data reliably from the client.
      * @return The received data as a String.
      */
     static String receive() {
         ReliableSRReceiver reliableSRReceiver = new ReliableSRReceiver(channel, clientAddress, clientPort, router,verbose);
+        reliableSRReceiver.setChecksum(connectionChecksum);
+        reliableSRReceiver.setConnectionRequestListener(UDPServer::onConnectionRequest);
         sendSeqNum = reliableSRReceiver.receive(initialSeqNum, sequenceNumber, serverPort);
         return reliableSRReceiver.getData();
     }
 
+    /**
+     * Receives data reliably from the client, handing each payload to the listener in order as it arrives.
+     *
+     * @param listener The consumer of the received payloads.
+     */
+    static void receive(PayloadListener listener) {
+        ReliableSRReceiver reliableSRReceiver = new ReliableSRReceiver(channel, clientAddress, clientPort, router,verbose);
+        reliableSRReceiver.setChecksum(connectionChecksum);
+        reliableSRReceiver.setPayloadListener(listener);
+        reliableSRReceiver.setConnectionRequestListener(UDPServer::onConnectionRequest);
+        sendSeqNum = reliableSRReceiver.receive(initialSeqNum, sequenceNumber, serverPort);
+    }
+
     /**
      * Sends data reliably to the client.
      * @param data The data to be sent.
      */
     static void send(String data) {
+        send(PayloadSource.of(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends data reliably to the client, reading it from the source packet by packet.
+     * @param data The source of the data to be sent.
+     */
+    static void send(PayloadSource data) {
         InetSocketAddress receiverAddress = new InetSocketAddress("localhost", clientPort);
         ReliableSRSender reliableSRSender = new ReliableSRSender(channel, receiverAddress, clientPort, routerAddress, verbose);
+        reliableSRSender.setChecksum(connectionChecksum);
+        reliableSRSender.setConnectionRequestListener(UDPServer::onConnectionRequest);
         reliableSRSender.send(data, sendSeqNum, sequenceNumber);
+        // the response is the end of the connection, which gives a sample of the service time
+        admission.done();
     }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * Client-side cache of GET response bodies with the ETag and Last-Modified they were sent with.
+ * A repeated GET sends the validators back, and a 304 Not Modified answer is served from here.
+ * Entries are kept in memory, and also in a directory when one is set, so separate httpc runs share them.
+ */
+class ValidatorCache {
+    private static final int MAX_ENTRIES = 256;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private Path directory;
+
+    /**
+     * Keeps entries in a directory as well, created if needed, one file per URL.
+     */
+    synchronized void setDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cached response for a URL, or null.
+     */
+    synchronized Entry get(String url) {
+        Entry entry = entries.get(url);
+        if (entry == null && directory != null)
+            entry = load(url);
+        return entry;
+    }
+
+    /**
+     * Caches the body of a response that carried at least one validator.
+     *
+     * @param etag         The ETag header value, or null.
+     * @param lastModified The Last-Modified header value, or null.
+     */
+    synchronized void put(String url, String etag, String lastModified, String body) {
+        Entry entry = new Entry(etag, lastModified, body);
+        entries.put(url, entry);
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > MAX_ENTRIES) {
+            eldest.next();
+            eldest.remove();
+        }
+        if (directory != null)
+            store(url, entry);
+    }
+
+    private Entry load(String url) {
+        Path file = fileOf(url);
+        if (!Files.isRegularFile(file))
+            return null;
+        try {
+            String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            // the URL, the two validators, then the body
+            String[] lines = text.split("\n", 4);
+            if (lines.length < 4 || !lines[0].equals(url))
+                return null;
+            Entry entry = new Entry(lines[1].isEmpty() ? null : lines[1], lines[2].isEmpty() ? null : lines[2], lines[3]);
+            entries.put(url, entry);
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void store(String url, Entry entry) {
+        Path file = fileOf(url);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        String text = url + "\n" + (entry.etag != null ? entry.etag : "") + "\n"
+                + (entry.lastModified != null ? entry.lastModified : "") + "\n" + entry.body;
+        try {
+            Files.write(temp, text.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache only saves bytes on the wire, a failed write costs the next GET a full response
+            System.out.println("Validator cache: cannot write " + file + ", " + e.getMessage());
+        }
+    }
+
+    private Path fileOf(String url) {
+        return directory.resolve(UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8)).toString());
+    }
+
+    static final class Entry {
+        final String etag;
+        final String lastModified;
+        final String body;
+
+        Entry(String etag, String lastModified, String body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The version stamps of the objects a node of a replicated cluster stores, which order the writes of one object
+ * made through different replicas: the copy with the higher stamp wins. A stamp holds a clock in milliseconds in
+ * its upper bits, kept ahead of every stamp the node has seen, and the port of the node that issued it in its lower
+ * 16 bits, so stamps of different nodes never tie. Stamps are appended to a file as they change and read back on start.
+ */
+class VersionIndex implements Closeable {
+    private final ConcurrentHashMap<String, Long> stamps = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final int node;
+    private BufferedWriter log;
+
+    /**
+     * Opens the stamps of a node, compacting the file to one line per object.
+     *
+     * @param file The file of stamps, or null to keep them in memory only.
+     * @param node The port of the node.
+     * @throws IOException If the file cannot be read or written.
+     */
+    VersionIndex(Path file, int node) throws IOException {
+        this.node = node;
+        if (file == null)
+            return;
+        if (Files.exists(file)) {
+            // "key<TAB>stamp" lines, the last line of a key wins; a line cut off by a crash is skipped
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int tab = line.lastIndexOf('\t');
+                try {
+                    if (tab > 0)
+                        stamps.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+                } catch (NumberFormatException e) {
+                    // skipped
+                }
+            }
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> stamp : stamps.entrySet()) {
+                observe(stamp.getValue());
+                writer.write(stamp.getKey() + "\t" + stamp.getValue() + "\n");
+            }
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns the stamp of an object, 0 when it has none, such as one stored before the cluster was replicated.
+     */
+    long get(String key) {
+        Long stamp = stamps.get(key);
+        return stamp != null ? stamp : 0;
+    }
+
+    /**
+     * Issues the stamp of a write coordinated by this node, higher than every stamp it has issued or seen.
+     */
+    long next() {
+        return clock.updateAndGet(time -> Math.max(time + 1, System.currentTimeMillis())) << 16 | node;
+    }
+
+    /**
+     * Records the stamp of the copy now stored. Called under the object's write lock.
+     */
+    void put(String key, long stamp) throws IOException {
+        stamps.put(key, stamp);
+        observe(stamp);
+        if (log != null) {
+            synchronized (this) {
+                log.write(key + "\t" + stamp + "\n");
+                log.flush();
+            }
+        }
+    }
+
+    private void observe(long stamp) {
+        clock.accumulateAndGet(stamp >>> 16, Math::max);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null)
+            log.close();
+    }
+}
@@ -103,6 +103,27 @@ public class httpc {
                         headers.append(args[i]).append(",");
                     }
                     break;
+                case "--no-checksum":
+                    UDPClient.setChecksumEnabled(false);
+                    break;
+                case "--cache":
+                    i++;
+                    if (i < args.length) {
+                        HttpClient.setCacheDirectory(args[i]);
+                    }
+                    break;
+                case "--cluster":
+                    i++;
+                    if (i < args.length) {
+                        HttpClient.setCluster(HashRing.parse(args[i]));
+                    }
+                    break;
+                case "--replicas":
+                    i++;
+                    if (i < args.length) {
+                        HttpClient.setReplicas(Integer.parseInt(args[i]));
+                    }
+                    break;
                 case "-o":
                     i++;
                     if(i < args.length) {
@@ -14,6 +14,8 @@ public class https {
         int port = DEFAULT_PORT;
         String baseDirectory = DEFAULT_DIRECTORY;
         boolean verbose = false;
+        int backlog = UDPServer.DEFAULT_BACKLOG;
+        long targetLatency = UDPServer.DEFAULT_TARGET_LATENCY_MILLIS;
 
         // Parse command-line arguments
         for (int i = 0; i < args.length; i++) {
@@ -35,8 +37,79 @@ public class https {
                         baseDirectory = args[i];
                     }
                     break;
+                case "--no-checksum":
+                    UDPServer.setChecksumEnabled(false);
+                    break;
+                case "-e":
+                case "--backend":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setStorageEngine(args[i]);
+                    }
+                    break;
+                case "--durability":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setDurability(LogStore.Durability.valueOf(args[i].toUpperCase()));
+                    }
+                    break;
+                case "--layout":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setLayout(args[i]);
+                    }
+                    break;
+                case "-c":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setCacheBytes(Long.parseLong(args[i]));
+                    }
+                    break;
+                case "--cluster":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setCluster(HashRing.parse(args[i]));
+                    }
+                    break;
+                case "--replicas":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setReplicas(Integer.parseInt(args[i]));
+                    }
+                    break;
+                case "--write-quorum":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setWriteQuorum(Integer.parseInt(args[i]));
+                    }
+                    break;
+                case "--read-quorum":
+                    i++;
+                    if (i < args.length) {
+                        HTTPFileStorage.setReadQuorum(Integer.parseInt(args[i]));
+                    }
+                    break;
+                case "--backlog":
+                    i++;
+                    if (i < args.length) {
+                        backlog = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--target-latency":
+                    i++;
+                    if (i < args.length) {
+                        targetLatency = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "-r":
+                    i++;
+                    if (i < args.length) {
+                        ReliableSRSender.setPacingRateCap(Long.parseLong(args[i]));
+                    }
+                    break;
             }
         }
+        UDPServer.setAdmission(backlog, targetLatency);
         HTTPFileStorage server = new HTTPFileStorage(port, baseDirectory, verbose);
         //HTTPFileStorage server = new HTTPFileStorage(80, baseDirectory, true);
         server.startServer();
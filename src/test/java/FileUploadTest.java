@@ -0,0 +1,76 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileUploadTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @TempDir
+    Path base;
+
+    @Test
+    void removesOnlyPartFilesNotContinuedForTheAge() throws Exception {
+        Path shard = Files.createDirectories(base.resolve("ab").resolve("cd"));
+        Path target = base.resolve("a.txt");
+        Path shardedTarget = shard.resolve("b.txt");
+        write(target, "kept");
+
+        Path stale = part(target, "old", 2 * DAY);
+        Path staleInShard = part(shardedTarget, "older", 3 * DAY);
+        Path recent = part(target, "recent", 0);
+        Path oldObject = base.resolve("old.txt");
+        write(oldObject, "not an upload");
+        Files.setLastModifiedTime(oldObject, FileTime.fromMillis(System.currentTimeMillis() - 2 * DAY));
+
+        assertEquals(2, FileUpload.removeAbandoned(base, DAY));
+        assertFalse(Files.exists(stale));
+        assertFalse(Files.exists(staleInShard));
+        assertTrue(Files.exists(recent));
+        assertTrue(Files.exists(target));
+        assertTrue(Files.exists(oldObject));
+    }
+
+    @Test
+    void resumedUploadContinuesFromTheBytesKept() throws Exception {
+        Path target = base.resolve("c.txt");
+        try (FileUpload upload = FileUpload.resume(target, "id-1")) {
+            upload.onBody("hello ".getBytes(StandardCharsets.UTF_8), 0, 6);
+        }
+        assertEquals(6, FileUpload.getOffset(target, "id-1"));
+        try (FileUpload upload = FileUpload.resume(target, "id-1")) {
+            upload.onBody("world".getBytes(StandardCharsets.UTF_8), 0, 5);
+            upload.commit(false);
+        }
+        assertEquals("hello world", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        assertEquals(0, FileUpload.getOffset(target, "id-1"));
+    }
+
+    /**
+     * Starts a resumable upload for the target and leaves it as a client that went away would, last written ageMillis ago.
+     */
+    private static Path part(Path target, String uploadId, long ageMillis) throws Exception {
+        try (FileUpload upload = FileUpload.resume(target, uploadId)) {
+            upload.onBody(new byte[100], 0, 100);
+        }
+        Path part;
+        try (Stream<Path> files = Files.list(target.getParent())) {
+            part = files.filter(file -> file.getFileName().toString().endsWith("-" + uploadId + ".part")).findFirst().orElseThrow();
+        }
+        Files.setLastModifiedTime(part, FileTime.fromMillis(System.currentTimeMillis() - ageMillis));
+        return part;
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,183 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Requests handled the way the server handles them, without the UDP transport: each is fed to the parser
+ * in packet-sized payloads, then processed, and its response read back.
+ */
+class HTTPFileStorageTest {
+    private static final int THREADS = 8;
+    // the payload size of a packet
+    private static final int PACKET = 1013;
+
+    @TempDir
+    Path base;
+    private HTTPFileStorage server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (server != null)
+            server.close();
+        HTTPFileStorage.setStorageEngine("file");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "memory"})
+    void getReturnsWhatWasPosted(String engine) throws Exception {
+        start(engine);
+        assertTrue(post("a.txt", "hello\nworld").startsWith("HTTP/1.1 2"));
+        assertEquals("hello\nworld", getRaw("a.txt"));
+        assertTrue(get("missing.txt").startsWith("HTTP/1.1 404"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "memory"})
+    void concurrentRequestsForDifferentObjects(String engine) throws Exception {
+        start(engine);
+        int objects = 20;
+        List<Future<?>> clients = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int t = 0; t < THREADS; ++t) {
+                int client = t;
+                clients.add(pool.submit(() -> {
+                    for (int i = 0; i < objects; ++i) {
+                        String name = "c" + client + "-" + i + ".txt";
+                        post(name, body(client, i));
+                        assertEquals(body(client, i), getRaw(name));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : clients)
+                future.get();
+        } finally {
+            pool.shutdown();
+        }
+        for (int t = 0; t < THREADS; ++t) {
+            for (int i = 0; i < objects; ++i)
+                assertEquals(body(t, i), getRaw("c" + t + "-" + i + ".txt"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"file", "memory"})
+    void concurrentWritesOfOneObjectAreNotMixed(String engine) throws Exception {
+        start(engine);
+        post("shared.txt", body(0, 0));
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> clients = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int t = 0; t < THREADS; ++t) {
+                int client = t;
+                clients.add(pool.submit(() -> {
+                    start.await(10, TimeUnit.SECONDS);
+                    for (int i = 0; i < 10; ++i) {
+                        if (client % 2 == 0) {
+                            post("shared.txt", body(client, i));
+                        } else {
+                            // a reader sees one whole write, never parts of two
+                            String content = getRaw("shared.txt");
+                            assertTrue(content.matches("(" + content.substring(0, 8) + ")+"), "mixed content");
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : clients)
+                future.get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"99999999999999999999", "9223372036854775808", "12a"})
+    void malformedContentLengthIsRefused(String length) throws Exception {
+        start("memory");
+        String response = send("POST /a.txt HTTP/1.0\r\nHost: localhost\r\nContent-Length: " + length + "\r\n\r\nhello");
+        assertTrue(response.startsWith("HTTP/1.1 400"), response);
+        assertTrue(get("a.txt").startsWith("HTTP/1.1 404"));
+    }
+
+    @Test
+    void closingTheServerStopsWatchingTheDirectory() throws Exception {
+        start("file");
+        assertTrue(watcherThreads() > 0);
+        server.close();
+        server = null;
+        assertEquals(0, watcherThreads());
+    }
+
+    private static long watcherThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("directory-index") && thread.isAlive()).count();
+    }
+
+    private void start(String engine) throws IOException {
+        HTTPFileStorage.setStorageEngine(engine);
+        server = new HTTPFileStorage(8080, base.toString(), false);
+        server.open();
+    }
+
+    /**
+     * Returns a body of several packets made of one repeated 8-character word, different for every client and write.
+     */
+    private static String body(int client, int write) {
+        return String.format("w%03d-%03d", client, write).repeat(500);
+    }
+
+    private String post(String name, String body) throws IOException {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        return send("POST /" + name + " HTTP/1.0\r\nHost: localhost\r\nContent-Length: " + content.length + "\r\n\r\n" + body);
+    }
+
+    private String get(String name) throws IOException {
+        return send("GET /" + name + " HTTP/1.0\r\nHost: localhost\r\n\r\n");
+    }
+
+    private String getRaw(String name) throws IOException {
+        String response = send("GET /" + name + "?raw HTTP/1.0\r\nHost: localhost\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    private String send(String request) throws IOException {
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+        RequestContext context = new RequestContext();
+        HttpRequestParser parser = server.newRequest(context);
+        try {
+            for (int offset = 0; offset < bytes.length; offset += PACKET) {
+                byte[] payload = new byte[Math.min(PACKET, bytes.length - offset)];
+                System.arraycopy(bytes, offset, payload, 0, payload.length);
+                parser.onPayload(payload);
+            }
+            server.complete(parser, context);
+        } finally {
+            server.release(context);
+        }
+        try (ResponseWriter response = context.getResponse(); InputStream in = response.toInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The client's GETs against the server's handling of them, without the UDP transport: a response cut off
+ * by a lost connection is simulated by keeping only the first part of its bytes.
+ */
+class HttpClientTest {
+    // over the size up to which the server compresses raw bodies
+    private static final int LARGE = 9 * 1024 * 1024;
+
+    @TempDir
+    Path base;
+    private HTTPFileStorage server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        HTTPFileStorage.setStorageEngine("memory");
+        server = new HTTPFileStorage(8080, base.toString(), false);
+        server.open();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+        HTTPFileStorage.setStorageEngine("file");
+    }
+
+    @Test
+    void truncatedRawGetIsDetectedAndResumed() throws IOException {
+        byte[] content = post("big.txt", LARGE);
+        String request = HttpClient.getRequest("/big.txt", "raw", "localhost", "");
+        assertFalse(request.contains("Accept-Encoding"), "a raw GET that may be resumed asks for the object's own bytes");
+
+        byte[] full = send(request + "\r\n");
+        HttpClient.Response cut = new HttpClient.Response(Arrays.copyOf(full, full.length / 2));
+        assertTrue(cut.isTruncated());
+
+        AtomicInteger exchanges = new AtomicInteger();
+        HttpClient.Response completed = HttpClient.resume(cut, request, resume -> {
+            exchanges.incrementAndGet();
+            HttpClient.Response rest = new HttpClient.Response(send(resume));
+            assertEquals(206, rest.statusCode, "the strong entity tag in If-Range still matches");
+            return rest;
+        });
+        assertEquals(1, exchanges.get());
+        assertFalse(completed.isTruncated());
+        assertArrayEquals(content, completed.body.toByteArray());
+    }
+
+    @Test
+    void largeRawBodyIsSentWithItsLengthEvenWhenCompressionIsAccepted() throws IOException {
+        post("big.txt", LARGE);
+        HttpClient.Response response = new HttpClient.Response(
+                send("GET /big.txt?raw HTTP/1.0\r\nHost: localhost\r\nAccept-Encoding: gzip, deflate\r\n\r\n"));
+        assertEquals(200, response.statusCode);
+        assertFalse(response.head.contains("Content-Encoding"));
+        assertEquals(LARGE, response.contentLength);
+    }
+
+    @Test
+    void smallRawBodyIsStillCompressedWhenAsked() throws IOException {
+        post("small.txt", 64 * 1024);
+        HttpClient.Response response = new HttpClient.Response(
+                send("GET /small.txt?raw HTTP/1.0\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n"));
+        assertTrue(response.head.contains("Content-Encoding: gzip"));
+        assertNotNull(response.text());
+    }
+
+    @Test
+    void completeResponseIsNotResumed() throws IOException {
+        byte[] content = post("a.txt", 5000);
+        String request = HttpClient.getRequest("/a.txt", "raw", "localhost", "");
+        HttpClient.Response response = HttpClient.resume(new HttpClient.Response(send(request + "\r\n")), request, resume -> {
+            throw new AssertionError("resumed a complete response");
+        });
+        assertArrayEquals(content, response.body.toByteArray());
+    }
+
+    @Test
+    void uploadOffsetOutsideTheBodyIsRefused() throws IOException {
+        assertEquals(0, HttpClient.parseUploadOffset("0", 100));
+        assertEquals(100, HttpClient.parseUploadOffset(" 100", 100));
+        for (String reported : new String[]{"-1", "101", "99999999999999999999", "ten", ""})
+            assertThrows(IOException.class, () -> HttpClient.parseUploadOffset(reported, 100), reported);
+    }
+
+    /**
+     * Stores an object of printable text, which compresses, and returns its bytes.
+     */
+    private byte[] post(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; ++i)
+            content[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(4));
+        byte[] head = ("POST /" + name + " HTTP/1.0\r\nHost: localhost\r\nContent-Length: " + size + "\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] request = Arrays.copyOf(head, head.length + size);
+        System.arraycopy(content, 0, request, head.length, size);
+        String response = new String(send(request), StandardCharsets.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 2"), response);
+        return content;
+    }
+
+    private byte[] send(String request) throws IOException {
+        return send(request.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] send(byte[] request) throws IOException {
+        RequestContext context = new RequestContext();
+        HttpRequestParser parser = server.newRequest(context);
+        try {
+            parser.onPayload(request);
+            server.complete(parser, context);
+        } finally {
+            server.release(context);
+        }
+        try (ResponseWriter response = context.getResponse(); InputStream in = response.toInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+}
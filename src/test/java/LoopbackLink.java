@@ -0,0 +1,146 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * A sender and a receiver on loopback channels, connected by a relay that forwards the packets as the router does:
+ * to the port in their header, with the port they came from put there instead. Packets the filter rejects are dropped,
+ * those the duplicate test accepts are forwarded twice, and those the corrupt test accepts are damaged on the way.
+ */
+class LoopbackLink implements Closeable {
+    static final int PAYLOAD = 1013;
+    private static final long SEQUENCE_NUMBERS = 1000;
+
+    private final InetAddress loopback = InetAddress.getLoopbackAddress();
+    private final DatagramChannel sender;
+    private final DatagramChannel receiver;
+    private final DatagramChannel router;
+    private final Thread relay;
+    private volatile Predicate<Packet> filter = packet -> true;
+    private volatile Predicate<Packet> duplicate = packet -> false;
+    private volatile Predicate<Packet> corrupt = packet -> false;
+    private boolean checksum;
+
+    LoopbackLink() throws IOException {
+        sender = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        receiver = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        router = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        relay = new Thread(this::relay, "relay");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    /**
+     * Forwards only the packets the filter accepts. It is called on the relay thread, one packet after the other.
+     */
+    void setFilter(Predicate<Packet> forward) {
+        filter = forward;
+    }
+
+    /**
+     * Forwards the packets the test accepts twice, as a network may. It is called on the relay thread.
+     */
+    void setDuplicates(Predicate<Packet> twice) {
+        duplicate = twice;
+    }
+
+    /**
+     * Clears the checksum flag of the packets the test accepts and flips a bit of their payload, a corruption
+     * that a receiver trusting the flag cannot see. It is called on the relay thread.
+     */
+    void setCorruption(Predicate<Packet> damaged) {
+        corrupt = damaged;
+    }
+
+    /**
+     * Makes the sender and the receiver of the next transfer use checksums.
+     */
+    void setChecksum(boolean enabled) {
+        checksum = enabled;
+    }
+
+    /**
+     * Sends the content to a receiver whose listener takes delayMillis for every payload, and returns what it got.
+     */
+    byte[] transfer(byte[] content, long delayMillis) throws Exception {
+        int senderPort = ((InetSocketAddress) sender.getLocalAddress()).getPort();
+        int receiverPort = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+        SocketAddress routerAddress = router.getLocalAddress();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ReliableSRReceiver srReceiver = new ReliableSRReceiver(receiver, loopback, senderPort, routerAddress, false);
+        srReceiver.setChecksum(checksum);
+        srReceiver.setPayloadListener(payload -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException exception) {
+                throw new InterruptedIOException();
+            }
+            received.write(payload);
+        });
+        CompletableFuture<Long> receiving = CompletableFuture.supplyAsync(() -> srReceiver.receive(1, SEQUENCE_NUMBERS, receiverPort));
+
+        ReliableSRSender srSender = new ReliableSRSender(sender, new InetSocketAddress(loopback, receiverPort), receiverPort, routerAddress, false);
+        srSender.setChecksum(checksum);
+        assertNotEquals(-1, srSender.send(PayloadSource.of(content), 1, SEQUENCE_NUMBERS));
+        assertNotEquals(-1, receiving.get());
+        return received.toByteArray();
+    }
+
+    static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    @Override
+    public void close() throws IOException {
+        router.close();
+        try {
+            relay.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        sender.close();
+        receiver.close();
+    }
+
+    private void relay() {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        try {
+            while (true) {
+                buf.clear();
+                InetSocketAddress from = (InetSocketAddress) router.receive(buf);
+                buf.flip();
+                Packet packet = Packet.fromBuffer(buf);
+                if (!filter.test(packet))
+                    continue;
+                buf.rewind();
+                buf.putShort(9, (short) from.getPort());
+                if (buf.limit() > Packet.MIN_LEN && corrupt.test(packet)) {
+                    buf.put(13, (byte) 0);
+                    buf.put(Packet.MIN_LEN, (byte) (buf.get(Packet.MIN_LEN) ^ 1));
+                }
+                InetSocketAddress to = new InetSocketAddress(loopback, packet.getPeerPort());
+                router.send(buf, to);
+                if (duplicate.test(packet)) {
+                    buf.rewind();
+                    router.send(buf, to);
+                }
+            }
+        } catch (IOException exception) {
+            // closed at the end of the test
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flow control between a sender and a receiver whose listener is slower than the network,
+ * and the receiver's defence against packets that lost their checksum on the way.
+ */
+@Timeout(30)
+class ReliableSRReceiverTest {
+    private static final int BUFFER_PACKETS = 8;
+    // well over the delayed ACK timeout for the whole buffer, so ACKs see it full
+    private static final long LISTENER_DELAY = 20;
+
+    private LoopbackLink link;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ReliableSRReceiver.setReceiveBufferPackets(BUFFER_PACKETS);
+        link = new LoopbackLink();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        ReliableSRReceiver.setReceiveBufferPackets(32);
+        link.close();
+    }
+
+    @Test
+    void slowListenerClosesTheWindowAndTheReceiverReopensIt() throws Exception {
+        long zeroWindows = ReliableSRReceiver.getTotalZeroWindows();
+        long probes = ReliableSRSender.getTotalZeroWindowProbes();
+        byte[] content = LoopbackLink.content(60 * LoopbackLink.PAYLOAD + 17);
+
+        assertArrayEquals(content, link.transfer(content, LISTENER_DELAY));
+        assertTrue(ReliableSRReceiver.getTotalZeroWindows() > zeroWindows, "the listener never fell behind");
+        assertEquals(probes, ReliableSRSender.getTotalZeroWindowProbes(), "the window update did not reach the sender");
+    }
+
+    @Test
+    void lostWindowUpdateIsRecoveredByTheProbe() throws Exception {
+        long probes = ReliableSRSender.getTotalZeroWindowProbes();
+        byte[] content = LoopbackLink.content(30 * LoopbackLink.PAYLOAD);
+        // drops the ACKs that reopen the first closed window, until the sender sends again
+        AtomicInteger dropped = new AtomicInteger();
+        AtomicBoolean closed = new AtomicBoolean();
+        AtomicBoolean probed = new AtomicBoolean();
+        link.setFilter(packet -> {
+            if (probed.get())
+                return true;
+            if (packet.getType() == 3 && packet.getReceiveWindow() == 0) {
+                closed.set(true);
+            } else if (packet.getType() == 3 && closed.get()) {
+                dropped.incrementAndGet();
+                return false;
+            } else if (packet.getType() == 0 && closed.get()) {
+                probed.set(true);
+            }
+            return true;
+        });
+
+        assertArrayEquals(content, link.transfer(content, LISTENER_DELAY));
+        assertTrue(dropped.get() > 0);
+        assertTrue(ReliableSRSender.getTotalZeroWindowProbes() > probes, "the window reopened without a probe");
+    }
+
+    @Test
+    void packetThatLostItsChecksumIsDroppedAndSentAgain() throws Exception {
+        byte[] content = LoopbackLink.content(10 * LoopbackLink.PAYLOAD);
+        Set<Long> corrupted = ConcurrentHashMap.newKeySet();
+        link.setChecksum(true);
+        link.setCorruption(packet -> packet.getType() == 0 && packet.getSequenceNumber() == 3 && corrupted.add(3L));
+
+        assertArrayEquals(content, link.transfer(content, 0));
+        assertEquals(1, corrupted.size());
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Loss detection of the sender in windows of only a few packets, where duplicate ACKs are scarce.
+ */
+@Timeout(30)
+class ReliableSRSenderTest {
+    // a receiver that hears nothing re-ACKs after a second, a transfer that took this long waited for that or the timer
+    private static final long RE_ACK_INTERVAL = 1000;
+
+    private LoopbackLink link;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        link = new LoopbackLink();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        link.close();
+    }
+
+    @Test
+    void singleDuplicateAckIsNotTakenForALoss() throws Exception {
+        long fastRetransmits = ReliableSRSender.getTotalFastRetransmits();
+        byte[] content = LoopbackLink.content(4 * LoopbackLink.PAYLOAD);
+        // the receiver re-ACKs the second copy, the sender sees one duplicate ACK with 3 and 4 in flight
+        Set<Long> duplicated = ConcurrentHashMap.newKeySet();
+        link.setDuplicates(packet -> packet.getType() == 0 && packet.getSequenceNumber() == 2 && duplicated.add(2L));
+
+        assertArrayEquals(content, link.transfer(content, 0));
+        assertEquals(fastRetransmits, ReliableSRSender.getTotalFastRetransmits());
+    }
+
+    @Test
+    void lossesInASmallWindowAreRepairedWithoutTheTimer() throws Exception {
+        long fastRetransmits = ReliableSRSender.getTotalFastRetransmits();
+        byte[] content = LoopbackLink.content(6 * LoopbackLink.PAYLOAD);
+        // with 1 and 4 of the first four packets lost, only limited transmit brings the third duplicate ACK,
+        // and only the retransmission on the partial ACK repairs 4 without waiting
+        Set<Long> dropped = ConcurrentHashMap.newKeySet();
+        link.setFilter(packet -> packet.getType() != 0
+                || (packet.getSequenceNumber() != 1 && packet.getSequenceNumber() != 4)
+                || !dropped.add(packet.getSequenceNumber()));
+
+        long start = System.currentTimeMillis();
+        assertArrayEquals(content, link.transfer(content, 0));
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(2, dropped.size());
+        assertEquals(fastRetransmits + 1, ReliableSRSender.getTotalFastRetransmits());
+        assertTrue(elapsed < RE_ACK_INTERVAL, "took " + elapsed + "ms");
+    }
+
+    @Test
+    void sendersInOneProcessKeepTheirWindowsApart() throws Exception {
+        byte[] first = LoopbackLink.content(300 * LoopbackLink.PAYLOAD);
+        byte[] second = LoopbackLink.content(300 * LoopbackLink.PAYLOAD + 1);
+        try (LoopbackLink other = new LoopbackLink()) {
+            CompletableFuture<byte[]> sending = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return other.transfer(second, 0);
+                } catch (Exception exception) {
+                    throw new IllegalStateException(exception);
+                }
+            });
+            assertArrayEquals(first, link.transfer(first, 0));
+            assertArrayEquals(second, sending.get());
+        }
+    }
+}
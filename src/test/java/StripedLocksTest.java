@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StripedLocksTest {
+    private static final int THREADS = 8;
+
+    @Test
+    void keyAlwaysGetsTheSameLock() {
+        StripedLocks locks = new StripedLocks(64);
+        assertSame(locks.get("a.txt"), locks.get("a.txt"));
+        assertSame(locks.get("dir/b.txt"), locks.get(new String("dir/b.txt")));
+    }
+
+    @Test
+    void writeLockExcludesOtherWriters() throws Exception {
+        StripedLocks locks = new StripedLocks(4);
+        String[] keys = {"a", "b", "c", "d", "e", "f"};
+        // plain counters, only correct if the writers of a key never overlap
+        int[] counts = new int[keys.length];
+        int increments = 10000;
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; ++t) {
+                writers.add(pool.submit(() -> {
+                    for (int i = 0; i < increments; ++i) {
+                        int k = i % keys.length;
+                        Lock lock = locks.get(keys[k]).writeLock();
+                        lock.lock();
+                        try {
+                            counts[k]++;
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers)
+                writer.get();
+        } finally {
+            pool.shutdown();
+        }
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        assertEquals(THREADS * increments, total);
+    }
+
+    @Test
+    void readersOfAKeyRunTogether() throws Exception {
+        StripedLocks locks = new StripedLocks(64);
+        CountDownLatch allIn = new CountDownLatch(THREADS);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> readers = new ArrayList<>();
+            for (int t = 0; t < THREADS; ++t) {
+                readers.add(pool.submit(() -> {
+                    Lock lock = locks.get("shared").readLock();
+                    lock.lock();
+                    try {
+                        // every reader waits here for the others, which only ends if they all hold the lock at once
+                        allIn.countDown();
+                        return allIn.await(10, TimeUnit.SECONDS);
+                    } finally {
+                        lock.unlock();
+                    }
+                }));
+            }
+            for (Future<Boolean> reader : readers)
+                assertTrue(reader.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}